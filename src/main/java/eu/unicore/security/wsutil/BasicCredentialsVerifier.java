@@ -0,0 +1,18 @@
+package eu.unicore.security.wsutil;
+
+import java.io.IOException;
+
+/**
+ * Checks username and password sent via HTTP Basic authentication, typically
+ * against a bcrypt or PBKDF2 password hash.
+ *
+ * @see CachingBasicCredentialsValidator
+ */
+public interface BasicCredentialsVerifier
+{
+	/**
+	 * @return <code>true</code> if the password is correct
+	 * @throws IOException if the credentials could not be checked
+	 */
+	public boolean verify(String username, String password) throws IOException;
+}
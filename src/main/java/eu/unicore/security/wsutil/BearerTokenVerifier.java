@@ -0,0 +1,63 @@
+package eu.unicore.security.wsutil;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Verifies OAuth bearer tokens, e.g. by checking a JWT's signature or by calling
+ * a token introspection endpoint.
+ *
+ * @see CachingBearerTokenValidator
+ */
+public interface BearerTokenVerifier
+{
+	/**
+	 * @param token - the raw bearer token
+	 * @return the verified token or <code>null</code> if the token is not valid
+	 * @throws IOException if the token could not be verified, e.g. because the
+	 * introspection endpoint is not reachable
+	 */
+	public VerifiedToken verify(String token) throws IOException;
+
+	/**
+	 * result of a successful verification
+	 */
+	public static class VerifiedToken
+	{
+		private final String subject;
+		private final long expires;
+		private final Map<String, Object> claims;
+
+		/**
+		 * @param subject - the token's subject
+		 * @param expires - expiry time (ms since epoch), or 0 if the token does not expire
+		 * @param claims - further claims, can be <code>null</code>
+		 */
+		public VerifiedToken(String subject, long expires, Map<String, Object> claims)
+		{
+			this.subject = subject;
+			this.expires = expires;
+			this.claims = claims!=null ? Collections.unmodifiableMap(new HashMap<>(claims)) : Collections.emptyMap();
+		}
+
+		public String getSubject()
+		{
+			return subject;
+		}
+
+		/**
+		 * @return expiry time (ms since epoch), or 0 if the token does not expire
+		 */
+		public long getExpires()
+		{
+			return expires;
+		}
+
+		public Map<String, Object> getClaims()
+		{
+			return claims;
+		}
+	}
+}
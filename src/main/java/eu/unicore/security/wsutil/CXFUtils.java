@@ -2,9 +2,13 @@ package eu.unicore.security.wsutil;
 
 import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
@@ -13,8 +17,8 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.binding.soap.model.SoapOperationInfo;
 import org.apache.cxf.headers.Header;
 import org.apache.cxf.helpers.CastUtils;
 import org.apache.cxf.message.Exchange;
@@ -22,7 +26,6 @@ import org.apache.cxf.message.Message;
 import org.apache.cxf.phase.PhaseInterceptorChain;
 import org.apache.cxf.service.invoker.MethodDispatcher;
 import org.apache.cxf.service.model.BindingOperationInfo;
-import org.apache.cxf.transport.http.AbstractHTTPDestination;
 import org.apache.cxf.transport.servlet.ServletDestination;
 import org.apache.cxf.ws.addressing.AddressingProperties;
 import org.apache.cxf.ws.addressing.ContextUtils;
@@ -46,8 +49,33 @@ public class CXFUtils {
 		return msg.getDestination()==null || !(msg.getDestination() instanceof ServletDestination);
 	}
 
+	/**
+	 * operation property holding the declared SOAP action, or an empty string if none
+	 */
+	private static final String ACTION_PROPERTY = CXFUtils.class.getName()+".action";
+
+	/**
+	 * operation property holding the implementing method
+	 */
+	private static final String METHOD_PROPERTY = CXFUtils.class.getName()+".method";
+
+	/**
+	 * get the action of the message. If the operation is known and declares a SOAP action,
+	 * this is returned without looking at the message. Otherwise the SOAPAction HTTP header,
+	 * the WS-Addressing action header and finally the name of the implementing method are used.
+	 */
 	public static String getAction(Message message){
 		if(message==null)return null;
+		return RequestSecurityContext.get(message).getAction();
+	}
+
+	static String computeAction(Message message){
+		Exchange ex=message.getExchange();
+		BindingOperationInfo bop = ex!=null ? ex.get(BindingOperationInfo.class) : null;
+		if(bop!=null){
+			String declared = getDeclaredAction(bop);
+			if(declared!=null)return declared;
+		}
 
 		String action=null;
 
@@ -71,34 +99,86 @@ public class CXFUtils {
 			}
 		}
 		if(action==null){
-			Method m=getMethod(message);
+			Method m=computeMethod(message);
 			action = m!=null ? m.getName() : null;
 		}
 		return  action;
 	}
 
 	public static Method getMethod(Message message){
+		return RequestSecurityContext.get(message).getMethod();
+	}
+
+	static Method computeMethod(Message message){
 		Exchange ex=message.getExchange();
 		BindingOperationInfo bop = ex.get(BindingOperationInfo.class);
 		if(bop==null)
 			return null;
 
-		MethodDispatcher md = (MethodDispatcher)ex.getService().get(MethodDispatcher.class.getName());
-		return md.getMethod(bop);
+		Method m = bop.getProperty(METHOD_PROPERTY, Method.class);
+		if(m==null){
+			MethodDispatcher md = (MethodDispatcher)ex.getService().get(MethodDispatcher.class.getName());
+			m = md!=null ? md.getMethod(bop) : null;
+			if(m!=null)bop.setProperty(METHOD_PROPERTY, m);
+		}
+		return m;
+	}
+
+	/**
+	 * get the SOAP action declared for the operation, which is looked up once and
+	 * then kept in the operation's properties
+	 * @return the action or <code>null</code> if none is declared, i.e. the action
+	 * must be taken from the message
+	 */
+	static String getDeclaredAction(BindingOperationInfo bop){
+		String action = bop.getProperty(ACTION_PROPERTY, String.class);
+		if(action==null){
+			BindingOperationInfo declaring = bop.isUnwrapped() ? bop.getWrappedOperation() : bop;
+			SoapOperationInfo soi = declaring.getExtensor(SoapOperationInfo.class);
+			action = soi!=null && soi.getAction()!=null ? soi.getAction() : "";
+			bop.setProperty(ACTION_PROPERTY, action);
+		}
+		return action.isEmpty() ? null : action;
 	}
 
 	/**
-	 * write DOM node to output stream in raw format (no indent)
+	 * idle identity transformers, created on first use. Unlike thread-local ones,
+	 * they are not referenced by the (container's) threads, so they do not keep
+	 * this class loader alive
+	 */
+	private static final class TransformerPool {
+		static final TransformerFactory factory = TransformerFactory.newInstance();
+		static final Queue<Transformer> idle = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * write DOM node to output stream in raw format (no indent).
+	 * Identity transformers are pooled and reused.
 	 * @param n
 	 * @param os
 	 * @throws TransformerException
 	 */
 	public static void writeXml(Node n, OutputStream os) throws TransformerException{
-		TransformerFactory tf = TransformerFactory.newInstance();
-		// identity
-		Transformer t = tf.newTransformer();
+		Transformer t = TransformerPool.idle.poll();
+		if(t==null){
+			// factories are not thread safe
+			synchronized(TransformerPool.factory){
+				t = TransformerPool.factory.newTransformer();
+			}
+		}
 		t.setOutputProperty(OutputKeys.INDENT, "no");
 		t.transform(new DOMSource(n), new StreamResult(os));
+		// do not keep references to the document and stream. A transformer
+		// that failed is not returned to the pool
+		t.reset();
+		TransformerPool.idle.offer(t);
+	}
+
+	/**
+	 * discards the pooled transformers, e.g. when the application is stopped
+	 */
+	public static void clearTransformerPool(){
+		TransformerPool.idle.clear();
 	}
 
 	/**
@@ -121,12 +201,16 @@ public class CXFUtils {
 	 * @return client's certificate path retrieved via the HttpServletRequest
 	 */
 	public static X509Certificate[] getSSLCerts(Message message){
-		X509Certificate[] certs =null;
-		HttpServletRequest req =(HttpServletRequest)message.get(AbstractHTTPDestination.HTTP_REQUEST);
-		if(req!=null){
-			certs = (X509Certificate[])req.getAttribute("jakarta.servlet.request.X509Certificate");
-		}
-		return certs;
+		return RequestSecurityContext.get(message).getSSLCerts();
+	}
+
+	/**
+	 * get the ID of the TLS session the message was received with
+	 * @param message - the incoming message
+	 * @return the TLS session ID or <code>null</code> if not available
+	 */
+	public static String getSSLSessionID(Message message){
+		return RequestSecurityContext.get(message).getSSLSessionID();
 	}
 
 	/**
@@ -135,8 +219,7 @@ public class CXFUtils {
 	 * @return the remote address as retrieved via the HttpServletRequest
 	 */
 	public static String getClientIP(Message message){
-		HttpServletRequest req = (HttpServletRequest)message.get(AbstractHTTPDestination.HTTP_REQUEST);
-		return req!=null? req.getRemoteAddr() : null ;
+		return RequestSecurityContext.get(message).getClientIP();
 	}
 
 	/**
@@ -145,11 +228,66 @@ public class CXFUtils {
 	 * @return HTTPAuthNTokens or <code>null</code> if not available
 	 */
 	public static HTTPAuthNTokens getHTTPCredentials(Message message) {
-		String decoded = getTokenValue("Basic",message,true);
-		if(decoded == null)return null;
-		String[]split = decoded.split(":",2);
-		return split.length == 2 ? 
-			new HTTPAuthNTokens(split[0], split[1]) : new HTTPAuthNTokens(split[0], null);
+		return RequestSecurityContext.get(message).getHTTPCredentials();
+	}
+
+	/**
+	 * parse the HTTP Basic credentials from the Authorization header, decoding
+	 * the Base64 value directly from the header into a single buffer
+	 * @param aa - value of the Authorization header, can be <code>null</code>
+	 * @return HTTPAuthNTokens or <code>null</code> if not available
+	 */
+	static HTTPAuthNTokens parseBasicCredentials(String aa) {
+		int start = getTokenStart("Basic", aa);
+		if(start<0)return null;
+		byte[] decoded = decodeBase64(aa, start);
+		int colon = 0;
+		while(colon<decoded.length && decoded[colon]!=':')colon++;
+		String user = new String(decoded, 0, colon, StandardCharsets.UTF_8);
+		if(colon==decoded.length)return new HTTPAuthNTokens(user, null);
+		return new HTTPAuthNTokens(user, new String(decoded, colon+1, decoded.length-colon-1, StandardCharsets.UTF_8));
+	}
+
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(BASE64_VALUES, (byte)-1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for(int i=0; i<alphabet.length(); i++){
+			BASE64_VALUES[alphabet.charAt(i)] = (byte)i;
+		}
+		// URL-safe variant
+		BASE64_VALUES['-'] = 62;
+		BASE64_VALUES['_'] = 63;
+	}
+
+	/**
+	 * leniently decode Base64 starting at the given position, ignoring characters
+	 * outside the alphabet and stopping at padding
+	 */
+	static byte[] decodeBase64(String s, int from) {
+		int len = s.length();
+		int chars = 0;
+		for(int i=from; i<len; i++){
+			char c = s.charAt(i);
+			if(c=='=')break;
+			if(c<128 && BASE64_VALUES[c]>=0)chars++;
+		}
+		byte[] out = new byte[chars*3/4];
+		int acc = 0, bits = 0, pos = 0;
+		for(int i=from; i<len && pos<out.length; i++){
+			char c = s.charAt(i);
+			if(c=='=')break;
+			if(c>=128 || BASE64_VALUES[c]<0)continue;
+			acc = (acc<<6) | BASE64_VALUES[c];
+			bits += 6;
+			if(bits>=8){
+				bits -= 8;
+				out[pos++] = (byte)(acc>>bits);
+				acc &= (1<<bits)-1;
+			}
+		}
+		return out;
 	}
 
 	/**
@@ -158,31 +296,35 @@ public class CXFUtils {
 	 * @return bearer token or <code>null</code> if not present
 	 */
 	public static String getBearerToken(Message message) {
-		return getTokenValue("Bearer",message,false);
+		return RequestSecurityContext.get(message).getBearerToken();
+	}
+
+	/**
+	 * @param type - token type, e.g. "Bearer" 
+	 * @param aa - value of the Authorization header, can be <code>null</code>
+	 * @return the token or <code>null</code>
+	 */
+	static String getTokenValue(String type, String aa){
+		int start = getTokenStart(type, aa);
+		return start<0 ? null : aa.substring(start);
 	}
 
 	/**
 	 * @param type - token type, e.g. "Basic" 
-	 * @param message
-	 * @param decode - whether to base64 decode (required for Basic, not for Bearer token)
-	 * @return
-	 */
-	private static String getTokenValue(String type, Message message, boolean decode){
-		HttpServletRequest req =(HttpServletRequest)message.get(AbstractHTTPDestination.HTTP_REQUEST);
-		if (req == null)
-			return null; 
-		String aa = req.getHeader("Authorization");
+	 * @param aa - value of the Authorization header, can be <code>null</code>
+	 * @return the position of the token value in the header, or -1 if not of the given type
+	 */
+	private static int getTokenStart(String type, String aa){
 		if (aa == null)
-			return null;
+			return -1;
 		if (aa.length() < type.length()+1)
 		{
 			logger.warn("Ignoring too short Authorization header element in " +
 					"HTTP request: " + aa);
-			return null;
+			return -1;
 		}
-		if(!aa.startsWith(type))return null;
-		String encoded = aa.substring(type.length()+1);
-		return decode ? new String(Base64.decodeBase64(encoded.getBytes())) : encoded;
+		if(!aa.startsWith(type))return -1;
+		return type.length()+1;
 	}
 	
 	/**
@@ -190,7 +332,7 @@ public class CXFUtils {
 	 * @param message - the incoming SOAP message
 	 */
 	public static HttpServletRequest getServletRequest(Message message){
-		return (HttpServletRequest)message.get(AbstractHTTPDestination.HTTP_REQUEST);
+		return RequestSecurityContext.get(message).getServletRequest();
 	}
 
 }
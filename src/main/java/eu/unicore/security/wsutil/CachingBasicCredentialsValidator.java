@@ -0,0 +1,155 @@
+package eu.unicore.security.wsutil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.cxf.message.Message;
+
+import eu.unicore.security.HTTPAuthNTokens;
+
+/**
+ * Server side: checks HTTP Basic credentials using a {@link BasicCredentialsVerifier},
+ * remembering successful checks for a short time, so that clients sending the same
+ * credentials with every request do not pay for the password hashing each time.
+ * <p>
+ * Entries are keyed by an HMAC of the length-prefixed username and the password, so that
+ * no two credentials share a key, computed with a random
+ * key created for each instance, so neither the passwords nor hashes that could be
+ * attacked offline are kept in memory. Only successful checks are cached, so that
+ * guessing passwords does not displace valid entries and each guess is checked.
+ * When the cache grows beyond its maximum size, the entries expiring first are evicted
+ * (see {@link ExpiringCache}).
+ * <p>
+ * This class is thread safe.
+ */
+public class CachingBasicCredentialsValidator
+{
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	public static final long DEFAULT_TTL = 60000;
+
+	private final BasicCredentialsVerifier verifier;
+	private final long ttl;
+
+	private final SecretKeySpec key;
+	private final ThreadLocal<Mac> macs;
+
+	private final ExpiringCache<String, String> cache;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong verifications = new AtomicLong();
+
+	public CachingBasicCredentialsValidator(BasicCredentialsVerifier verifier)
+	{
+		this(verifier, DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+	}
+
+	/**
+	 * @param verifier - checks credentials not found in the cache
+	 * @param maxEntries - maximum number of cached credentials
+	 * @param ttl - time (ms) a successful check is remembered
+	 */
+	public CachingBasicCredentialsValidator(BasicCredentialsVerifier verifier, int maxEntries, long ttl)
+	{
+		this.cache = new ExpiringCache<>(maxEntries);
+		this.verifier = verifier;
+		this.ttl = ttl;
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		this.key = new SecretKeySpec(secret, "HmacSHA256");
+		this.macs = ThreadLocal.withInitial(this::createMac);
+	}
+
+	/**
+	 * check the HTTP Basic credentials sent with the message
+	 * @return the username, or <code>null</code> if there are no credentials or they are not valid
+	 * @throws IOException if the credentials could not be checked
+	 */
+	public String validate(Message message) throws IOException
+	{
+		HTTPAuthNTokens creds = CXFUtils.getHTTPCredentials(message);
+		if(creds==null || creds.getPasswd()==null)return null;
+		return validate(creds.getUserName(), creds.getPasswd()) ? creds.getUserName() : null;
+	}
+
+	/**
+	 * @return <code>true</code> if the password is correct
+	 * @throws IOException if the credentials could not be checked
+	 */
+	public boolean validate(String username, String password) throws IOException
+	{
+		String hash = hash(username, password);
+		long now = System.currentTimeMillis();
+		if(cache.get(hash, now)!=null){
+			hits.incrementAndGet();
+			return true;
+		}
+		verifications.incrementAndGet();
+		if(!verifier.verify(username, password))return false;
+		// the value is the username, for invalidating
+		cache.put(hash, username, now+ttl);
+		return true;
+	}
+
+	/**
+	 * forget all cached credentials of the user, e.g. after the password was changed
+	 */
+	public void invalidate(String username)
+	{
+		cache.removeIf(username::equals);
+	}
+
+	public void clear()
+	{
+		cache.clear();
+	}
+
+	public int getSize()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * @return number of validations answered from the cache
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return number of calls to the {@link BasicCredentialsVerifier}
+	 */
+	public long getVerifications()
+	{
+		return verifications.get();
+	}
+
+	private String hash(String username, String password)
+	{
+		Mac mac = macs.get();
+		byte[] user = username.getBytes(StandardCharsets.UTF_8);
+		// length prefix, so that the boundary between username and password is unambiguous
+		mac.update(ByteBuffer.allocate(4).putInt(user.length).array());
+		mac.update(user);
+		return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private Mac createMac()
+	{
+		try{
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(key);
+			return mac;
+		}catch(GeneralSecurityException e){
+			throw new IllegalStateException(e);
+		}
+	}
+}
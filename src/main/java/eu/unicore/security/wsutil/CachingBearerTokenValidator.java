@@ -0,0 +1,202 @@
+package eu.unicore.security.wsutil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cxf.message.Message;
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.security.wsutil.BearerTokenVerifier.VerifiedToken;
+import eu.unicore.util.Log;
+
+/**
+ * Server side: validates bearer tokens using a {@link BearerTokenVerifier}, caching
+ * the results so that the same token is not verified again on every request.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the token, so the tokens themselves are
+ * not kept in memory. Valid tokens are cached until they expire, but at most for
+ * the configured time; invalid tokens are cached for a shorter time. When the
+ * cache grows beyond its maximum size, the entries expiring first are evicted
+ * (see {@link ExpiringCache}).
+ * Concurrent first-time validations of the same token are coalesced into a single
+ * verification. Failed verifications (i.e. {@link IOException}s) are not cached.
+ * <p>
+ * This class is thread safe.
+ */
+public class CachingBearerTokenValidator
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, CachingBearerTokenValidator.class);
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final long DEFAULT_MAX_TTL = 300000;
+	public static final long DEFAULT_NEGATIVE_TTL = 30000;
+
+	private final BearerTokenVerifier verifier;
+	private final long maxTTL;
+	private final long negativeTTL;
+
+	private final ExpiringCache<String, Entry> cache;
+	private final Map<String, CompletableFuture<Entry>> pending = new ConcurrentHashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong verifications = new AtomicLong();
+
+	public CachingBearerTokenValidator(BearerTokenVerifier verifier)
+	{
+		this(verifier, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+
+	/**
+	 * @param verifier - verifies tokens not found in the cache
+	 * @param maxEntries - maximum number of cached tokens
+	 * @param maxTTL - maximum time (ms) a valid token is cached
+	 * @param negativeTTL - time (ms) an invalid token is cached
+	 */
+	public CachingBearerTokenValidator(BearerTokenVerifier verifier, int maxEntries, long maxTTL, long negativeTTL)
+	{
+		this.cache = new ExpiringCache<>(maxEntries);
+		this.verifier = verifier;
+		this.maxTTL = maxTTL;
+		this.negativeTTL = negativeTTL;
+	}
+
+	/**
+	 * validate the bearer token sent with the message
+	 * @return the verified token, or <code>null</code> if there is no token or it is not valid
+	 * @throws IOException if the token could not be verified
+	 */
+	public VerifiedToken validate(Message message) throws IOException
+	{
+		String token = CXFUtils.getBearerToken(message);
+		return token!=null ? validate(token) : null;
+	}
+
+	/**
+	 * @param token - the raw bearer token
+	 * @return the verified token, or <code>null</code> if it is not valid
+	 * @throws IOException if the token could not be verified
+	 */
+	public VerifiedToken validate(String token) throws IOException
+	{
+		String key = hash(token);
+		Entry e = cache.get(key, System.currentTimeMillis());
+		if(e!=null){
+			hits.incrementAndGet();
+			return e.token;
+		}
+		CompletableFuture<Entry> f = new CompletableFuture<>();
+		CompletableFuture<Entry> existing = pending.putIfAbsent(key, f);
+		if(existing!=null){
+			return await(existing).token;
+		}
+		try{
+			// another thread may have just finished
+			e = cache.get(key, System.currentTimeMillis());
+			if(e==null){
+				e = verify(token);
+				cache.put(key, e, e.expires);
+			}
+			f.complete(e);
+			return e.token;
+		}catch(Throwable ex){
+			// also for Errors, otherwise the waiting threads would block forever
+			f.completeExceptionally(ex);
+			throw ex;
+		}finally{
+			pending.remove(key, f);
+		}
+	}
+
+	private Entry verify(String token) throws IOException
+	{
+		verifications.incrementAndGet();
+		VerifiedToken verified = verifier.verify(token);
+		long now = System.currentTimeMillis();
+		if(verified==null || (verified.getExpires()>0 && verified.getExpires()<=now)){
+			log.debug("Bearer token is not valid");
+			return new Entry(null, now+negativeTTL);
+		}
+		long expires = now+maxTTL;
+		if(verified.getExpires()>0){
+			expires = Math.min(expires, verified.getExpires());
+		}
+		return new Entry(verified, expires);
+	}
+
+	private Entry await(CompletableFuture<Entry> f) throws IOException
+	{
+		try{
+			return f.join();
+		}catch(CompletionException ce){
+			Throwable cause = ce.getCause();
+			if(cause instanceof IOException)throw new IOException(cause.getMessage(), cause);
+			if(cause instanceof RuntimeException)throw (RuntimeException)cause;
+			if(cause instanceof Error)throw (Error)cause;
+			throw ce;
+		}
+	}
+
+	/**
+	 * removes the token from the cache, e.g. after it was revoked
+	 */
+	public void invalidate(String token)
+	{
+		cache.remove(hash(token));
+	}
+
+	public void clear()
+	{
+		cache.clear();
+	}
+
+	public int getSize()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * @return number of validations answered from the cache
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return number of calls to the {@link BearerTokenVerifier}
+	 */
+	public long getVerifications()
+	{
+		return verifications.get();
+	}
+
+	private static String hash(String token)
+	{
+		try{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(md.digest(token.getBytes(StandardCharsets.UTF_8)));
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Entry
+	{
+		final VerifiedToken token;
+		final long expires;
+
+		Entry(VerifiedToken token, long expires)
+		{
+			this.token = token;
+			this.expires = expires;
+		}
+	}
+}
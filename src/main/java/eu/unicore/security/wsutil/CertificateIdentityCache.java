@@ -0,0 +1,203 @@
+package eu.unicore.security.wsutil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cxf.message.Message;
+
+/**
+ * Server side: caches the identity resolved from a client's certificate chain,
+ * together with the validation result, since the chain does not change while the
+ * TLS session lasts.
+ * <p>
+ * Entries are keyed by the TLS session ID if the container provides it, or else by
+ * the SHA-256 fingerprint of the leaf certificate. An entry is only used if the leaf
+ * certificate still matches, and expires with the leaf certificate, but at the latest
+ * after the configured time. Failed resolutions are only cached for a short time, so
+ * that e.g. a temporary failure of the attribute source does not lock out the client
+ * for long. Entries are removed when {@link #invalidateSession(String)}
+ * is called for a TLS session that ended, and all entries become stale when
+ * {@link #trustStoreChanged()} is called. When the cache grows beyond its maximum
+ * size, the entries expiring first are evicted (see {@link ExpiringCache}).
+ * <p>
+ * This class is thread safe.
+ *
+ * @param <T> - type of the identity
+ */
+public class CertificateIdentityCache<T>
+{
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final long DEFAULT_MAX_TTL = 600000;
+	public static final long DEFAULT_NEGATIVE_TTL = 10000;
+
+	/**
+	 * servlet request attribute holding the TLS session ID
+	 */
+	public static final String SSL_SESSION_ID_ATTRIBUTE = "jakarta.servlet.request.ssl_session_id";
+
+	private final CertificateIdentityResolver<T> resolver;
+	private final long maxTTL;
+	private final long negativeTTL;
+
+	private final ExpiringCache<String, Entry<T>> cache;
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong resolutions = new AtomicLong();
+
+	public CertificateIdentityCache(CertificateIdentityResolver<T> resolver)
+	{
+		this(resolver, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_TTL);
+	}
+
+	/**
+	 * @param resolver - validates and maps chains not found in the cache
+	 * @param maxEntries - maximum number of cached identities
+	 * @param maxTTL - maximum time (ms) an identity is cached
+	 */
+	public CertificateIdentityCache(CertificateIdentityResolver<T> resolver, int maxEntries, long maxTTL)
+	{
+		this(resolver, maxEntries, maxTTL, Math.min(maxTTL, DEFAULT_NEGATIVE_TTL));
+	}
+
+	/**
+	 * @param resolver - validates and maps chains not found in the cache
+	 * @param maxEntries - maximum number of cached identities
+	 * @param maxTTL - maximum time (ms) an identity is cached
+	 * @param negativeTTL - time (ms) a failed resolution is cached, 0 to not cache failures
+	 */
+	public CertificateIdentityCache(CertificateIdentityResolver<T> resolver, int maxEntries, long maxTTL, long negativeTTL)
+	{
+		this.cache = new ExpiringCache<>(maxEntries);
+		this.resolver = resolver;
+		this.maxTTL = maxTTL;
+		this.negativeTTL = negativeTTL;
+	}
+
+	/**
+	 * resolve the identity of the client that sent the message
+	 * @return the identity or <code>null</code> if the client did not present a certificate
+	 * @throws CertificateException if the chain is not valid or cannot be mapped
+	 */
+	public T resolve(Message message) throws CertificateException
+	{
+		X509Certificate[] chain = CXFUtils.getSSLCerts(message);
+		if(chain==null || chain.length==0)return null;
+		return resolve(CXFUtils.getSSLSessionID(message), chain);
+	}
+
+	/**
+	 * @param sslSessionID - the TLS session ID, can be <code>null</code>
+	 * @param chain - the client's certificate chain, leaf first
+	 * @return the identity
+	 * @throws CertificateException if the chain is not valid or cannot be mapped
+	 */
+	public T resolve(String sslSessionID, X509Certificate[] chain) throws CertificateException
+	{
+		X509Certificate leaf = chain[0];
+		String key = sslSessionID!=null ? "s:"+sslSessionID : "c:"+fingerprint(leaf);
+		long now = System.currentTimeMillis();
+		long gen = generation.get();
+		Entry<T> e = cache.get(key, now);
+		if(e!=null){
+			if(e.generation==gen && e.leaf.equals(leaf)){
+				hits.incrementAndGet();
+				return e.get();
+			}
+			cache.remove(key, e);
+		}
+		resolutions.incrementAndGet();
+		T identity = null;
+		CertificateException error = null;
+		try{
+			identity = resolver.resolve(chain);
+		}catch(CertificateException ce){
+			error = ce;
+		}
+		long expires = Math.min(now+(error==null ? maxTTL : negativeTTL), leaf.getNotAfter().getTime());
+		e = new Entry<>(leaf, identity, error, gen);
+		if(expires>now){
+			cache.put(key, e, expires);
+		}
+		return e.get();
+	}
+
+	/**
+	 * removes the entry of a TLS session that ended
+	 */
+	public void invalidateSession(String sslSessionID)
+	{
+		cache.remove("s:"+sslSessionID);
+	}
+
+	/**
+	 * must be called after the trust store was changed, so that chains are validated again
+	 */
+	public void trustStoreChanged()
+	{
+		generation.incrementAndGet();
+		cache.clear();
+	}
+
+	public int getSize()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * @return number of resolutions answered from the cache
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return number of calls to the {@link CertificateIdentityResolver}
+	 */
+	public long getResolutions()
+	{
+		return resolutions.get();
+	}
+
+	/**
+	 * @return the Base64 encoded SHA-256 fingerprint of the certificate
+	 */
+	public static String fingerprint(X509Certificate cert) throws CertificateEncodingException
+	{
+		try{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(md.digest(cert.getEncoded()));
+		}catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Entry<T>
+	{
+		final X509Certificate leaf;
+		final T identity;
+		final CertificateException error;
+		final long generation;
+
+		Entry(X509Certificate leaf, T identity, CertificateException error, long generation)
+		{
+			this.leaf = leaf;
+			this.identity = identity;
+			this.error = error;
+			this.generation = generation;
+		}
+
+		T get() throws CertificateException
+		{
+			if(error!=null)throw new CertificateException(error.getMessage(), error);
+			return identity;
+		}
+	}
+}
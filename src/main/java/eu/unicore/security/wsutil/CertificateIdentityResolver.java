@@ -0,0 +1,20 @@
+package eu.unicore.security.wsutil;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Validates a client's certificate chain and maps it to a local identity.
+ *
+ * @param <T> - type of the identity, e.g. a DN or a local user
+ * @see CertificateIdentityCache
+ */
+public interface CertificateIdentityResolver<T>
+{
+	/**
+	 * @param chain - the client's certificate chain, leaf first
+	 * @return the identity
+	 * @throws CertificateException if the chain is not valid or cannot be mapped
+	 */
+	public T resolve(X509Certificate[] chain) throws CertificateException;
+}
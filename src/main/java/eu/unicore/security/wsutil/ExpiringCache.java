@@ -0,0 +1,164 @@
+package eu.unicore.security.wsutil;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bounded map whose entries expire at a given time, used by the caching validators.
+ * <p>
+ * Besides the map, the entries are kept in an index ordered by expiry time. When
+ * the map grows beyond its maximum size, the entries expiring first (including the
+ * expired ones) are polled from the index until there is room for some more
+ * entries, so eviction does not sort or scan the whole map. Only one thread evicts
+ * at a time, the others do not wait for it. Expired entries are also removed when
+ * they are looked up.
+ * <p>
+ * This class is thread safe.
+ */
+class ExpiringCache<K, V>
+{
+	private final int maxEntries;
+
+	private final Map<K, Node<K, V>> map = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListSet<Node<K, V>> index = new ConcurrentSkipListSet<>();
+
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+
+	/**
+	 * @param maxEntries - maximum number of entries
+	 */
+	ExpiringCache(int maxEntries)
+	{
+		if(maxEntries<1)throw new IllegalArgumentException("Maximum number of entries must be positive");
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return the value, or <code>null</code> if there is none or it expired
+	 */
+	V get(K key, long now)
+	{
+		Node<K, V> n = map.get(key);
+		if(n==null)return null;
+		if(now>=n.expires){
+			remove(n);
+			return null;
+		}
+		return n.value;
+	}
+
+	/**
+	 * adds the value, replacing any value for the same key. If the maximum size is
+	 * exceeded, the entries expiring first are evicted.
+	 * @param expires - expiry time in millis since the epoch
+	 */
+	void put(K key, V value, long expires)
+	{
+		Node<K, V> n = new Node<>(key, value, expires, sequence.incrementAndGet());
+		index.add(n);
+		Node<K, V> previous = map.put(key, n);
+		if(previous!=null){
+			index.remove(previous);
+		}
+		if(map.size()>maxEntries)evict();
+	}
+
+	/**
+	 * removes the entry, if it still holds the given value
+	 */
+	void remove(K key, V value)
+	{
+		Node<K, V> n = map.get(key);
+		if(n!=null && n.value==value){
+			remove(n);
+		}
+	}
+
+	void remove(K key)
+	{
+		Node<K, V> n = map.remove(key);
+		if(n!=null){
+			index.remove(n);
+		}
+	}
+
+	/**
+	 * removes all entries whose value matches, at a cost proportional to the size
+	 */
+	void removeIf(Predicate<? super V> filter)
+	{
+		for(Iterator<Node<K, V>> it = map.values().iterator(); it.hasNext(); ){
+			Node<K, V> n = it.next();
+			if(filter.test(n.value)){
+				it.remove();
+				index.remove(n);
+			}
+		}
+	}
+
+	void clear()
+	{
+		map.clear();
+		index.clear();
+	}
+
+	int size()
+	{
+		return map.size();
+	}
+
+	private void remove(Node<K, V> n)
+	{
+		if(map.remove(n.key, n)){
+			index.remove(n);
+		}
+	}
+
+	/**
+	 * evicts the entries expiring first, leaving room for some more entries to avoid
+	 * evicting on every insert
+	 */
+	private void evict()
+	{
+		if(!evicting.compareAndSet(false, true))return;
+		try{
+			int target = maxEntries - maxEntries/10;
+			Node<K, V> n;
+			while(map.size()>target && (n = index.pollFirst())!=null){
+				map.remove(n.key, n);
+			}
+		}finally{
+			evicting.set(false);
+		}
+	}
+
+	private static final class Node<K, V> implements Comparable<Node<K, V>>
+	{
+		final K key;
+		final V value;
+		final long expires;
+		// distinguishes entries expiring at the same time
+		final long sequence;
+
+		Node(K key, V value, long expires, long sequence)
+		{
+			this.key = key;
+			this.value = value;
+			this.expires = expires;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Node<K, V> o)
+		{
+			int c = Long.compare(expires, o.expires);
+			return c!=0 ? c : Long.compare(sequence, o.sequence);
+		}
+	}
+}
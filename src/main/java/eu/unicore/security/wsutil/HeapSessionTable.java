@@ -0,0 +1,40 @@
+package eu.unicore.security.wsutil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default {@link SessionTable} keeping the sessions on the Java heap.
+ * Lookups do not take any lock.
+ */
+public class HeapSessionTable implements SessionTable
+{
+	private final Map<String, SecuritySession> sessions = new ConcurrentHashMap<>();
+
+	@Override
+	public SecuritySession put(SecuritySession session)
+	{
+		return sessions.put(session.getSessionID(), session);
+	}
+
+	@Override
+	public SecuritySession get(String sessionID)
+	{
+		return sessions.get(sessionID);
+	}
+
+	@Override
+	public boolean remove(String sessionID, long expiryTime)
+	{
+		SecuritySession session = sessions.get(sessionID);
+		return session!=null && session.getExpiryTime()==expiryTime
+				&& sessions.remove(sessionID, session);
+	}
+
+	@Override
+	public int size()
+	{
+		return sessions.size();
+	}
+
+}
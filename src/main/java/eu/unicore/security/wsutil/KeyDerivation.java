@@ -0,0 +1,55 @@
+package eu.unicore.security.wsutil;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives keys from shared secrets using HKDF with HMAC-SHA256 (RFC 5869).
+ * Separate keys are derived for separate purposes, identified by the info string.
+ * <p>
+ * HKDF does not slow down guessing, so the secrets must have enough entropy
+ * by themselves, e.g. 32 random bytes.
+ */
+final class KeyDerivation
+{
+	private static final String MAC = "HmacSHA256";
+	private static final int HASH_LENGTH = 32;
+
+	private KeyDerivation(){}
+
+	/**
+	 * @param secret - the input keying material
+	 * @param salt - a non-secret value identifying the application
+	 * @param info - the purpose of the key
+	 * @param length - key length in bytes, at most 8160
+	 */
+	static byte[] hkdf(byte[] secret, String salt, String info, int length)
+	{
+		if(length<1 || length>255*HASH_LENGTH)
+			throw new IllegalArgumentException("Invalid key length "+length);
+		try{
+			Mac mac = Mac.getInstance(MAC);
+			mac.init(new SecretKeySpec(salt.getBytes(StandardCharsets.UTF_8), MAC));
+			byte[] prk = mac.doFinal(secret);
+			mac.init(new SecretKeySpec(prk, MAC));
+			byte[] result = new byte[length];
+			byte[] block = new byte[0];
+			byte[] infoBytes = info.getBytes(StandardCharsets.UTF_8);
+			for(int i=0, offset=0; offset<length; i++){
+				mac.update(block);
+				mac.update(infoBytes);
+				mac.update((byte)(i+1));
+				block = mac.doFinal();
+				int n = Math.min(block.length, length-offset);
+				System.arraycopy(block, 0, result, offset, n);
+				offset += n;
+			}
+			return result;
+		}catch(GeneralSecurityException e){
+			throw new IllegalStateException(e);
+		}
+	}
+}
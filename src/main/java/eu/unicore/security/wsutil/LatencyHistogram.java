@@ -0,0 +1,87 @@
+package eu.unicore.security.wsutil;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets: bucket <code>i</code>
+ * counts durations below 2<sup>i</sup> ns (and at least 2<sup>i-1</sup> ns).
+ * Recording does not allocate.
+ */
+public class LatencyHistogram
+{
+	public static final int BUCKETS = 64;
+
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+	public LatencyHistogram()
+	{
+		for(int i=0; i<BUCKETS; i++){
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos)
+	{
+		nanos = Math.max(0, nanos);
+		count.increment();
+		totalNanos.add(nanos);
+		buckets[Math.min(BUCKETS-1, 64-Long.numberOfLeadingZeros(nanos))].increment();
+	}
+
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	public long getTotalNanos()
+	{
+		return totalNanos.sum();
+	}
+
+	public double getMeanMicros()
+	{
+		long n = count.sum();
+		return n>0 ? totalNanos.sum()/1000.0/n : 0;
+	}
+
+	/**
+	 * @param quantile - between 0 and 1, e.g. 0.99
+	 * @return the upper bound of the bucket containing the quantile, in microseconds
+	 */
+	public double getPercentileMicros(double quantile)
+	{
+		long[] counts = getBuckets();
+		long total = 0;
+		for(long c: counts)total += c;
+		if(total==0)return 0;
+		long threshold = (long)Math.ceil(total*quantile);
+		long sum = 0;
+		for(int i=0; i<BUCKETS; i++){
+			sum += counts[i];
+			if(sum>=threshold){
+				return Math.pow(2, i)/1000.0;
+			}
+		}
+		return Math.pow(2, BUCKETS-1)/1000.0;
+	}
+
+	public long[] getBuckets()
+	{
+		long[] counts = new long[BUCKETS];
+		for(int i=0; i<BUCKETS; i++){
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	public void reset()
+	{
+		count.reset();
+		totalNanos.reset();
+		for(LongAdder a: buckets){
+			a.reset();
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package eu.unicore.security.wsutil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.util.Log;
+
+/**
+ * {@link SessionTable} keeping serialized sessions in a direct (off-heap) memory arena,
+ * so that large session populations do not burden the garbage collector.
+ * Sessions are decoded on each lookup, their security tokens only when they are
+ * accessed.
+ * <p>
+ * Records are allocated sequentially in the arena. Freed space is reclaimed by compacting
+ * the arena when the free space at its end is not sufficient for a new record.
+ * The index is an open-addressing hash table with linear probing, sized for the
+ * configured maximum number of sessions.
+ * <p>
+ * Lookups run under an optimistic read lock and only fall back to a shared read lock
+ * if they overlap with a modification.
+ * <p>
+ * Note that modifications of a session returned from this table (e.g. its last
+ * accessed time) are not written back.
+ */
+public class OffHeapSessionTable implements SessionTable
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, OffHeapSessionTable.class);
+
+	// expiry time and ID length
+	private static final int HEADER_LENGTH = 8 + 2;
+
+	private final ByteBuffer arena;
+
+	private final int maxSessions;
+
+	// index: slot is empty if its length is 0
+	private final int[] hashes;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final int mask;
+
+	private final StampedLock lock = new StampedLock();
+
+	// the following are guarded by the write lock
+	private int entries = 0;
+	private int top = 0;
+	private long usedBytes = 0;
+	private long compactions = 0;
+	private byte[] copyBuffer = new byte[1024];
+
+	/**
+	 * @param maxSessions - maximum number of sessions held in the table
+	 * @param memoryBudget - size of the off-heap memory area in bytes
+	 */
+	public OffHeapSessionTable(int maxSessions, int memoryBudget)
+	{
+		if(maxSessions<1 || maxSessions>1<<29)
+			throw new IllegalArgumentException("Maximum number of sessions must be between 1 and 2^29");
+		if(memoryBudget<1)
+			throw new IllegalArgumentException("Memory budget must be positive");
+		this.maxSessions = maxSessions;
+		this.arena = ByteBuffer.allocateDirect(memoryBudget);
+		int slots = Integer.highestOneBit(maxSessions*2-1)<<1;
+		this.hashes = new int[slots];
+		this.offsets = new int[slots];
+		this.lengths = new int[slots];
+		this.mask = slots-1;
+	}
+
+	@Override
+	public SecuritySession put(SecuritySession session)
+	{
+		byte[] id = session.getSessionID().getBytes(StandardCharsets.UTF_8);
+		byte[] payload = SecuritySessionCodec.encode(session);
+		int length = HEADER_LENGTH + id.length + payload.length;
+		int hash = hash(id);
+		long stamp = lock.writeLock();
+		try{
+			int slot = findSlot(id, hash);
+			if(slot<0 && entries>=maxSessions){
+				throw new IllegalStateException("Session table is full ("+maxSessions+" sessions)");
+			}
+			int offset = allocate(length);
+			// allocation may have compacted the arena
+			slot = findSlot(id, hash);
+			SecuritySession previous = null;
+			if(slot>=0){
+				previous = SecuritySessionCodec.decodeLazily(readPayload(slot));
+				free(slot);
+			}
+			arena.putLong(offset, session.getExpiryTime());
+			arena.putShort(offset+8, (short)id.length);
+			arena.put(offset+HEADER_LENGTH, id);
+			arena.put(offset+HEADER_LENGTH+id.length, payload);
+			insert(hash, offset, length);
+			return previous;
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public SecuritySession get(String sessionID)
+	{
+		byte[] id = sessionID.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(id);
+		byte[] payload = null;
+		long stamp = lock.tryOptimisticRead();
+		if(stamp!=0){
+			try{
+				int slot = findSlot(id, hash);
+				// do not allocate the payload based on inconsistent values
+				if(lock.validate(stamp)){
+					payload = slot>=0 ? readPayload(slot) : null;
+				}
+			}catch(RuntimeException e){
+				// inconsistent read caused by a concurrent update
+			}
+			if(!lock.validate(stamp))stamp = 0;
+		}
+		if(stamp==0){
+			stamp = lock.readLock();
+			try{
+				payload = readPayload(id, hash);
+			}finally{
+				lock.unlockRead(stamp);
+			}
+		}
+		return payload!=null ? SecuritySessionCodec.decodeLazily(payload) : null;
+	}
+
+	@Override
+	public boolean remove(String sessionID, long expiryTime)
+	{
+		byte[] id = sessionID.getBytes(StandardCharsets.UTF_8);
+		long stamp = lock.writeLock();
+		try{
+			int slot = findSlot(id, hash(id));
+			if(slot<0 || arena.getLong(offsets[slot])!=expiryTime)
+				return false;
+			free(slot);
+			return true;
+		}finally{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int size()
+	{
+		long stamp = lock.readLock();
+		try{
+			return entries;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return size of the off-heap memory area in bytes
+	 */
+	public long getCapacityBytes()
+	{
+		return arena.capacity();
+	}
+
+	/**
+	 * @return number of bytes occupied by live session records
+	 */
+	public long getUsedBytes()
+	{
+		long stamp = lock.readLock();
+		try{
+			return usedBytes;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the fraction of the allocated part of the memory area that is
+	 * not occupied by live records, i.e. reclaimable by compaction
+	 */
+	public double getFragmentation()
+	{
+		long stamp = lock.readLock();
+		try{
+			return top==0 ? 0 : (top-usedBytes)/(double)top;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return number of times the memory area was compacted
+	 */
+	public long getCompactions()
+	{
+		long stamp = lock.readLock();
+		try{
+			return compactions;
+		}finally{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private static int hash(byte[] id)
+	{
+		int h = Arrays.hashCode(id);
+		return h ^ (h>>>16);
+	}
+
+	private boolean idMatches(int slot, byte[] id)
+	{
+		int offset = offsets[slot];
+		if(arena.getShort(offset+8)!=id.length)return false;
+		for(int i=0; i<id.length; i++){
+			if(arena.get(offset+HEADER_LENGTH+i)!=id[i])return false;
+		}
+		return true;
+	}
+
+	private int findSlot(byte[] id, int hash)
+	{
+		int slot = hash & mask;
+		for(int i=0; i<=mask; i++){
+			if(lengths[slot]==0)return -1;
+			if(hashes[slot]==hash && idMatches(slot, id))return slot;
+			slot = (slot+1) & mask;
+		}
+		return -1;
+	}
+
+	private byte[] readPayload(byte[] id, int hash)
+	{
+		int slot = findSlot(id, hash);
+		return slot>=0 ? readPayload(slot) : null;
+	}
+
+	private byte[] readPayload(int slot)
+	{
+		int offset = offsets[slot];
+		int length = lengths[slot];
+		int start = HEADER_LENGTH + arena.getShort(offset+8);
+		if(start<HEADER_LENGTH || length<start || offset<0 || offset>arena.capacity()-length){
+			throw new IllegalStateException("Inconsistent session record");
+		}
+		byte[] payload = new byte[length-start];
+		arena.get(offset+start, payload);
+		return payload;
+	}
+
+	private void insert(int hash, int offset, int length)
+	{
+		int slot = hash & mask;
+		while(lengths[slot]!=0){
+			slot = (slot+1) & mask;
+		}
+		hashes[slot] = hash;
+		offsets[slot] = offset;
+		lengths[slot] = length;
+		entries++;
+		usedBytes += length;
+	}
+
+	/**
+	 * releases the record in the given slot and removes the slot from the index,
+	 * shifting back subsequent entries of the probe sequence
+	 */
+	private void free(int slot)
+	{
+		usedBytes -= lengths[slot];
+		if(offsets[slot]+lengths[slot]==top){
+			top = offsets[slot];
+		}
+		entries--;
+		int i = slot;
+		int j = slot;
+		while(true){
+			j = (j+1) & mask;
+			if(lengths[j]==0)break;
+			int home = hashes[j] & mask;
+			boolean canMove = i<=j ? (home<=i || home>j) : (home<=i && home>j);
+			if(canMove){
+				hashes[i] = hashes[j];
+				offsets[i] = offsets[j];
+				lengths[i] = lengths[j];
+				i = j;
+			}
+		}
+		lengths[i] = 0;
+	}
+
+	private int allocate(int length)
+	{
+		if(top+length>arena.capacity()){
+			if(arena.capacity()-usedBytes<length){
+				throw new IllegalStateException("Off-heap session memory exhausted ("
+						+usedBytes+" of "+arena.capacity()+" bytes used)");
+			}
+			compact();
+		}
+		int offset = top;
+		top += length;
+		return offset;
+	}
+
+	/**
+	 * moves all live records to the start of the arena, keeping their order
+	 */
+	private void compact()
+	{
+		Integer[] slots = new Integer[entries];
+		int n = 0;
+		for(int i=0; i<=mask; i++){
+			if(lengths[i]!=0)slots[n++] = i;
+		}
+		Arrays.sort(slots, (a,b) -> Integer.compare(offsets[a], offsets[b]));
+		int dest = 0;
+		for(int slot: slots){
+			int length = lengths[slot];
+			if(offsets[slot]!=dest){
+				if(copyBuffer.length<length){
+					copyBuffer = new byte[length];
+				}
+				arena.get(offsets[slot], copyBuffer, 0, length);
+				arena.put(dest, copyBuffer, 0, length);
+				offsets[slot] = dest;
+			}
+			dest += length;
+		}
+		top = dest;
+		compactions++;
+		log.debug("Compacted off-heap session table, {} bytes in use", usedBytes);
+	}
+}
@@ -0,0 +1,264 @@
+package eu.unicore.security.wsutil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.cxf.bus.managers.PhaseManagerImpl;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.interceptor.Interceptor;
+import org.apache.cxf.interceptor.InterceptorProvider;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+import org.apache.cxf.service.model.BindingOperationInfo;
+
+/**
+ * Records how long requests spend in each phase of the CXF interceptor chains,
+ * per operation (identified by the qualified name of the {@link BindingOperationInfo}).
+ * Requests for which no operation was resolved, e.g. because they failed early, are
+ * recorded as {@link #UNKNOWN_OPERATION}. Since the operations are taken from the
+ * service model and not from client input, their number is bounded; as a safeguard,
+ * at most {@link #MAX_OPERATIONS} operations are tracked, further ones are recorded
+ * as {@link #UNKNOWN_OPERATION}, too.
+ * <p>
+ * A marker interceptor placed first in every phase stores the current time in an
+ * array that is allocated once per exchange, and a publishing interceptor in the
+ * last phase of the response chain records the time between consecutive marks into
+ * the operation's {@link LatencyHistogram}s. The histograms of an operation are created
+ * when a phase is first recorded, so phases that are never run do not take memory.
+ * Phase transitions do not allocate, so the timings can be left on in production.
+ * <p>
+ * Use {@link #forServer()} and install into a server endpoint, or {@link #forClient()}
+ * and install into a client, e.g. via {@link eu.unicore.security.wsutil.client.WSClientFactory#setPhaseTimings(PhaseTimings)}.
+ * On the server side, the request phases are the incoming chain and the response
+ * phases the outgoing or fault chain; on the client side it is the other way round.
+ * Exchanges without a response, i.e. one-way calls, are not recorded.
+ * <p>
+ * This class is thread safe.
+ */
+public class PhaseTimings
+{
+	/**
+	 * operation name used if the operation cannot be determined
+	 */
+	public static final String UNKNOWN_OPERATION = "unknown";
+
+	/**
+	 * maximum number of operations for which separate timings are kept
+	 */
+	public static final int MAX_OPERATIONS = 1000;
+
+	/**
+	 * name of the histogram holding the time from the first to the last mark
+	 */
+	public static final String TOTAL = "total";
+
+	private final boolean client;
+
+	/**
+	 * names of the slots, i.e. of the request phases followed by the response phases
+	 */
+	private final String[] slots;
+
+	private final List<PhaseMarker> requestMarkers = new ArrayList<>();
+	private final List<PhaseMarker> responseMarkers = new ArrayList<>();
+	private final Publisher publisher;
+
+	/**
+	 * per operation, the histogram of each slot (created on first use), followed by the total
+	 */
+	private final Map<String, AtomicReferenceArray<LatencyHistogram>> operations = new ConcurrentHashMap<>();
+
+	private PhaseTimings(boolean client)
+	{
+		this.client = client;
+		PhaseManagerImpl phases = new PhaseManagerImpl();
+		SortedSet<Phase> request = client ? phases.getOutPhases() : phases.getInPhases();
+		SortedSet<Phase> response = client ? phases.getInPhases() : phases.getOutPhases();
+		slots = new String[request.size()+response.size()];
+		int slot = 0;
+		for(Phase p: request){
+			slots[slot] = "request:"+p.getName();
+			requestMarkers.add(new PhaseMarker(p.getName(), slot++));
+		}
+		String last = null;
+		for(Phase p: response){
+			slots[slot] = "response:"+p.getName();
+			responseMarkers.add(new PhaseMarker(p.getName(), slot++));
+			last = p.getName();
+		}
+		publisher = new Publisher(last);
+	}
+
+	/**
+	 * @return timings to be installed into server endpoints
+	 */
+	public static PhaseTimings forServer()
+	{
+		return new PhaseTimings(false);
+	}
+
+	/**
+	 * @return timings to be installed into clients
+	 */
+	public static PhaseTimings forClient()
+	{
+		return new PhaseTimings(true);
+	}
+
+	/**
+	 * adds the timing interceptors to the given endpoint, client or bus.
+	 * The same instance can be installed into several of them.
+	 */
+	public void install(InterceptorProvider provider)
+	{
+		List<Interceptor<? extends Message>> requestChain =
+				client ? provider.getOutInterceptors() : provider.getInInterceptors();
+		requestChain.addAll(requestMarkers);
+		for(List<Interceptor<? extends Message>> responseChain:
+				client ? List.of(provider.getInInterceptors(), provider.getInFaultInterceptors())
+						: List.of(provider.getOutInterceptors(), provider.getOutFaultInterceptors())){
+			responseChain.addAll(responseMarkers);
+			responseChain.add(publisher);
+		}
+	}
+
+	/**
+	 * @return names of the operations for which timings were recorded
+	 */
+	public Set<String> getOperations()
+	{
+		return Collections.unmodifiableSet(operations.keySet());
+	}
+
+	/**
+	 * get the latencies of an operation's phases, in the order they are run.
+	 * Phases that were never run are omitted. The last entry is the {@link #TOTAL}.
+	 * @return histograms keyed by phase name, prefixed with "request:" or "response:"
+	 */
+	public Map<String, LatencyHistogram> getPhaseLatencies(String operation)
+	{
+		Map<String, LatencyHistogram> result = new LinkedHashMap<>();
+		AtomicReferenceArray<LatencyHistogram> histograms = operations.get(operation);
+		if(histograms==null)return result;
+		for(int i=0; i<slots.length; i++){
+			LatencyHistogram h = histograms.get(i);
+			if(h!=null)result.put(slots[i], h);
+		}
+		result.put(TOTAL, getHistogram(histograms, slots.length));
+		return result;
+	}
+
+	public void reset()
+	{
+		operations.clear();
+	}
+
+	private long[] getMarks(Exchange exchange)
+	{
+		long[] marks = (long[])exchange.get(PhaseTimings.class.getName());
+		if(marks==null){
+			marks = new long[slots.length];
+			exchange.put(PhaseTimings.class.getName(), marks);
+		}
+		return marks;
+	}
+
+	private void publish(Message message)
+	{
+		long end = System.nanoTime();
+		Exchange exchange = message.getExchange();
+		long[] marks = (long[])exchange.remove(PhaseTimings.class.getName());
+		if(marks==null)return;
+		AtomicReferenceArray<LatencyHistogram> histograms = getHistograms(getOperation(exchange));
+		int previous = -1;
+		long first = 0;
+		for(int i=0; i<marks.length; i++){
+			if(marks[i]==0)continue;
+			if(previous<0)first = marks[i];
+			else getHistogram(histograms, previous).record(marks[i]-marks[previous]);
+			previous = i;
+		}
+		if(previous<0)return;
+		getHistogram(histograms, previous).record(end-marks[previous]);
+		getHistogram(histograms, slots.length).record(end-first);
+	}
+
+	private static String getOperation(Exchange exchange)
+	{
+		BindingOperationInfo bop = exchange.getBindingOperationInfo();
+		return bop!=null && bop.getName()!=null ? bop.getName().toString() : UNKNOWN_OPERATION;
+	}
+
+	private AtomicReferenceArray<LatencyHistogram> getHistograms(String operation)
+	{
+		AtomicReferenceArray<LatencyHistogram> histograms = operations.get(operation);
+		if(histograms!=null)return histograms;
+		if(operations.size()>=MAX_OPERATIONS)operation = UNKNOWN_OPERATION;
+		return operations.computeIfAbsent(operation, k -> new AtomicReferenceArray<>(slots.length+1));
+	}
+
+	/**
+	 * @return the histogram of the slot, created if needed
+	 */
+	private static LatencyHistogram getHistogram(AtomicReferenceArray<LatencyHistogram> histograms, int slot)
+	{
+		LatencyHistogram h = histograms.get(slot);
+		if(h==null){
+			h = new LatencyHistogram();
+			if(!histograms.compareAndSet(slot, null, h)){
+				h = histograms.get(slot);
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * runs first in its phase and records the time
+	 */
+	private class PhaseMarker extends AbstractPhaseInterceptor<Message>
+	{
+		private final int slot;
+
+		PhaseMarker(String phase, int slot)
+		{
+			super(PhaseMarker.class.getName()+"."+slot, phase);
+			this.slot = slot;
+			getBefore().add("*");
+		}
+
+		@Override
+		public void handleMessage(Message message) throws Fault
+		{
+			Exchange exchange = message.getExchange();
+			if(exchange==null)return;
+			long[] marks = getMarks(exchange);
+			if(marks[slot]==0)marks[slot] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * runs in the last phase of the response chain and records the timings
+	 */
+	private class Publisher extends AbstractPhaseInterceptor<Message>
+	{
+		Publisher(String phase)
+		{
+			super(Publisher.class.getName(), phase);
+		}
+
+		@Override
+		public void handleMessage(Message message) throws Fault
+		{
+			if(message.getExchange()!=null)publish(message);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package eu.unicore.security.wsutil;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.security.wsutil.SessionReplicator.Handler;
+import eu.unicore.util.Log;
+
+/**
+ * Security session store shared by several servers, e.g. behind a load balancer.
+ * <p>
+ * Sessions created or removed on one server are propagated asynchronously to the
+ * peers. If a session is not found locally (e.g. because it was created just now,
+ * or when this server was down), the peers are asked for it. This requires IDs
+ * carrying the identifier of the issuing server, which is why the
+ * {@link SecuritySessionIDs} are passed to the constructor: IDs without a valid
+ * server identifier are rejected without contacting the peers. The peers are also
+ * asked for IDs issued by this server, as after a restart without a journal
+ * its sessions may only be known to the peers.
+ * Expiry is handled independently on every server.
+ * <p>
+ * Every server remembers the IDs of sessions removed before their expiry (locally or
+ * by a peer) until they would have expired, and refuses to import them again, be it
+ * from a delayed or replayed creation event or from a peer that has not yet processed
+ * the removal.
+ */
+public class ReplicatedSecuritySessionStore extends SecuritySessionStore
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, ReplicatedSecuritySessionStore.class);
+
+	private final SessionReplicator replicator;
+
+	/**
+	 * expiry times of removed sessions, keyed by session ID
+	 */
+	private final Map<String, Long> tombstones = new ConcurrentHashMap<>();
+	private volatile long nextPurge;
+
+	/**
+	 * @param maxPerUser - maximum number of sessions per user, non-positive for no limit
+	 * @param table - holds the session records
+	 * @param bindAddress - address to listen on for peers (port 0 for any free port)
+	 * @param sharedSecret - secret shared by all peers, used to protect the replication traffic
+	 * @param sessionIDs - creates and verifies the session IDs, which carry the identifier
+	 * of the issuing server
+	 */
+	public ReplicatedSecuritySessionStore(int maxPerUser, SessionTable table,
+			InetSocketAddress bindAddress, byte[] sharedSecret, SecuritySessionIDs sessionIDs) throws IOException
+	{
+		super(maxPerUser, table);
+		setSessionIDs(sessionIDs);
+		this.replicator = new SessionReplicator(bindAddress, sharedSecret, new Handler(){
+			@Override
+			public void remoteSessionCreated(SecuritySession session)
+			{
+				importUnlessRemoved(session);
+			}
+
+			@Override
+			public void remoteSessionRemoved(String sessionID, long expiryTime, String userKey)
+			{
+				addTombstone(sessionID, expiryTime);
+				discardSession(sessionID, expiryTime, userKey);
+			}
+
+			@Override
+			public SecuritySession localLookup(String sessionID)
+			{
+				return sessions.get(sessionID);
+			}
+		}, SessionReplicator.DEF_TIMEOUT);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the session IDs are <code>null</code>, as
+	 * peers are only asked for sessions with IDs carrying a verified server identifier
+	 */
+	@Override
+	public void setSessionIDs(SecuritySessionIDs sessionIDs)
+	{
+		if(sessionIDs==null)
+			throw new IllegalArgumentException("Replicated session store requires session IDs carrying the server identifier");
+		super.setSessionIDs(sessionIDs);
+	}
+
+	/**
+	 * @return the port this store listens on for peers
+	 */
+	public int getPort()
+	{
+		return replicator.getPort();
+	}
+
+	public void addPeer(InetSocketAddress address)
+	{
+		replicator.addPeer(address);
+	}
+
+	/**
+	 * @return number of session events that could not be sent to a peer
+	 */
+	public long getDroppedEvents()
+	{
+		return replicator.getDroppedEvents();
+	}
+
+	@Override
+	protected void sessionStored(SecuritySession session)
+	{
+		replicator.sessionCreated(session);
+	}
+
+	/**
+	 * @return number of messages from peers that were rejected as not authentic, stale or replayed
+	 */
+	public long getRejectedMessages()
+	{
+		return replicator.getRejectedMessages();
+	}
+
+	@Override
+	protected void sessionRemoved(String sessionID, long expiryTime, String userKey)
+	{
+		addTombstone(sessionID, expiryTime);
+		replicator.sessionRemoved(sessionID, expiryTime, userKey);
+	}
+
+	@Override
+	protected SecuritySession sessionNotFound(String sessionID)
+	{
+		if(isRemoved(sessionID))return null;
+		SecuritySession session = replicator.lookup(sessionID);
+		if(session!=null && !session.isExpired() && importUnlessRemoved(session)){
+			return session;
+		}
+		return null;
+	}
+
+	/**
+	 * imports the session if it was not removed before
+	 * @return <code>false</code> if the session was removed
+	 */
+	private boolean importUnlessRemoved(SecuritySession session)
+	{
+		String id = session.getSessionID();
+		if(isRemoved(id)){
+			log.debug("Not importing removed security session <{}>", id);
+			return false;
+		}
+		importSession(session);
+		// the removal may have been received concurrently
+		if(isRemoved(id)){
+			discardSession(id, session.getExpiryTime(), session.getUserKey());
+			return false;
+		}
+		return true;
+	}
+
+	private void addTombstone(String sessionID, long expiryTime)
+	{
+		long now = System.currentTimeMillis();
+		if(expiryTime<=now)return;
+		tombstones.merge(sessionID, expiryTime, Math::max);
+		if(now>nextPurge){
+			nextPurge = now+1000;
+			tombstones.values().removeIf(expiry -> expiry<=now);
+		}
+	}
+
+	private boolean isRemoved(String sessionID)
+	{
+		Long expiry = tombstones.get(sessionID);
+		return expiry!=null && expiry>System.currentTimeMillis();
+	}
+
+	@Override
+	public void close()
+	{
+		super.close();
+		try{
+			replicator.close();
+		}catch(IOException e){
+			log.warn("Error closing session replication", e);
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package eu.unicore.security.wsutil;
+
+import java.lang.reflect.Method;
+import java.security.cert.X509Certificate;
+
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.transport.http.AbstractHTTPDestination;
+
+import eu.unicore.security.HTTPAuthNTokens;
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Security relevant data of an incoming request, computed lazily and at most once.
+ * A single instance is attached to the {@link Exchange}, so that the interceptors
+ * of a chain do not repeat the same lookups and header parsing. The static helpers
+ * in {@link CXFUtils} delegate to it for the exchange's incoming message.
+ * <p>
+ * The action and method are only remembered once known, since they depend on the
+ * operation, which is not yet set early in the chain.
+ * <p>
+ * Instances are bound to a single request and are not thread safe.
+ */
+public class RequestSecurityContext
+{
+	private final Message message;
+
+	private boolean requestResolved;
+	private HttpServletRequest request;
+
+	private boolean certsResolved;
+	private X509Certificate[] sslCerts;
+
+	private boolean sslSessionIDResolved;
+	private String sslSessionID;
+
+	private boolean clientIPResolved;
+	private String clientIP;
+
+	private boolean authorizationResolved;
+	private String authorization;
+
+	private boolean basicResolved;
+	private HTTPAuthNTokens basicCredentials;
+
+	private boolean bearerResolved;
+	private String bearerToken;
+
+	private String action;
+
+	private Method method;
+
+	RequestSecurityContext(Message message)
+	{
+		this.message = message;
+	}
+
+	/**
+	 * get the context of the request, creating and attaching it to the exchange if necessary.
+	 * For messages other than the exchange's incoming message, a new instance that is
+	 * not remembered is returned.
+	 */
+	public static RequestSecurityContext get(Message message)
+	{
+		Exchange exchange = message.getExchange();
+		if(exchange==null || exchange.getInMessage()!=message){
+			return new RequestSecurityContext(message);
+		}
+		RequestSecurityContext ctx = exchange.get(RequestSecurityContext.class);
+		if(ctx==null || ctx.message!=message){
+			ctx = new RequestSecurityContext(message);
+			exchange.put(RequestSecurityContext.class, ctx);
+		}
+		return ctx;
+	}
+
+	public HttpServletRequest getServletRequest()
+	{
+		if(!requestResolved){
+			request = (HttpServletRequest)message.get(AbstractHTTPDestination.HTTP_REQUEST);
+			requestResolved = true;
+		}
+		return request;
+	}
+
+	public X509Certificate[] getSSLCerts()
+	{
+		if(!certsResolved){
+			HttpServletRequest req = getServletRequest();
+			sslCerts = req!=null ? (X509Certificate[])req.getAttribute("jakarta.servlet.request.X509Certificate") : null;
+			certsResolved = true;
+		}
+		return sslCerts;
+	}
+
+	public String getSSLSessionID()
+	{
+		if(!sslSessionIDResolved){
+			HttpServletRequest req = getServletRequest();
+			Object id = req!=null ? req.getAttribute(CertificateIdentityCache.SSL_SESSION_ID_ATTRIBUTE) : null;
+			sslSessionID = id!=null ? String.valueOf(id) : null;
+			sslSessionIDResolved = true;
+		}
+		return sslSessionID;
+	}
+
+	public String getClientIP()
+	{
+		if(!clientIPResolved){
+			HttpServletRequest req = getServletRequest();
+			clientIP = req!=null ? req.getRemoteAddr() : null;
+			clientIPResolved = true;
+		}
+		return clientIP;
+	}
+
+	/**
+	 * @return the value of the HTTP Authorization header or <code>null</code>
+	 */
+	public String getAuthorization()
+	{
+		if(!authorizationResolved){
+			HttpServletRequest req = getServletRequest();
+			authorization = req!=null ? req.getHeader("Authorization") : null;
+			authorizationResolved = true;
+		}
+		return authorization;
+	}
+
+	/**
+	 * @return a new instance holding the HTTP Basic credentials or <code>null</code>
+	 */
+	public HTTPAuthNTokens getHTTPCredentials()
+	{
+		if(!basicResolved){
+			basicCredentials = CXFUtils.parseBasicCredentials(getAuthorization());
+			basicResolved = true;
+		}
+		return basicCredentials!=null ?
+				new HTTPAuthNTokens(basicCredentials.getUserName(), basicCredentials.getPasswd()) : null;
+	}
+
+	public String getBearerToken()
+	{
+		if(!bearerResolved){
+			bearerToken = CXFUtils.getTokenValue("Bearer", getAuthorization());
+			bearerResolved = true;
+		}
+		return bearerToken;
+	}
+
+	/**
+	 * The action is only cached once the operation is known, since before that
+	 * (i.e. early in the incoming chain) it can only be taken from the message.
+	 */
+	public String getAction()
+	{
+		if(action!=null)return action;
+		String result = CXFUtils.computeAction(message);
+		Exchange ex = message.getExchange();
+		if(ex!=null && ex.get(BindingOperationInfo.class)!=null){
+			action = result;
+		}
+		return result;
+	}
+
+	public Method getMethod()
+	{
+		if(method==null){
+			method = CXFUtils.computeMethod(message);
+		}
+		return method;
+	}
+}
@@ -1,6 +1,9 @@
 package eu.unicore.security.wsutil;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import eu.unicore.security.SecurityTokens;
 
@@ -15,7 +18,14 @@ public class SecuritySession implements Serializable {
 	
 	private final String sessionID;
 
-	private final SecurityTokens tokens;
+	// null until decoded, if created from encoded tokens
+	private volatile SecurityTokens tokens;
+
+	// encoded tokens, until decoded on first use
+	private transient ByteBuffer encodedTokens;
+
+	// size of the encoded session when it was last encoded or decoded, 0 if unknown
+	private transient volatile int encodedLength;
 
 	private final long expires;
 
@@ -37,21 +47,106 @@ public class SecuritySession implements Serializable {
 	}
 
 	/**
-	 * get a COPY of the tokens stored for this session
+	 * re-create a session, e.g. when decoding it
+	 * @param sessionID - the session ID
+	 * @param tokens - the security tokens used to create the session
+	 * @param expires - the expiry time in millis since the epoch
+	 * @param lastAccessed - last access time in millis since the epoch
+	 */
+	SecuritySession(String sessionID, SecurityTokens tokens, long expires, long lastAccessed){
+		this.sessionID=sessionID;
+		this.tokens = tokens;
+		this.expires=expires;
+		this.lastAccessed=lastAccessed;
+	}
+
+	/**
+	 * re-create a session whose tokens are decoded only when they are first accessed
+	 * @param sessionID - the session ID
+	 * @param encodedTokens - the tokens as written by {@link SecuritySessionCodec}
+	 * @param expires - the expiry time in millis since the epoch
+	 * @param lastAccessed - last access time in millis since the epoch
+	 */
+	SecuritySession(String sessionID, ByteBuffer encodedTokens, long expires, long lastAccessed){
+		this.sessionID=sessionID;
+		this.encodedTokens = encodedTokens;
+		this.expires=expires;
+		this.lastAccessed=lastAccessed;
+	}
+
+	/**
+	 * get the tokens, decoding them if necessary
+	 * @throws IllegalArgumentException if the encoded tokens cannot be decoded
+	 */
+	SecurityTokens tokens(){
+		SecurityTokens t = tokens;
+		if(t!=null)return t;
+		synchronized(this){
+			if(tokens==null && encodedTokens!=null){
+				tokens = SecuritySessionCodec.decodeTokens(encodedTokens.duplicate());
+				encodedTokens = null;
+			}
+			return tokens;
+		}
+	}
+
+	/**
+	 * @return the encoded tokens if they were not decoded yet, otherwise <code>null</code>
+	 */
+	synchronized ByteBuffer getEncodedTokens(){
+		return encodedTokens!=null ? encodedTokens.duplicate() : null;
+	}
+
+	/**
+	 * @return the size of the session as last encoded or decoded by the
+	 * {@link SecuritySessionCodec}, or 0 if unknown
+	 */
+	int getEncodedLength(){
+		return encodedLength;
+	}
+
+	void setEncodedLength(int encodedLength){
+		this.encodedLength = encodedLength;
+	}
+
+	/**
+	 * get a COPY of the tokens stored for this session. Prefer {@link #getSharedTokens()},
+	 * which is cheaper, unless the copy is kept for a long time. The handlers of this
+	 * library use {@link #getSharedTokens()}; callers of this method still pay for
+	 * the full copy
 	 */
 	public SecurityTokens getTokens() {
+		SecurityTokens tokens = tokens();
 		try{
-			return this.tokens.clone();
+			return tokens.clone();
 		}
 		catch(CloneNotSupportedException cne){
 			return tokens;
 		}
 	}
 
+	/**
+	 * get a copy-on-write view of the tokens stored for this session, which shares
+	 * the token data with the session instead of copying it. The caller may modify
+	 * the view (e.g. put request-scoped values into the context), without affecting
+	 * the session or other requests using it.
+	 * For tokens of a subclass of {@link SecurityTokens}, a copy is returned.
+	 */
+	public SecurityTokens getSharedTokens() {
+		return SessionTokensView.of(tokens());
+	}
+
 	public boolean isExpired(){
 		return expires<System.currentTimeMillis();
 	}
 
+	/**
+	 * return the expiry time in millis since the epoch
+	 */
+	public long getExpiryTime(){
+		return expires;
+	}
+
 	public String getSessionID() {
 		return sessionID;
 	}
@@ -86,4 +181,9 @@ public class SecuritySession implements Serializable {
 		long lt = expires-System.currentTimeMillis();
 		return lt>0 ? lt : 0;
 	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		tokens();
+		out.defaultWriteObject();
+	}
 }
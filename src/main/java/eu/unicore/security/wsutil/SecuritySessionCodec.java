@@ -0,0 +1,310 @@
+package eu.unicore.security.wsutil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import eu.unicore.security.SecurityTokens;
+
+/**
+ * Converts {@link SecuritySession}s to bytes and back, used by the session
+ * storage backends that keep sessions outside of the heap or on disk, and
+ * for sending sessions to other servers.
+ * <p>
+ * The format is versioned. Version 2 is:
+ * <pre>
+ * byte    version
+ * long    expiry time
+ * long    last access time
+ * string  session ID
+ * string  user key
+ * int     length of the tokens (-1 for none), followed by the encoded {@link SecurityTokens}
+ * </pre>
+ * where strings are encoded as int length (-1 for <code>null</code>) followed by
+ * the UTF-8 bytes. The security tokens are encoded field by field, with certificates
+ * in DER and assertions in XML encoding, see {@link SecurityTokensCodec}.
+ * Version 1 is the same, but the tokens are always written with Java serialization.
+ * <p>
+ * Data written by earlier releases (version 1, or plain Java serialization of the
+ * session) can still be decoded. Java deserialization is restricted to the classes
+ * making up security sessions, see {@link SecurityTokensCodec#FILTER}.
+ */
+public class SecuritySessionCodec
+{
+	private static final byte VERSION = 2;
+
+	// tokens are always serialized
+	private static final byte VERSION_1 = 1;
+
+	// first byte of a Java serialization stream
+	private static final byte JAVA_SERIALIZATION = (byte)0xAC;
+
+	private SecuritySessionCodec(){}
+
+	/**
+	 * @param session
+	 * @return the encoded session
+	 * @throws IllegalArgumentException if the session cannot be encoded
+	 */
+	public static byte[] encode(SecuritySession session)
+	{
+		byte[] id = bytes(session.getSessionID());
+		byte[] userKey = bytes(session.getUserKey());
+		ByteBuffer encoded = session.getEncodedTokens();
+		byte[] tokens = encoded==null ? serialize(session.tokens()) : null;
+		int tokensLength = encoded==null ? length(tokens) : 4 + encoded.remaining();
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 8 + length(id) + length(userKey) + tokensLength);
+		writeHeader(buffer, session, id, userKey);
+		if(encoded!=null){
+			buffer.putInt(encoded.remaining());
+			buffer.put(encoded);
+		}
+		else{
+			putBytes(buffer, tokens);
+		}
+		session.setEncodedLength(buffer.capacity());
+		return buffer.array();
+	}
+
+	/**
+	 * Writes the encoded session at the buffer's position, which is advanced past
+	 * the written data. The tokens are serialized directly into the buffer.
+	 * @param session
+	 * @param target
+	 * @throws BufferOverflowException if the buffer has not enough space. In this case
+	 * its position is undefined
+	 * @throws IllegalArgumentException if the session cannot be encoded
+	 */
+	public static void encode(SecuritySession session, ByteBuffer target)
+	{
+		int start = target.position();
+		writeHeader(target, session, bytes(session.getSessionID()), bytes(session.getUserKey()));
+		ByteBuffer encoded = session.getEncodedTokens();
+		if(encoded!=null){
+			target.putInt(encoded.remaining());
+			target.put(encoded);
+		}
+		else{
+			SecurityTokens tokens = session.tokens();
+			if(tokens==null){
+				target.putInt(-1);
+			}
+			else{
+				int lengthPosition = target.position();
+				target.putInt(0);
+				SecurityTokensCodec.encode(tokens, new ByteBufferOutputStream(target));
+				target.putInt(lengthPosition, target.position()-lengthPosition-4);
+			}
+		}
+		session.setEncodedLength(target.position()-start);
+	}
+
+	/**
+	 * @param data - encoded session as created by {@link #encode(SecuritySession)}
+	 * @return the decoded session
+	 * @throws IllegalArgumentException if the data cannot be decoded
+	 */
+	public static SecuritySession decode(byte[] data)
+	{
+		if(data.length>0 && data[0]==JAVA_SERIALIZATION){
+			return decodeLegacy(data);
+		}
+		return decode(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Reads an encoded session from the buffer's position, which is advanced past
+	 * the read data. The tokens are deserialized directly from the buffer.
+	 * @param source - encoded session as created by {@link #encode(SecuritySession, ByteBuffer)}
+	 * @return the decoded session
+	 * @throws IllegalArgumentException if the data cannot be decoded
+	 */
+	public static SecuritySession decode(ByteBuffer source)
+	{
+		return decode(source, false);
+	}
+
+	/**
+	 * Decodes the session, but not its tokens, which are decoded when they are first
+	 * accessed. The session keeps a reference to the given array.
+	 * @param data - encoded session as created by {@link #encode(SecuritySession)}
+	 * @return the decoded session
+	 * @throws IllegalArgumentException if the data cannot be decoded
+	 */
+	static SecuritySession decodeLazily(byte[] data)
+	{
+		if(data.length>0 && data[0]==JAVA_SERIALIZATION){
+			return decodeLegacy(data);
+		}
+		return decode(ByteBuffer.wrap(data), true);
+	}
+
+	private static SecuritySession decode(ByteBuffer source, boolean lazy)
+	{
+		try{
+			int start = source.position();
+			byte version = source.get();
+			if(version!=VERSION && version!=VERSION_1){
+				throw new IllegalArgumentException("Unsupported security session encoding version "+version);
+			}
+			long expires = source.getLong();
+			long lastAccessed = source.getLong();
+			String id = getString(source);
+			String userKey = getString(source);
+			SecuritySession session;
+			int length = source.getInt();
+			if(length>=0){
+				if(length>source.remaining())throw new BufferUnderflowException();
+				ByteBuffer slice = source.slice();
+				slice.limit(length);
+				source.position(source.position()+length);
+				session = lazy ? new SecuritySession(id, slice, expires, lastAccessed)
+						: new SecuritySession(id, decodeTokens(slice), expires, lastAccessed);
+			}
+			else{
+				session = new SecuritySession(id, (SecurityTokens)null, expires, lastAccessed);
+			}
+			session.setUserKey(userKey);
+			session.setEncodedLength(source.position()-start);
+			return session;
+		}catch(BufferUnderflowException e){
+			throw new IllegalArgumentException("Cannot decode security session: data is truncated");
+		}
+	}
+
+	/**
+	 * @param source - the encoded tokens, i.e. the remaining bytes of the buffer
+	 * @return the decoded tokens
+	 * @throws IllegalArgumentException if the data cannot be decoded
+	 */
+	static SecurityTokens decodeTokens(ByteBuffer source)
+	{
+		return SecurityTokensCodec.decode(source);
+	}
+
+	private static SecuritySession decodeLegacy(byte[] data)
+	{
+		try(ObjectInputStream is = SecurityTokensCodec.openFiltered(new ByteArrayInputStream(data))){
+			return (SecuritySession)is.readObject();
+		}catch(IOException | ClassNotFoundException | ClassCastException e){
+			throw new IllegalArgumentException("Cannot deserialize security session", e);
+		}
+	}
+
+	private static void writeHeader(ByteBuffer buffer, SecuritySession session, byte[] id, byte[] userKey)
+	{
+		buffer.put(VERSION);
+		buffer.putLong(session.getExpiryTime());
+		buffer.putLong(session.getLastAccessed());
+		putBytes(buffer, id);
+		putBytes(buffer, userKey);
+	}
+
+	private static byte[] serialize(SecurityTokens tokens)
+	{
+		if(tokens==null)return null;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		SecurityTokensCodec.encode(tokens, bos);
+		return bos.toByteArray();
+	}
+
+	private static byte[] bytes(String s)
+	{
+		return s!=null ? s.getBytes(StandardCharsets.UTF_8) : null;
+	}
+
+	private static int length(byte[] b)
+	{
+		return 4 + (b!=null ? b.length : 0);
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] b)
+	{
+		if(b==null){
+			buffer.putInt(-1);
+		}
+		else{
+			buffer.putInt(b.length);
+			buffer.put(b);
+		}
+	}
+
+	private static String getString(ByteBuffer buffer)
+	{
+		int length = buffer.getInt();
+		if(length<0)return null;
+		if(length>buffer.remaining())throw new BufferUnderflowException();
+		String s;
+		if(buffer.hasArray()){
+			s = new String(buffer.array(), buffer.arrayOffset()+buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position()+length);
+		}
+		else{
+			byte[] b = new byte[length];
+			buffer.get(b);
+			s = new String(b, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+
+	private static class ByteBufferOutputStream extends OutputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferOutputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			buffer.put((byte)b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			buffer.put(b, off, len);
+		}
+	}
+
+	static class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if(len==0)return 0;
+			if(!buffer.hasRemaining())return -1;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+}
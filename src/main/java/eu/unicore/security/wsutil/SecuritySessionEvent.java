@@ -0,0 +1,73 @@
+package eu.unicore.security.wsutil;
+
+/**
+ * A change of a security session in a {@link SecuritySessionStore}
+ */
+public class SecuritySessionEvent
+{
+	public static enum Type {
+		/**
+		 * a new session was stored
+		 */
+		CREATED,
+		/**
+		 * the session was removed after its expiry
+		 */
+		EXPIRED,
+		/**
+		 * the session was evicted, because its user had too many sessions or
+		 * because the weight limit of the store was exceeded
+		 */
+		EVICTED,
+		/**
+		 * the session was removed explicitly, e.g. by invalidating all 
+		 * sessions of its user, or on request of another server
+		 */
+		REMOVED
+	}
+
+	private final Type type;
+	private final String sessionID;
+	private final String userKey;
+	private final long expiryTime;
+
+	public SecuritySessionEvent(Type type, String sessionID, String userKey, long expiryTime)
+	{
+		this.type = type;
+		this.sessionID = sessionID;
+		this.userKey = userKey;
+		this.expiryTime = expiryTime;
+	}
+
+	public Type getType()
+	{
+		return type;
+	}
+
+	public String getSessionID()
+	{
+		return sessionID;
+	}
+
+	/**
+	 * get the identifier of the user who owns the session
+	 */
+	public String getUserKey()
+	{
+		return userKey;
+	}
+
+	/**
+	 * get the expiry time of the session in millis since the epoch
+	 */
+	public long getExpiryTime()
+	{
+		return expiryTime;
+	}
+
+	@Override
+	public String toString()
+	{
+		return type+" <"+sessionID+"> of <"+userKey+">";
+	}
+}
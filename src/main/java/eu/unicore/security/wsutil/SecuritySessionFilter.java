@@ -0,0 +1,89 @@
+package eu.unicore.security.wsutil;
+
+import java.io.IOException;
+
+import eu.unicore.security.SecurityTokens;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Server side, RESTful use: resolves the security session sent by the client in
+ * the {@link SecuritySessionUtils#SESSION_ID_HEADER} HTTP header, before the request
+ * reaches the application.
+ * <p>
+ * If the session is found, a copy-on-write view of its security tokens is stored as
+ * request attribute {@link SecurityTokens#KEY} (marked as in {@link SecuritySessionInHandler}), the session
+ * itself as attribute {@link #SESSION_ATTRIBUTE}, and the session ID and remaining
+ * lifetime are set as response headers. The application can then skip authentication.
+ * <p>
+ * Optionally, the header can also hold a ticket issued by {@link SecuritySessionTickets},
+ * which is then returned as response header instead of the session ID.
+ */
+public class SecuritySessionFilter implements Filter
+{
+	/**
+	 * request attribute holding the resolved {@link SecuritySession}
+	 */
+	public static final String SESSION_ATTRIBUTE = SecuritySession.class.getName();
+
+	private final SecuritySessionStore store;
+
+	private final SecuritySessionTickets tickets;
+
+	private final boolean requireSameClientIP;
+
+	/**
+	 * @param store - the session store
+	 * @param requireSameClientIP - if <code>true</code>, a session is only used by requests
+	 * from the IP it was created for. Do not use if the server runs behind a gateway.
+	 */
+	public SecuritySessionFilter(SecuritySessionStore store, boolean requireSameClientIP)
+	{
+		this(store, null, requireSameClientIP);
+	}
+
+	/**
+	 * @param store - the session store, can be <code>null</code> if only tickets are used
+	 * @param tickets - for restoring sessions from tickets, can be <code>null</code>
+	 * @param requireSameClientIP - if <code>true</code>, a session is only used by requests
+	 * from the IP it was created for. Do not use if the server runs behind a gateway.
+	 */
+	public SecuritySessionFilter(SecuritySessionStore store, SecuritySessionTickets tickets,
+			boolean requireSameClientIP)
+	{
+		this.store = store;
+		this.tickets = tickets;
+		this.requireSameClientIP = requireSameClientIP;
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException
+	{
+		if(request instanceof HttpServletRequest && response instanceof HttpServletResponse){
+			HttpServletRequest req = (HttpServletRequest)request;
+			String sessionID = req.getHeader(SecuritySessionUtils.SESSION_ID_HEADER);
+			if(sessionID!=null){
+				String clientIP = requireSameClientIP ? req.getRemoteAddr() : null;
+				SecuritySession session = SecuritySessionInHandler.restore(tickets, sessionID, clientIP);
+				boolean ticket = session!=null;
+				if(!ticket){
+					session = SecuritySessionInHandler.resolve(store, sessionID, clientIP);
+				}
+				if(session!=null){
+					req.setAttribute(SecurityTokens.KEY, SecuritySessionInHandler.createRequestTokens(session));
+					req.setAttribute(SESSION_ATTRIBUTE, session);
+					HttpServletResponse res = (HttpServletResponse)response;
+					res.setHeader(SecuritySessionUtils.SESSION_ID_HEADER, ticket ? sessionID : session.getSessionID());
+					res.setHeader(SecuritySessionUtils.SESSION_LIFETIME_HEADER, String.valueOf(session.getLifetime()));
+				}
+			}
+		}
+		chain.doFilter(request, response);
+	}
+}
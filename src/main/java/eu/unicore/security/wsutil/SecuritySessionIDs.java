@@ -0,0 +1,111 @@
+package eu.unicore.security.wsutil;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Creates security session IDs carrying the identifier of the server that issued them,
+ * so that a load balancer can route requests using a session to the server holding it.
+ * The IDs have the form
+ * <pre>
+ * node.random.tag
+ * </pre>
+ * where the tag is a MAC over the node and the random part, computed with a secret
+ * shared by all servers. The node can be extracted without the secret, e.g. by a
+ * HAProxy rule such as <code>req.hdr(X-UNICORE-SecuritySession),field(1,.)</code>,
+ * while servers can check that it was not modified.
+ * <p>
+ * This class is thread safe.
+ */
+public class SecuritySessionIDs
+{
+	private static final Pattern NODE_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+	private static final int RANDOM_BYTES = 18;
+	private static final int TAG_BYTES = 12;
+
+	private final String node;
+	private final SecretKeySpec key;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * @param node - identifier of this server, consisting of letters, digits, '-' and '_'
+	 * @param sharedSecret - secret shared by all servers
+	 */
+	public SecuritySessionIDs(String node, byte[] sharedSecret)
+	{
+		if(node==null || !NODE_PATTERN.matcher(node).matches())
+			throw new IllegalArgumentException("Invalid node identifier <"+node+">");
+		this.node = node;
+		this.key = new SecretKeySpec(sharedSecret, "HmacSHA256");
+	}
+
+	public String getNode()
+	{
+		return node;
+	}
+
+	/**
+	 * @return a new random session ID carrying this server's identifier
+	 */
+	public String newSessionID()
+	{
+		byte[] r = new byte[RANDOM_BYTES];
+		random.nextBytes(r);
+		String prefix = node+"."+encode(r);
+		return prefix+"."+tag(prefix);
+	}
+
+	/**
+	 * get the node that issued the session ID, checking that it was not modified
+	 * @return the node or <code>null</code> if the ID was not issued by a server sharing the secret
+	 */
+	public String getVerifiedNode(String sessionID)
+	{
+		if(sessionID==null)return null;
+		int last = sessionID.lastIndexOf('.');
+		String node = getNode(sessionID);
+		if(node==null || last<=node.length())return null;
+		byte[] expected = tag(sessionID.substring(0, last)).getBytes(StandardCharsets.US_ASCII);
+		byte[] actual = sessionID.substring(last+1).getBytes(StandardCharsets.US_ASCII);
+		return MessageDigest.isEqual(expected, actual) ? node : null;
+	}
+
+	/**
+	 * get the node hint of the session ID, without verifying it
+	 * @return the node or <code>null</code> if the ID does not carry a node
+	 */
+	public static String getNode(String sessionID)
+	{
+		if(sessionID==null)return null;
+		int first = sessionID.indexOf('.');
+		if(first<1 || sessionID.indexOf('.', first+1)<0)return null;
+		String node = sessionID.substring(0, first);
+		return NODE_PATTERN.matcher(node).matches() ? node : null;
+	}
+
+	private String tag(String data)
+	{
+		try{
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(key);
+			byte[] tag = mac.doFinal(data.getBytes(StandardCharsets.US_ASCII));
+			byte[] truncated = new byte[TAG_BYTES];
+			System.arraycopy(tag, 0, truncated, 0, TAG_BYTES);
+			return encode(truncated);
+		}catch(GeneralSecurityException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String encode(byte[] data)
+	{
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+	}
+}
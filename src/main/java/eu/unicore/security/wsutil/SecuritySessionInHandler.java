@@ -0,0 +1,165 @@
+package eu.unicore.security.wsutil;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.headers.Header;
+import org.apache.cxf.helpers.CastUtils;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+import org.apache.logging.log4j.Logger;
+import org.w3c.dom.Element;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.util.Log;
+
+/**
+ * Server side: resolves the security session used by the client, early in the
+ * incoming chain, i.e. before any assertion or signature processing.
+ * <p>
+ * The session ID is taken from the {@link SecuritySessionUtils#headerQName} SOAP header
+ * or the {@link SecuritySessionUtils#SESSION_ID_HEADER} HTTP header. If the session
+ * is found, a copy-on-write view of its security tokens is put into the message under
+ * {@link SecurityTokens#KEY}, with the {@link SecuritySessionUtils#REUSED_MARKER_KEY}
+ * and {@link SecuritySessionUtils#SESSION_ID_KEY} set in the tokens' context, so
+ * that authentication handlers running later can skip their work. The session is
+ * also put into the exchange, to be returned to the client by the
+ * {@link SecuritySessionOutHandler}.
+ * <p>
+ * Optionally, the value can also be a ticket issued by {@link SecuritySessionTickets}.
+ * Tickets are tried first (values that cannot be tickets are recognized without any
+ * decryption), and the ticket is put into the exchange under
+ * {@link SecuritySessionUtils#SESSION_TICKET_KEY}, so that it is sent back instead of the
+ * session ID.
+ */
+public class SecuritySessionInHandler extends AbstractPhaseInterceptor<Message>
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, SecuritySessionInHandler.class);
+
+	private final SecuritySessionStore store;
+
+	private final SecuritySessionTickets tickets;
+
+	private final boolean requireSameClientIP;
+
+	/**
+	 * @param store - the session store
+	 * @param requireSameClientIP - if <code>true</code>, a session is only used by requests
+	 * from the IP it was created for. Do not use if the server runs behind a gateway.
+	 */
+	public SecuritySessionInHandler(SecuritySessionStore store, boolean requireSameClientIP)
+	{
+		this(store, null, requireSameClientIP);
+	}
+
+	/**
+	 * @param store - the session store, can be <code>null</code> if only tickets are used
+	 * @param tickets - for restoring sessions from tickets, can be <code>null</code>
+	 * @param requireSameClientIP - if <code>true</code>, a session is only used by requests
+	 * from the IP it was created for. Do not use if the server runs behind a gateway.
+	 */
+	public SecuritySessionInHandler(SecuritySessionStore store, SecuritySessionTickets tickets,
+			boolean requireSameClientIP)
+	{
+		super(Phase.PRE_PROTOCOL);
+		this.store = store;
+		this.tickets = tickets;
+		this.requireSameClientIP = requireSameClientIP;
+	}
+
+	@Override
+	public void handleMessage(Message message) throws Fault
+	{
+		if(message.containsKey(SecurityTokens.KEY))return;
+		String sessionID = getSessionID(message);
+		if(sessionID==null)return;
+		String clientIP = requireSameClientIP ? CXFUtils.getClientIP(message) : null;
+		SecuritySession session = restore(tickets, sessionID, clientIP);
+		if(session!=null){
+			message.getExchange().put(SecuritySessionUtils.SESSION_TICKET_KEY, sessionID);
+		}
+		else{
+			session = resolve(store, sessionID, clientIP);
+		}
+		if(session==null)return;
+		message.put(SecurityTokens.KEY, createRequestTokens(session));
+		message.getExchange().put(SecuritySession.class, session);
+	}
+
+	/**
+	 * get the session ID sent by the client, preferring the SOAP header
+	 * @return the session ID or <code>null</code>
+	 */
+	public static String getSessionID(Message message)
+	{
+		if(message instanceof SoapMessage){
+			Header header = ((SoapMessage)message).getHeader(SecuritySessionUtils.headerQName);
+			if(header!=null && header.getObject() instanceof Element){
+				Element id = DOMUtils.getFirstChildWithName((Element)header.getObject(), SecuritySessionUtils.idQName);
+				if(id!=null){
+					String value = DOMUtils.getContent(id);
+					if(value!=null && !value.isBlank())return value.trim();
+				}
+			}
+		}
+		Map<String, List<String>> headers = CastUtils.cast((Map<?, ?>)message.get(Message.PROTOCOL_HEADERS));
+		if(headers!=null){
+			List<String> values = headers.get(SecuritySessionUtils.SESSION_ID_HEADER);
+			if(values!=null && !values.isEmpty()){
+				return values.get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * looks up the session
+	 * @param clientIP - if not <code>null</code>, the session must have been created for this IP
+	 * @return the valid session or <code>null</code>
+	 */
+	static SecuritySession resolve(SecuritySessionStore store, String sessionID, String clientIP)
+	{
+		SecuritySession session = store!=null ? store.getSession(sessionID) : null;
+		if(session==null || session.isExpired()){
+			log.debug("Security session <{}> not found", sessionID);
+			return null;
+		}
+		return checkClientIP(session, clientIP);
+	}
+
+	/**
+	 * restores the session from a ticket
+	 * @param tickets - can be <code>null</code>
+	 * @param clientIP - if not <code>null</code>, the session must have been created for this IP
+	 * @return the valid session or <code>null</code>, e.g. if the value is not a ticket
+	 */
+	static SecuritySession restore(SecuritySessionTickets tickets, String ticket, String clientIP)
+	{
+		SecuritySession session = tickets!=null ? tickets.restore(ticket) : null;
+		return session!=null ? checkClientIP(session, clientIP) : null;
+	}
+
+	private static SecuritySession checkClientIP(SecuritySession session, String clientIP)
+	{
+		if(clientIP!=null && !clientIP.equals(session.tokens().getClientIP())){
+			log.debug("Security session <{}> used from wrong IP {}", session.getSessionID(), clientIP);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * @return a copy-on-write view of the session's tokens, marked as taken from the session
+	 */
+	static SecurityTokens createRequestTokens(SecuritySession session)
+	{
+		SecurityTokens tokens = session.getSharedTokens();
+		tokens.getContext().put(SecuritySessionUtils.REUSED_MARKER_KEY, Boolean.TRUE);
+		tokens.getContext().put(SecuritySessionUtils.SESSION_ID_KEY, session.getSessionID());
+		return tokens;
+	}
+}
@@ -0,0 +1,11 @@
+package eu.unicore.security.wsutil;
+
+/**
+ * Notified about session changes in a {@link SecuritySessionStore}, e.g. to 
+ * clean up data cached per session. Events are delivered asynchronously by a 
+ * single thread, in the order they happened, see {@link SessionEventDispatcher}.
+ */
+public interface SecuritySessionListener
+{
+	public void sessionChanged(SecuritySessionEvent event);
+}
@@ -0,0 +1,245 @@
+package eu.unicore.security.wsutil;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Usage statistics of a {@link SecuritySessionStore}. Recording is lock-free,
+ * the counters are {@link LongAdder}s and the lookup durations are kept in a
+ * {@link LatencyHistogram}. The metrics can be published via JMX
+ * ({@link #registerMBean(String)}) or forwarded to {@link SecuritySessionMetricsListener}s.
+ * <p>
+ * All lookups are counted, but only a sample of them is timed, see
+ * {@link #setLookupSampling(int)}.
+ */
+public class SecuritySessionMetrics implements SecuritySessionMetricsMBean
+{
+	public static final String JMX_DOMAIN = "eu.unicore.security";
+
+	/**
+	 * by default, one in this many lookups is timed
+	 */
+	public static final int DEF_LOOKUP_SAMPLING = 16;
+
+	private final LongAdder created = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+	private final LongAdder weightEvicted = new LongAdder();
+	private final LongAdder creationLimited = new LongAdder();
+	private final LatencyHistogram lookupLatency = new LatencyHistogram();
+
+	private volatile int lookupSampling = DEF_LOOKUP_SAMPLING;
+
+	private final IntSupplier sessions;
+	private final IntSupplier users;
+
+	private final List<SecuritySessionMetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param sessions - gauge of the number of sessions
+	 * @param users - gauge of the number of users having sessions
+	 */
+	public SecuritySessionMetrics(IntSupplier sessions, IntSupplier users)
+	{
+		this.sessions = sessions;
+		this.users = users;
+	}
+
+	/**
+	 * @param sampling - one in this many lookups is timed, 1 to time every lookup
+	 */
+	public void setLookupSampling(int sampling)
+	{
+		if(sampling<1)throw new IllegalArgumentException("Sampling must be positive");
+		this.lookupSampling = sampling;
+	}
+
+	public void addListener(SecuritySessionMetricsListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeListener(SecuritySessionMetricsListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * registers this object with the platform MBean server
+	 * @param name - distinguishes several stores
+	 * @return the name of the MBean
+	 */
+	public ObjectName registerMBean(String name) throws JMException
+	{
+		ObjectName objectName = new ObjectName(JMX_DOMAIN+":type=SecuritySessionStore,name="+ObjectName.quote(name));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if(server.isRegistered(objectName)){
+			server.unregisterMBean(objectName);
+		}
+		server.registerMBean(this, objectName);
+		return objectName;
+	}
+
+	void sessionCreated()
+	{
+		created.increment();
+		for(SecuritySessionMetricsListener l: listeners){
+			l.sessionCreated();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the next lookup should be timed
+	 */
+	boolean sampleLookup()
+	{
+		int sampling = lookupSampling;
+		return sampling==1 || ThreadLocalRandom.current().nextInt(sampling)==0;
+	}
+
+	/**
+	 * @param nanos - duration of the lookup, negative if it was not timed
+	 */
+	void lookup(boolean hit, long nanos)
+	{
+		if(hit)hits.increment();
+		else misses.increment();
+		if(nanos>=0){
+			lookupLatency.record(nanos);
+		}
+		for(SecuritySessionMetricsListener l: listeners){
+			if(hit)l.lookupHit(nanos);
+			else l.lookupMiss(nanos);
+		}
+	}
+
+	void lookupRejected()
+	{
+		rejected.increment();
+	}
+
+	void sessionExpired()
+	{
+		expired.increment();
+		for(SecuritySessionMetricsListener l: listeners){
+			l.sessionExpired();
+		}
+	}
+
+	void sessionEvicted(boolean byWeight)
+	{
+		if(byWeight)weightEvicted.increment();
+		else evicted.increment();
+		for(SecuritySessionMetricsListener l: listeners){
+			l.sessionEvicted();
+		}
+	}
+
+	void creationLimited()
+	{
+		creationLimited.increment();
+	}
+
+	@Override
+	public long getCreatedSessions()
+	{
+		return created.sum();
+	}
+
+	@Override
+	public long getLookupHits()
+	{
+		return hits.sum();
+	}
+
+	@Override
+	public long getLookupMisses()
+	{
+		return misses.sum();
+	}
+
+	@Override
+	public long getRejectedLookups()
+	{
+		return rejected.sum();
+	}
+
+	@Override
+	public long getExpiredSessions()
+	{
+		return expired.sum();
+	}
+
+	@Override
+	public long getEvictedSessions()
+	{
+		return evicted.sum();
+	}
+
+	@Override
+	public long getWeightEvictedSessions()
+	{
+		return weightEvicted.sum();
+	}
+
+	@Override
+	public long getRateLimitedCreations()
+	{
+		return creationLimited.sum();
+	}
+
+	@Override
+	public int getSessions()
+	{
+		return sessions.getAsInt();
+	}
+
+	@Override
+	public int getUsers()
+	{
+		return users.getAsInt();
+	}
+
+	@Override
+	public double getMeanLookupMicros()
+	{
+		return lookupLatency.getMeanMicros();
+	}
+
+	@Override
+	public double getLookup99thPercentileMicros()
+	{
+		return lookupLatency.getPercentileMicros(0.99);
+	}
+
+	@Override
+	public long[] getLookupHistogram()
+	{
+		return lookupLatency.getBuckets();
+	}
+
+	@Override
+	public void reset()
+	{
+		created.reset();
+		hits.reset();
+		misses.reset();
+		rejected.reset();
+		expired.reset();
+		evicted.reset();
+		weightEvicted.reset();
+		creationLimited.reset();
+		lookupLatency.reset();
+	}
+}
@@ -0,0 +1,32 @@
+package eu.unicore.security.wsutil;
+
+/**
+ * Receives the events counted by {@link SecuritySessionMetrics}, e.g. to forward
+ * them to an external metrics system. The methods are invoked synchronously by
+ * the thread using the session store, so they must be fast and must not block.
+ * All methods do nothing by default.
+ */
+public interface SecuritySessionMetricsListener
+{
+	public default void sessionCreated(){}
+
+	/**
+	 * a session was found in the store
+	 * @param nanos - duration of the lookup, or -1 if this lookup was not timed
+	 */
+	public default void lookupHit(long nanos){}
+
+	/**
+	 * a session was not found in the store
+	 * @param nanos - duration of the lookup, or -1 if this lookup was not timed
+	 */
+	public default void lookupMiss(long nanos){}
+
+	public default void sessionExpired(){}
+
+	/**
+	 * a session was evicted because its user had too many sessions, or
+	 * because the weight limit of the store was exceeded
+	 */
+	public default void sessionEvicted(){}
+}
@@ -0,0 +1,61 @@
+package eu.unicore.security.wsutil;
+
+/**
+ * JMX view of the {@link SecuritySessionMetrics}
+ */
+public interface SecuritySessionMetricsMBean
+{
+	public long getCreatedSessions();
+
+	public long getLookupHits();
+
+	/**
+	 * includes the rejected lookups
+	 */
+	public long getLookupMisses();
+
+	/**
+	 * lookups of IDs that were never issued by the store
+	 */
+	public long getRejectedLookups();
+
+	public long getExpiredSessions();
+
+	/**
+	 * sessions removed because their user had too many sessions
+	 */
+	public long getEvictedSessions();
+
+	/**
+	 * sessions removed because the weight limit of the store was exceeded
+	 */
+	public long getWeightEvictedSessions();
+
+	/**
+	 * session creations that were refused because the user exceeded
+	 * the creation rate limit, so an existing session was returned instead
+	 */
+	public long getRateLimitedCreations();
+
+	public int getSessions();
+
+	public int getUsers();
+
+	/**
+	 * mean duration of the timed (sampled) lookups
+	 */
+	public double getMeanLookupMicros();
+
+	/**
+	 * upper bound of the lookup duration of 99% of the timed (sampled) lookups
+	 */
+	public double getLookup99thPercentileMicros();
+
+	/**
+	 * number of timed (sampled) lookups by duration: element i counts the lookups that took
+	 * less than 2^i nanoseconds (and at least 2^(i-1))
+	 */
+	public long[] getLookupHistogram();
+
+	public void reset();
+}
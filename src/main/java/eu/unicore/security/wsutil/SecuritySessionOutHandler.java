@@ -0,0 +1,67 @@
+package eu.unicore.security.wsutil;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.headers.Header;
+import org.apache.cxf.helpers.CastUtils;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Server side: tells the client the ID and remaining lifetime of the security session
+ * used for the request. The session is taken from the exchange, where it is put by the
+ * {@link SecuritySessionInHandler}, or by the server's authentication code when
+ * creating a new session.
+ * <p>
+ * The values are sent in the {@link SecuritySessionUtils#SESSION_ID_HEADER} and
+ * {@link SecuritySessionUtils#SESSION_LIFETIME_HEADER} HTTP headers, and for SOAP
+ * messages also in the {@link SecuritySessionUtils#headerQName} SOAP header.
+ * If the exchange holds a {@link SecuritySessionUtils#SESSION_TICKET_KEY ticket},
+ * it is sent instead of the session ID.
+ */
+public class SecuritySessionOutHandler extends AbstractPhaseInterceptor<Message>
+{
+	public SecuritySessionOutHandler()
+	{
+		super(Phase.PRE_PROTOCOL);
+	}
+
+	@Override
+	public void handleMessage(Message message) throws Fault
+	{
+		SecuritySession session = message.getExchange().get(SecuritySession.class);
+		if(session==null)return;
+		String ticket = (String)message.getExchange().get(SecuritySessionUtils.SESSION_TICKET_KEY);
+		String sessionID = ticket!=null ? ticket : session.getSessionID();
+		String lifetime = String.valueOf(session.getLifetime());
+
+		Map<String, List<String>> headers = CastUtils.cast((Map<?, ?>)message.get(Message.PROTOCOL_HEADERS));
+		if(headers==null){
+			headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			message.put(Message.PROTOCOL_HEADERS, headers);
+		}
+		headers.put(SecuritySessionUtils.SESSION_ID_HEADER, Collections.singletonList(sessionID));
+		headers.put(SecuritySessionUtils.SESSION_LIFETIME_HEADER, Collections.singletonList(lifetime));
+
+		if(message instanceof SoapMessage){
+			Document doc = DOMUtils.createDocument();
+			Element header = doc.createElementNS(SecuritySessionUtils.SESSION_HDR_NS, SecuritySessionUtils.SESSION_HEADER);
+			Element id = doc.createElementNS(SecuritySessionUtils.SESSION_HDR_NS, SecuritySessionUtils.idQName.getLocalPart());
+			id.setTextContent(sessionID);
+			header.appendChild(id);
+			Element lt = doc.createElementNS(SecuritySessionUtils.SESSION_HDR_NS, SecuritySessionUtils.ltQName.getLocalPart());
+			lt.setTextContent(lifetime);
+			header.appendChild(lt);
+			((SoapMessage)message).getHeaders().add(new Header(SecuritySessionUtils.headerQName, header));
+		}
+	}
+}
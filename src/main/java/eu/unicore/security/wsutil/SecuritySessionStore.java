@@ -1,9 +1,16 @@
 package eu.unicore.security.wsutil;
 
-import java.util.HashMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.logging.log4j.Logger;
 
@@ -12,129 +19,824 @@ import eu.unicore.util.Log;
 
 /**
  * Responsible for security session storage.
- * 
- * Current implementation stores sessions in memory only.
- * 
- * This class is thread safe.
- * 
+ *
+ * The sessions are held in a {@link SessionTable}, by default on the Java heap
+ * ({@link HeapSessionTable}), alternatively off-heap ({@link OffHeapSessionTable}).
+ * The store maintains indexes by user and by expiry time on top of the table, which
+ * only contain session IDs and expiry times. Optionally, changes are recorded in a
+ * {@link SessionJournal} so that sessions survive a restart.
+ *
+ * Lookups of session IDs that were never issued by this store (e.g. stale IDs
+ * sent by clients after a restart) are rejected by a Bloom filter, which is
+ * consulted after a miss in the table, without invoking {@link #sessionNotFound(String)}.
+ *
+ * This class is thread safe. Session lookups do not take any lock: accesses are
+ * recorded in lossy buffers and applied to the user index in batches, so the
+ * LRU order is approximate. Updates only contend on the hash bins of the
+ * affected session and on the index of the affected user.
+ *
+ * Optionally, the total weight (estimated memory size) of all sessions is
+ * limited, see {@link #setMaxWeight(long)}.
+ *
+ * Optionally, the rate at which a user can create new sessions is limited,
+ * see {@link #setCreationRateLimit(double, int)}.
+ *
+ * Usage statistics are available via {@link #getMetrics()}. Listeners can be notified
+ * (asynchronously) about created and removed sessions.
+ *
+ * Subclasses can hook into session creation, removal and unsuccessful lookups,
+ * e.g. to share sessions between several servers
+ * (see {@link ReplicatedSecuritySessionStore}).
+ *
+ * A store that is no longer used should be closed, to stop its background thread.
+ *
+ * Compatibility note for subclasses: the types of the protected fields
+ * {@link #sessions} and {@link #sessionsPerUser} changed in 5.0.3.
+ *
  * @author K. Benedyczak
  * @author B. Schuller
  */
-public class SecuritySessionStore
+public class SecuritySessionStore implements Closeable
 {
 	private static final Logger log = Log.getLogger(Log.SECURITY, SecuritySessionStore.class);
 	private final static int DEF_MAX_SESSIONS_PER_USER = 5;
-	private final static long CLEANUP_INTERVAL = 1000*60; 
 
 	/**
-	 * store security tokens keyed by security session ID
+	 * upper bound of expired sessions removed by a single store operation
 	 */
-	protected Map<String, SecuritySession> sessions = new HashMap<>();
-			
+	private final static int MAX_EXPIRED_PER_OPERATION = 16;
+
+	/**
+	 * minimum number of IDs the issued-ID filter is sized for
+	 */
+	private final static int DEF_FILTER_CAPACITY = 16384;
+
 	/**
-	 * stores number of sessions per user (identified as effective DN + Client IP)
-	 * If this exceeds a threshold, the least-recently-used session is removed
+	 * store security tokens keyed by security session ID.
+	 * <p>
+	 * Note: up to 5.0.2 this was a <code>Map&lt;String, SecuritySession&gt;</code>,
+	 * guarded by the store's monitor. Subclasses using it must be adapted; the
+	 * {@link SessionTable} has the same get/put/remove semantics, but needs no locking.
 	 */
-	protected Map<String, AtomicInteger> sessionsPerUser = new HashMap<>();
+	protected final SessionTable sessions;
 
 	/**
-	 * When the sessions were cleaned the last time.
+	 * stores the sessions of each user (identified as effective DN + Client IP)
+	 * in access order. If their number exceeds a threshold, the least-recently-used
+	 * session is removed. Entries are dropped when the user has no sessions left.
+	 * <p>
+	 * Note: up to 5.0.2 the values were <code>AtomicInteger</code> session counts.
+	 * Subclasses should use {@link #getNumberOfSessions(String)} instead of
+	 * accessing this map.
 	 */
-	private long lastCleanup = 0; 
+	protected Map<String, UserSessions> sessionsPerUser = new ConcurrentHashMap<>();
+
+	/**
+	 * session deadlines, earliest first
+	 */
+	private final ConcurrentSkipListSet<Deadline> deadlines = new ConcurrentSkipListSet<>();
 
 	private final int maxPerUser;
 
+	private volatile SessionJournal journal;
+
+	/**
+	 * IDs of issued sessions. While it is being rebuilt, the replacement
+	 * is available as pendingFilter and new IDs are added to both
+	 */
+	private volatile SessionIdFilter issuedFilter = new SessionIdFilter(DEF_FILTER_CAPACITY);
+	private volatile SessionIdFilter pendingFilter;
+	private final AtomicBoolean filterRebuilding = new AtomicBoolean();
+
+	private final SecuritySessionMetrics metrics;
+
+	/**
+	 * session accesses not yet applied to the user index
+	 */
+	private final SessionAccessBuffer accessBuffer = new SessionAccessBuffer(this::applyAccess);
+
+	private volatile SessionCapacityPolicy capacityPolicy;
+
+	private final SessionEventDispatcher events = new SessionEventDispatcher();
+
+	private volatile SecuritySessionIDs sessionIDs;
+
+	private volatile double creationsPerMilli = 0;
+	private volatile int creationBurst = 1;
+
 	public SecuritySessionStore()
 	{
 		this(DEF_MAX_SESSIONS_PER_USER);
 	}
 
 	public SecuritySessionStore(int maxPerUser)
+	{
+		this(maxPerUser, new HeapSessionTable());
+	}
+
+	/**
+	 * @param maxPerUser - maximum number of sessions per user, non-positive for no limit
+	 * @param table - holds the session records
+	 */
+	public SecuritySessionStore(int maxPerUser, SessionTable table)
 	{
 		this.maxPerUser = maxPerUser;
+		this.sessions = table;
+		this.metrics = new SecuritySessionMetrics(table::size, () -> sessionsPerUser.size());
+	}
+
+	/**
+	 * Enables journaling: the sessions recorded in the given journal are restored into
+	 * this store (skipping expired ones), and subsequent changes are recorded.
+	 * @param journal
+	 * @throws IOException if the journal cannot be read
+	 */
+	public void setJournal(SessionJournal journal) throws IOException
+	{
+		for(SecuritySession session: journal.restore()){
+			importSession(session);
+		}
+		this.journal = journal;
+	}
+
+	/**
+	 * Limits the total weight of all sessions in this store. If it is exceeded, sessions
+	 * are evicted, preferring sessions that are used less frequently. Must be set before
+	 * the first session is stored.
+	 * @param maxWeight - maximum total weight in bytes, non-positive for no limit
+	 * @see #weigh(SecuritySession)
+	 */
+	public void setMaxWeight(long maxWeight)
+	{
+		this.capacityPolicy = maxWeight>0 ? new SessionCapacityPolicy(maxWeight, this::evict) : null;
+	}
+
+	/**
+	 * get the total weight of the sessions in this store, or 0 if it is not limited
+	 */
+	public long getWeight()
+	{
+		SessionCapacityPolicy policy = capacityPolicy;
+		return policy!=null ? policy.getWeight() : 0;
+	}
+
+	/**
+	 * Makes {@link #newSessionID()} create IDs carrying the identifier of this server, 
+	 * which can be used by a load balancer for routing requests
+	 * @param sessionIDs - <code>null</code> for plain random IDs
+	 */
+	public void setSessionIDs(SecuritySessionIDs sessionIDs)
+	{
+		this.sessionIDs = sessionIDs;
+	}
+
+	/**
+	 * @return a new session ID
+	 */
+	public String newSessionID()
+	{
+		SecuritySessionIDs ids = sessionIDs;
+		return ids!=null ? ids.newSessionID() : UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Limits the rate at which each user can create sessions, using a token bucket.
+	 * If a user exceeds the limit, the new session is not stored:
+	 * {@link #storeOrReuseSession(SecuritySession, SecurityTokens)} returns the user's
+	 * newest existing one instead, {@link #storeSession(SecuritySession, SecurityTokens)}
+	 * throws an {@link IllegalStateException}.
+	 * @param sessionsPerSecond - sustained creation rate per user, non-positive for no limit
+	 * @param burst - number of sessions a user can create in a row (in addition to the first one)
+	 */
+	public void setCreationRateLimit(double sessionsPerSecond, int burst)
+	{
+		this.creationsPerMilli = sessionsPerSecond>0 ? sessionsPerSecond/1000 : 0;
+		this.creationBurst = Math.max(1, burst);
+	}
+
+	/**
+	 * stores the new session. Callers that enable the creation rate limit should use
+	 * {@link #storeOrReuseSession(SecuritySession, SecurityTokens)}, which returns an
+	 * existing session instead of failing.
+	 * @throws IllegalStateException if the session cannot be stored, because it is
+	 * heavier than the maximum total weight, because the {@link SessionTable} is full
+	 * or because the user exceeded the creation rate limit
+	 */
+	public void storeSession(SecuritySession session, SecurityTokens tokens)
+	{
+		SecuritySession stored = storeOrReuseSession(session, tokens);
+		if(stored!=session){
+			throw new IllegalStateException("Security session for <"+session.getUserKey()
+					+"> was not stored: the session creation rate limit is exceeded");
+		}
 	}
 
-	public synchronized void storeSession(SecuritySession session, SecurityTokens tokens)
+	/**
+	 * stores the new session, unless the user exceeded the creation rate limit
+	 * @return the session the client should use: either the given one or, if the user
+	 * exceeded the creation rate limit, the user's newest existing session
+	 * @throws IllegalStateException if the session cannot be stored, because it is
+	 * heavier than the maximum total weight or because the {@link SessionTable} is full
+	 * @see #setCreationRateLimit(double, int)
+	 */
+	public SecuritySession storeOrReuseSession(SecuritySession session, SecurityTokens tokens)
 	{
 		String userKey=getUserKey(tokens);
 		session.setUserKey(userKey);
-		sessions.put(session.getSessionID(), session);
-		
-		AtomicInteger i = getOrCreateSessionCounter(userKey);
-		int sessions=i.incrementAndGet();
-		
+		if(creationsPerMilli>0){
+			SecuritySession existing = checkCreationRate(userKey);
+			if(existing!=null){
+				metrics.creationLimited();
+				if(log.isDebugEnabled()){
+					log.debug("Session creation rate exceeded for <"+userKey+
+							">, re-using session <"+existing.getSessionID()+">");
+				}
+				return existing;
+			}
+		}
+		addSession(session, true);
+		return session;
+	}
+
+	/**
+	 * @return the newest session of the user if it exceeded the creation rate, 
+	 * otherwise <code>null</code>
+	 */
+	private SecuritySession checkCreationRate(String userKey){
+		UserSessions userSessions = sessionsPerUser.get(userKey);
+		if(userSessions==null)return null;
+		String newest = null;
+		synchronized (userSessions) {
+			if(userSessions.tryCreate(creationsPerMilli, creationBurst, System.currentTimeMillis()))return null;
+			long expires = Long.MIN_VALUE;
+			for(Map.Entry<String, Long> e: userSessions.ids.entrySet()){
+				if(e.getValue()>=expires){
+					expires = e.getValue();
+					newest = e.getKey();
+				}
+			}
+		}
+		SecuritySession session = newest!=null ? sessions.get(newest) : null;
+		if(session==null || session.isExpired())return null;
+		accessBuffer.record(session);
+		return session;
+	}
+
+	/**
+	 * Adds a session which already has its user key set (e.g. one received from
+	 * another server) without invoking {@link #sessionStored(SecuritySession)}
+	 */
+	protected void importSession(SecuritySession session)
+	{
+		try{
+			addSession(session, false);
+		}catch(IllegalStateException e){
+			log.warn("Cannot import security session <"+session.getSessionID()+">: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes a session without invoking {@link #sessionRemoved(String, long, String)}
+	 * @param sessionID
+	 * @param expiryTime - the session is only removed if its expiry time matches
+	 * @param userKey - the user owning the session
+	 */
+	protected void discardSession(String sessionID, long expiryTime, String userKey)
+	{
+		if(removeSession(new Deadline(expiryTime, sessionID, userKey), false)){
+			events.publish(SecuritySessionEvent.Type.REMOVED, sessionID, userKey, expiryTime);
+		}
+	}
+
+	/**
+	 * Invoked after a new session was stored via 
+	 * {@link #storeSession(SecuritySession, SecurityTokens)}. The default implementation 
+	 * does nothing.
+	 */
+	protected void sessionStored(SecuritySession session)
+	{
+	}
+
+	/**
+	 * Invoked after a session was removed from this store for a reason other than its 
+	 * expiry, e.g. because its user has too many sessions. The default implementation 
+	 * does nothing.
+	 */
+	protected void sessionRemoved(String sessionID, long expiryTime, String userKey)
+	{
+	}
+
+	/**
+	 * Invoked when {@link #getSession(String)} does not find the session in this store.
+	 * It is not invoked for IDs that were never issued by this store, unless 
+	 * {@link #setSessionIDs(SecuritySessionIDs)} was used and the ID carries a
+	 * verified server identifier (of this or another server).
+	 * The default implementation returns <code>null</code>.
+	 * @return the session to return to the caller, or <code>null</code>
+	 */
+	protected SecuritySession sessionNotFound(String sessionID)
+	{
+		return null;
+	}
+
+	/**
+	 * Estimates the memory size of the session, used for limiting the total weight of 
+	 * the sessions. The default implementation uses the size of the encoded session, 
+	 * which includes assertions and certificate chains held by the security tokens.
+	 * It is invoked after the session was put into the table, so the size recorded
+	 * when a table like the {@link OffHeapSessionTable} encoded the session (or when
+	 * it was decoded) is reused; otherwise the session is encoded.
+	 */
+	protected long weigh(SecuritySession session)
+	{
+		int length = session.getEncodedLength();
+		return length>0 ? length : SecuritySessionCodec.encode(session).length;
+	}
+
+	/**
+	 * adds the session which already has its user key set
+	 */
+	private void addSession(SecuritySession session, boolean notify)
+	{
+		String userKey = session.getUserKey();
+		SessionCapacityPolicy policy = capacityPolicy;
+		// throws if the table is full, nothing was changed yet
+		SecuritySession previous = sessions.put(session);
+		long weight = 0;
+		if(policy!=null){
+			weight = weigh(session);
+			if(weight>policy.getMaxWeight()){
+				// not indexed yet, restore the table
+				sessions.remove(session.getSessionID(), session.getExpiryTime());
+				if(previous!=null){
+					sessions.put(previous);
+				}
+				throw new IllegalStateException("Security session for <"+userKey+"> is too large: "
+						+weight+" exceeds the maximum total weight "+policy.getMaxWeight());
+			}
+		}
+		if(previous!=null){
+			unindex(new Deadline(previous));
+		}
+		if(policy!=null){
+			// may evict other sessions
+			policy.add(session.getSessionID(), session.getExpiryTime(), userKey, weight);
+		}
+		int sessions=addToUserIndex(session);
+		deadlines.add(new Deadline(session));
+		addToFilter(session.getSessionID());
+		SessionJournal journal = this.journal;
+		if(journal!=null){
+			journal.sessionCreated(session);
+		}
+
+		if(notify){
+			metrics.sessionCreated();
+			events.publish(SecuritySessionEvent.Type.CREATED, session.getSessionID(), userKey, session.getExpiryTime());
+			sessionStored(session);
+		}
+
 		if(log.isDebugEnabled()){
 			log.debug("Created new security session <"+session.getSessionID()+" for <"+userKey+
 					"> will expire in " + (session.getLifetime()/1000.0) + "s");
 		}
 
-		if (lastCleanup + CLEANUP_INTERVAL < System.currentTimeMillis())
-			expelExpiredSessions();
+		expelExpiredSessions(MAX_EXPIRED_PER_OPERATION);
 
 		if (maxPerUser > 0 && sessions > maxPerUser)
-			expelLRUSession(userKey);
+			expelLRUSessions(userKey, session.getSessionID());
+	}
+
+	/**
+	 * removes a session chosen by the capacity policy
+	 */
+	private void evict(SessionCapacityPolicy.Entry e)
+	{
+		if(log.isDebugEnabled()){
+			log.debug("Removing security session <"+e.sessionID+"> to stay within the weight limit");
+		}
+		if(removeSession(new Deadline(e.expires, e.sessionID, e.userKey), true)){
+			metrics.sessionEvicted(true);
+			events.publish(SecuritySessionEvent.Type.EVICTED, e.sessionID, e.userKey, e.expires);
+		}
+	}
+
+	public SecuritySession getSession(String sessionID)
+	{
+		boolean timed = metrics.sampleLookup();
+		long start = timed ? System.nanoTime() : 0;
+		SecuritySession session = sessions.get(sessionID);
+		if(session!=null){
+			metrics.lookup(true, timed ? System.nanoTime()-start : -1);
+			accessBuffer.record(session);
+			return session;
+		}
+		boolean issued = issuedFilter.mightContain(sessionID);
+		if(!issued){
+			metrics.lookupRejected();
+		}
+		metrics.lookup(false, timed ? System.nanoTime()-start : -1);
+		if(issued || hasVerifiedID(sessionID)){
+			session = sessionNotFound(sessionID);
+		}
+		return session;
+	}
+
+	/**
+	 * checks whether the ID carries a server identifier verified with the
+	 * {@link SecuritySessionIDs} secret, so that it may be worth asking the peers
+	 * for a session not known to the filter. This includes IDs issued by this
+	 * server, as the filter is empty after a restart without a journal.
+	 */
+	private boolean hasVerifiedID(String sessionID)
+	{
+		SecuritySessionIDs ids = sessionIDs;
+		return ids!=null && ids.getVerifiedNode(sessionID)!=null;
+	}
+
+	/**
+	 * get the number of sessions currently held for the given user
+	 */
+	public int getNumberOfSessions(String userKey)
+	{
+		UserSessions userSessions = sessionsPerUser.get(userKey);
+		return userSessions!=null ? userSessions.size() : 0;
+	}
+
+	/**
+	 * get the number of lookups of session IDs that were rejected because
+	 * they were never issued by this store
+	 */
+	public long getRejectedLookups()
+	{
+		return metrics.getRejectedLookups();
+	}
+
+	/**
+	 * adds a listener, which is notified asynchronously about created, 
+	 * expired and removed sessions
+	 */
+	public void addListener(SecuritySessionListener listener)
+	{
+		events.addListener(listener);
+	}
+
+	public void removeListener(SecuritySessionListener listener)
+	{
+		events.removeListener(listener);
+	}
+
+	/**
+	 * get the dispatcher of session events, e.g. to check its statistics
+	 */
+	public SessionEventDispatcher getEventDispatcher()
+	{
+		return events;
+	}
+
+	/**
+	 * stops the delivery of session events. A journal set via
+	 * {@link #setJournal(SessionJournal)} is not closed, as it is owned by the caller.
+	 */
+	@Override
+	public void close()
+	{
+		events.close();
+	}
+
+	/**
+	 * get the usage statistics of this store
+	 */
+	public SecuritySessionMetrics getMetrics()
+	{
+		return metrics;
 	}
 
-	public synchronized SecuritySession getSession(String sessionID)
+	/**
+	 * get the (non-expired) sessions of the given user. The cost is proportional to
+	 * the number of sessions of this user, not to the size of the store.
+	 * @param userKey - the user identifier, see {@link #getUserKey(SecurityTokens)}
+	 */
+	public List<SecuritySession> listSessions(String userKey)
+	{
+		List<SecuritySession> result = new ArrayList<>();
+		for(Deadline entry: getUserEntries(userKey)){
+			SecuritySession session = sessions.get(entry.sessionID);
+			if(session!=null && session.getExpiryTime()==entry.expires && !session.isExpired()){
+				result.add(session);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * removes all sessions of the given user, e.g. when revoking the user's access.
+	 * The cost is proportional to the number of sessions of this user.
+	 * @param userKey - the user identifier, see {@link #getUserKey(SecurityTokens)}
+	 * @return the number of removed sessions
+	 */
+	public int invalidateAll(String userKey)
 	{
-		return sessions.get(sessionID);
+		int removed = 0;
+		for(Deadline entry: getUserEntries(userKey)){
+			if(removeSession(entry, true)){
+				removed++;
+				events.publish(SecuritySessionEvent.Type.REMOVED, entry.sessionID, userKey, entry.expires);
+			}
+		}
+		if(removed>0){
+			log.info("Removed "+removed+" security session(s) of <"+userKey+">");
+		}
+		return removed;
 	}
 
-	private String getUserKey(SecurityTokens tokens){
+	/**
+	 * get the identifier of the user owning sessions created with the given 
+	 * tokens, i.e. the effective user name and the client IP
+	 */
+	public static String getUserKey(SecurityTokens tokens){
 		return tokens.getEffectiveUserName()+"@"+tokens.getClientIP();
 	}
 
-	// retrieve the session counter
-	private synchronized AtomicInteger getOrCreateSessionCounter(String userKey){
-		AtomicInteger i=sessionsPerUser.get(userKey);
-		if (i==null) {
-			i=new AtomicInteger(0);
-			sessionsPerUser.put(userKey, i);
+	/**
+	 * @return snapshot of the user's index
+	 */
+	private List<Deadline> getUserEntries(String userKey){
+		UserSessions userSessions = sessionsPerUser.get(userKey);
+		List<Deadline> entries = new ArrayList<>();
+		if(userSessions==null)return entries;
+		synchronized (userSessions) {
+			for(Map.Entry<String, Long> e: userSessions.ids.entrySet()){
+				entries.add(new Deadline(e.getValue(), e.getKey(), userKey));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * applies a recorded session access, invoked by one thread at a time
+	 */
+	private void applyAccess(SecuritySession session){
+		long now = System.currentTimeMillis();
+		session.setLastAccessed(now);
+		UserSessions userSessions = sessionsPerUser.get(session.getUserKey());
+		if(userSessions!=null){
+			userSessions.touch(session.getSessionID());
+		}
+		SessionJournal journal = this.journal;
+		if(journal!=null){
+			journal.sessionAccessed(session.getSessionID(), now);
+		}
+		SessionCapacityPolicy policy = capacityPolicy;
+		if(policy!=null){
+			policy.recordAccess(session.getSessionID());
+		}
+	}
+
+	/**
+	 * Records an issued ID. IDs cannot be removed from the filter, so once it is full
+	 * it is replaced by a new one that only holds the live sessions. The new filter is
+	 * populated in the background, until then the old one stays in use.
+	 * The ID must have been added to the deadlines before, so that it is
+	 * either seen by a concurrent rebuild or added to the pending filter.
+	 */
+	private void addToFilter(String sessionID){
+		SessionIdFilter filter = issuedFilter;
+		filter.add(sessionID);
+		SessionIdFilter pending = pendingFilter;
+		if(pending!=null){
+			pending.add(sessionID);
+		}
+		if(filter.isFull() && filterRebuilding.compareAndSet(false, true)){
+			SessionIdFilter fresh = new SessionIdFilter(Math.max(DEF_FILTER_CAPACITY, 2*sessions.size()));
+			pendingFilter = fresh;
+			Thread rebuilder = new Thread(() -> rebuildFilter(fresh), "security-session-filter");
+			rebuilder.setDaemon(true);
+			rebuilder.start();
+		}
+	}
+
+	private void rebuildFilter(SessionIdFilter fresh){
+		try{
+			for(Deadline d: deadlines){
+				fresh.add(d.sessionID);
+			}
+			issuedFilter = fresh;
+			pendingFilter = null;
+		}finally{
+			filterRebuilding.set(false);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> while a replacement of the issued-ID filter is populated
+	 */
+	boolean isFilterRebuilding(){
+		return filterRebuilding.get();
+	}
+
+	/**
+	 * adds the session to its user's index, creating the index if needed
+	 * @return number of sessions of the user
+	 */
+	private int addToUserIndex(SecuritySession session){
+		String userKey = session.getUserKey();
+		while(true){
+			UserSessions userSessions = sessionsPerUser.computeIfAbsent(userKey, k -> new UserSessions());
+			synchronized (userSessions) {
+				// lost the race against removal of an empty index, retry with a fresh one
+				if(userSessions.discarded)continue;
+				userSessions.ids.put(session.getSessionID(), session.getExpiryTime());
+				return userSessions.ids.size();
+			}
 		}
-		return i;
 	}
 
-	private void decrementUserSessionCounter(String userKey){
-		AtomicInteger i=getOrCreateSessionCounter(userKey);
-		int sessions=i.decrementAndGet();
+	private void removeFromUserIndex(Deadline entry){
+		UserSessions userSessions = sessionsPerUser.get(entry.userKey);
+		if(userSessions==null)return;
+		int remaining;
+		synchronized (userSessions) {
+			userSessions.ids.remove(entry.sessionID, entry.expires);
+			remaining = userSessions.ids.size();
+			if(remaining==0){
+				userSessions.discarded = true;
+				sessionsPerUser.remove(entry.userKey, userSessions);
+			}
+		}
 		if(log.isDebugEnabled()){
-			log.debug("Sessions for "+userKey+" : "+sessions);
+			log.debug("Sessions for "+entry.userKey+" : "+remaining);
+		}
+	}
+
+	/**
+	 * removes the session from the indexes
+	 */
+	private void unindex(Deadline entry){
+		removeFromUserIndex(entry);
+		deadlines.remove(entry);
+		SessionCapacityPolicy policy = capacityPolicy;
+		if(policy!=null){
+			policy.remove(entry.sessionID, entry.expires);
+		}
+	}
+
+	/**
+	 * removes the session from the table and the indexes
+	 * @param notify - whether to invoke {@link #sessionRemoved(String, long, String)}
+	 * @return <code>true</code> if the session was removed from the table
+	 */
+	private boolean removeSession(Deadline entry, boolean notify){
+		boolean removed = sessions.remove(entry.sessionID, entry.expires);
+		if(removed){
+			SessionJournal journal = this.journal;
+			if(journal!=null){
+				journal.sessionRemoved(entry.sessionID, entry.expires);
+			}
+			if(notify){
+				sessionRemoved(entry.sessionID, entry.expires, entry.userKey);
+			}
 		}
+		unindex(entry);
+		return removed;
 	}
 
 	/**
-	 * Removes all expired sessions.
+	 * Removes expired sessions in deadline order, at most the given number of them,
+	 * so the cost per call is bounded regardless of the store size.
 	 */
-	private void expelExpiredSessions() {
-		Iterator<Map.Entry<String, SecuritySession>> iterator = sessions.entrySet().iterator();
-		while (iterator.hasNext()) {
-			SecuritySession session = iterator.next().getValue();
-			if(session.isExpired()){
-				iterator.remove();
-				decrementUserSessionCounter(session.getUserKey());
+	private void expelExpiredSessions(int limit) {
+		long now = System.currentTimeMillis();
+		Iterator<Deadline> iterator = deadlines.iterator();
+		int removed = 0;
+		while(removed<limit && iterator.hasNext()){
+			Deadline first = iterator.next();
+			if(first.expires>=now)return;
+			// concurrent callers may see the same entry, only one of them wins
+			if(!deadlines.remove(first))continue;
+			removed++;
+			if(removeSession(first, false)){
+				metrics.sessionExpired();
+				events.publish(SecuritySessionEvent.Type.EXPIRED, first.sessionID, first.userKey, first.expires);
 			}
 		}
-		lastCleanup = System.currentTimeMillis();
 	}
 
 	/**
-	 * Removes the LRU session for the given user key.
+	 * Removes the LRU sessions of the given user until the limit is met.
 	 * @param key
+	 * @param newSessionID - the session that was just added
 	 */
-	private void expelLRUSession(String key){
-		SecuritySession lru=null;
-		for(SecuritySession session: sessions.values()){
-			if(lru==null || lru.getLastAccessed()>session.getLastAccessed()){
-				lru=session;
+	private void expelLRUSessions(String key, String newSessionID){
+		accessBuffer.drain();
+		UserSessions userSessions = sessionsPerUser.get(key);
+		if(userSessions==null)return;
+		Deadline[] lru;
+		synchronized (userSessions) {
+			// the drained accesses happened before the new session was added
+			userSessions.ids.get(newSessionID);
+			int toRemove = userSessions.ids.size() - maxPerUser;
+			if(toRemove<=0)return;
+			lru = new Deadline[toRemove];
+			Iterator<Map.Entry<String, Long>> ids = userSessions.ids.entrySet().iterator();
+			for(int i=0; i<toRemove; i++){
+				Map.Entry<String, Long> e = ids.next();
+				lru[i] = new Deadline(e.getValue(), e.getKey(), key);
 			}
 		}
-		if (lru!=null){
+		for(Deadline entry: lru){
 			if(log.isDebugEnabled()){
 				log.debug("Removing LRU session for "+key);
 			}
-			if(null!=sessions.remove(lru.getSessionID())){
-				decrementUserSessionCounter(key);
+			if(removeSession(entry, true)){
+				metrics.sessionEvicted(false);
+				events.publish(SecuritySessionEvent.Type.EVICTED, entry.sessionID, key, entry.expires);
+			}
+		}
+	}
+
+	/**
+	 * expiry time of a session, ordered by time and session ID
+	 */
+	private static final class Deadline implements Comparable<Deadline>
+	{
+		private final long expires;
+		private final String sessionID;
+		private final String userKey;
+
+		Deadline(SecuritySession session)
+		{
+			this(session.getExpiryTime(), session.getSessionID(), session.getUserKey());
+		}
+
+		Deadline(long expires, String sessionID, String userKey)
+		{
+			this.expires = expires;
+			this.sessionID = sessionID;
+			this.userKey = userKey;
+		}
+
+		@Override
+		public int compareTo(Deadline o)
+		{
+			int c = Long.compare(expires, o.expires);
+			return c!=0 ? c : sessionID.compareTo(o.sessionID);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Deadline && compareTo((Deadline)o)==0;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return sessionID.hashCode();
+		}
+	}
+
+	/**
+	 * IDs and expiry times of the sessions of one user in access order, least
+	 * recently used first. All access must be synchronized on the instance.
+	 */
+	protected static class UserSessions
+	{
+		private final LinkedHashMap<String, Long> ids = new LinkedHashMap<>(8, 0.75f, true);
+
+		// set once the (empty) instance was removed from the index
+		private boolean discarded = false;
+
+		// token bucket limiting session creation, NaN until first used
+		private double creationTokens = Double.NaN;
+		private long lastRefill;
+
+		/**
+		 * takes a token from the bucket, after refilling it
+		 * @return <code>false</code> if the bucket is empty
+		 */
+		synchronized boolean tryCreate(double tokensPerMilli, int burst, long now)
+		{
+			if(Double.isNaN(creationTokens)){
+				creationTokens = burst;
+			}
+			else{
+				creationTokens = Math.min(burst, creationTokens + (now-lastRefill)*tokensPerMilli);
 			}
+			lastRefill = now;
+			if(creationTokens<1)return false;
+			creationTokens--;
+			return true;
+		}
+
+		synchronized void touch(String sessionID)
+		{
+			ids.get(sessionID);
+		}
+
+		synchronized int size()
+		{
+			return ids.size();
 		}
 	}
 }
@@ -0,0 +1,216 @@
+package eu.unicore.security.wsutil;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.util.Log;
+
+/**
+ * Stateless security sessions: instead of an ID referring to a session kept in a
+ * {@link SecuritySessionStore}, the client gets a self-contained ticket holding the
+ * encrypted and authenticated session (tokens, user key and expiry time),
+ * which can be used as the value of the {@link SecuritySessionUtils#SESSION_ID_HEADER}.
+ * Any server knowing the key can restore the session from the ticket,
+ * without shared state and without keeping the session in memory.
+ * To accept tickets, pass the tickets to the {@link SecuritySessionInHandler} or the
+ * {@link SecuritySessionFilter}; to hand out a ticket instead of the session ID, put it
+ * into the exchange under {@link SecuritySessionUtils#SESSION_TICKET_KEY}.
+ * <p>
+ * As tickets are sent in HTTP headers, their length is limited to {@link #MAX_TICKET_LENGTH},
+ * leaving room for the other headers within the common 8 KB limit of servers and proxies.
+ * Sessions with larger tokens (e.g. with many or large assertions) cannot be
+ * issued as tickets and must be kept in a {@link SecuritySessionStore}.
+ * <p>
+ * Tickets are encrypted with AES-GCM using the current key, which is derived from
+ * the secret with HKDF, so the secret must have enough entropy (e.g. 32 random bytes).
+ * For key rotation, a new
+ * key is added via {@link #rotate(int, byte[])}: it is used for all new tickets, while
+ * the previous keys are still accepted until they are retired via {@link #retireKey(int)}.
+ * Every ticket names the ID of the key it was issued with.
+ * <p>
+ * Note that tickets cannot be revoked before their expiry, and that ticket sessions
+ * are not subject to the per-user session limit.
+ * <p>
+ * This class is thread safe.
+ */
+public class SecuritySessionTickets
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, SecuritySessionTickets.class);
+
+	private static final byte VERSION = 1;
+	private static final int HEADER_LENGTH = 2;
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_BITS = 128;
+
+	/**
+	 * maximum length of a ticket, longer ones are neither issued nor decoded
+	 */
+	public static final int MAX_TICKET_LENGTH = 6*1024;
+
+	/**
+	 * minimum length of an encoded ticket, for telling session IDs apart cheaply
+	 */
+	private static final int MIN_TICKET_LENGTH = encodedLength(HEADER_LENGTH+IV_LENGTH+TAG_BITS/8);
+
+	private static final String KDF_SALT = "unicore-security-session-tickets";
+
+	private final Map<Integer, SecretKeySpec> keys = new ConcurrentHashMap<>();
+
+	private volatile int currentKeyID;
+
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * @param keyID - ID of the initial key (0-255)
+	 * @param secret - secret from which the key is derived
+	 */
+	public SecuritySessionTickets(int keyID, byte[] secret)
+	{
+		rotate(keyID, secret);
+	}
+
+	/**
+	 * adds a key and uses it for all subsequently issued tickets.
+	 * Tickets issued with the previous keys remain valid.
+	 * @param keyID - ID of the new key (0-255)
+	 * @param secret - secret from which the key is derived
+	 */
+	public synchronized void rotate(int keyID, byte[] secret)
+	{
+		checkKeyID(keyID);
+		keys.put(keyID, deriveKey(secret));
+		currentKeyID = keyID;
+	}
+
+	/**
+	 * removes a key, tickets issued with it are not accepted any more
+	 * @throws IllegalArgumentException if the key is the current one
+	 */
+	public synchronized void retireKey(int keyID)
+	{
+		if(keyID==currentKeyID)
+			throw new IllegalArgumentException("Cannot retire the current ticket key "+keyID);
+		keys.remove(keyID);
+	}
+
+	/**
+	 * @return the ID of the key used for issuing tickets
+	 */
+	public int getCurrentKeyID()
+	{
+		return currentKeyID;
+	}
+
+	/**
+	 * creates a ticket for the given session, which must have its user key set
+	 * @return URL-safe ticket
+	 * @throws IllegalArgumentException if the session has no user key, or if it is
+	 * too large for a ticket, see {@link #MAX_TICKET_LENGTH}
+	 */
+	public String issue(SecuritySession session)
+	{
+		if(session.getUserKey()==null)
+			throw new IllegalArgumentException("Session has no user key");
+		byte[] data = SecuritySessionCodec.encode(session);
+		int length = encodedLength(HEADER_LENGTH+IV_LENGTH+data.length+TAG_BITS/8);
+		if(length>MAX_TICKET_LENGTH)
+			throw new IllegalArgumentException("Security session <"+session.getSessionID()
+				+"> is too large for a ticket: "+length+" bytes, maximum is "+MAX_TICKET_LENGTH);
+		int keyID = currentKeyID;
+		SecretKeySpec key = keys.get(keyID);
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		try{
+			Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+			c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+			ByteBuffer ticket = ByteBuffer.allocate(HEADER_LENGTH + IV_LENGTH + c.getOutputSize(data.length));
+			ticket.put(VERSION).put((byte)keyID);
+			c.updateAAD(ticket.array(), 0, HEADER_LENGTH);
+			ticket.put(iv);
+			c.doFinal(ByteBuffer.wrap(data), ticket);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(ticket.array());
+		}catch(GeneralSecurityException e){
+			throw new IllegalStateException("Cannot create security session ticket", e);
+		}
+	}
+
+	/**
+	 * restores the session from the given ticket
+	 * @return the session, or <code>null</code> if the ticket is not valid (e.g. it was
+	 * modified, created with an unknown key, or is not a ticket at all) or the session has expired
+	 */
+	public SecuritySession restore(String ticket)
+	{
+		if(!isWellFormed(ticket))return null;
+		byte[] raw;
+		try{
+			raw = Base64.getUrlDecoder().decode(ticket);
+		}catch(IllegalArgumentException e){
+			return null;
+		}
+		if(raw.length<=HEADER_LENGTH+IV_LENGTH || raw[0]!=VERSION)return null;
+		int keyID = raw[1] & 0xff;
+		SecretKeySpec key = keys.get(keyID);
+		if(key==null){
+			log.debug("Security session ticket with unknown key {}", keyID);
+			return null;
+		}
+		SecuritySession session;
+		try{
+			Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+			c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, raw, HEADER_LENGTH, IV_LENGTH));
+			c.updateAAD(raw, 0, HEADER_LENGTH);
+			int offset = HEADER_LENGTH+IV_LENGTH;
+			session = SecuritySessionCodec.decode(c.doFinal(raw, offset, raw.length-offset));
+		}catch(GeneralSecurityException | IllegalArgumentException e){
+			log.debug("Invalid security session ticket: {}", e.getMessage());
+			return null;
+		}
+		return session.isExpired() ? null : session;
+	}
+
+	/**
+	 * cheap check that the value can be a ticket at all, i.e. that it has a
+	 * valid length and only contains characters of the URL-safe Base64 alphabet.
+	 * Session IDs (UUIDs or {@link SecuritySessionIDs}) are too short or contain other characters
+	 */
+	private static boolean isWellFormed(String ticket)
+	{
+		if(ticket==null || ticket.length()<MIN_TICKET_LENGTH || ticket.length()>MAX_TICKET_LENGTH)return false;
+		for(int i=0; i<ticket.length(); i++){
+			char c = ticket.charAt(i);
+			boolean valid = (c>='A' && c<='Z') || (c>='a' && c<='z') || (c>='0' && c<='9') || c=='-' || c=='_';
+			if(!valid)return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return length of the unpadded Base64 encoding of the given number of bytes
+	 */
+	private static int encodedLength(int bytes)
+	{
+		return (bytes*4+2)/3;
+	}
+
+	private static void checkKeyID(int keyID)
+	{
+		if(keyID<0 || keyID>255)
+			throw new IllegalArgumentException("Ticket key ID must be in the range 0-255");
+	}
+
+	private static SecretKeySpec deriveKey(byte[] secret)
+	{
+		return new SecretKeySpec(KeyDerivation.hkdf(secret, KDF_SALT, "encryption", 32), "AES");
+	}
+}
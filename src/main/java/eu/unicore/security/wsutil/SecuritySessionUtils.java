@@ -32,6 +32,12 @@ public class SecuritySessionUtils
 	 */
 	public static final String SESSION_ID_KEY="unicore-security-session-id";
 
+	/**
+	 * Server side: exchange key of the ticket (see {@link SecuritySessionTickets}) representing
+	 * the session. If set, it is sent to the client instead of the session ID
+	 */
+	public static final String SESSION_TICKET_KEY="unicore-security-session-ticket";
+
 	/**
 	 * Server and client side. On the server side used to mark that the security tokens were taken 
 	 * from an existing session. On client side marks that session is used for the outgoing call and the value is 
@@ -0,0 +1,468 @@
+package eu.unicore.security.wsutil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.xmlbeans.SchemaType;
+import org.apache.xmlbeans.XmlBeans;
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.util.Log;
+
+/**
+ * Encodes {@link SecurityTokens} for the {@link SecuritySessionCodec}.
+ * <p>
+ * Plain {@link SecurityTokens} are written field by field, with the field name and a
+ * tagged value. Certificates and certificate chains are written in DER encoding,
+ * X.500 principals as DER encoded names, XMLBeans documents (e.g. SAML assertions) as
+ * XML, as are assertion objects wrapping them (classes from <code>eu.unicore</code> with
+ * a <code>getXMLBeanDoc()</code> method and a constructor taking the document).
+ * Enum constants of <code>eu.unicore</code> and JDK enums are written by name.
+ * Strings, numbers, booleans, and lists and maps of these are written directly. Only
+ * other values, e.g. arbitrary objects put into the context, are written with Java
+ * serialization. Fields unknown when decoding (i.e. from another version of the
+ * security library) are skipped.
+ * <p>
+ * Subclasses of {@link SecurityTokens} may hold additional state and are written
+ * with Java serialization as a whole.
+ * <p>
+ * All Java deserialization is restricted by {@link #FILTER}.
+ */
+final class SecurityTokensCodec
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, SecurityTokensCodec.class);
+
+	/**
+	 * first byte of the field based encoding. Java serialization streams start with 0xAC
+	 */
+	static final byte FIELDS = 1;
+
+	/**
+	 * classes that may be deserialized: the session and security token classes and
+	 * the JDK and security library classes they are composed of
+	 */
+	static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+			"maxdepth=32;maxrefs=100000;maxarray=65536;maxbytes=4194304;"
+			+ "java.lang.*;java.util.*;java.util.concurrent.*;java.util.concurrent.atomic.*;"
+			+ "java.math.*;java.time.*;java.net.*;java.security.cert.*;javax.security.auth.x500.*;"
+			+ "javax.xml.namespace.*;eu.unicore.**;eu.emi.security.**;org.apache.xmlbeans.**;xmlbeans.**;!*");
+
+	private static final String WRAPPER_PACKAGE = "eu.unicore.";
+
+	private static final String JDK_PACKAGE = "java.";
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte INTEGER = 3;
+	private static final byte LONG = 4;
+	private static final byte CERTIFICATE = 5;
+	private static final byte CERTIFICATE_CHAIN = 6;
+	private static final byte PRINCIPAL = 7;
+	private static final byte LIST = 8;
+	private static final byte MAP = 9;
+	private static final byte XML = 10;
+	private static final byte XML_WRAPPER = 11;
+	private static final byte SERIALIZED = 12;
+	private static final byte ENUM = 13;
+
+	/**
+	 * instance fields of SecurityTokens, or <code>null</code> if not accessible
+	 */
+	private static final Map<String, Field> TOKEN_FIELDS;
+
+	static{
+		Map<String, Field> fields = new HashMap<>();
+		try{
+			for(Class<?> c = SecurityTokens.class; c!=Object.class; c = c.getSuperclass()){
+				for(Field f: c.getDeclaredFields()){
+					int mod = f.getModifiers();
+					if(Modifier.isStatic(mod) || Modifier.isTransient(mod))continue;
+					f.setAccessible(true);
+					fields.put(f.getName(), f);
+				}
+			}
+		}catch(RuntimeException e){
+			log.info("Cannot encode security tokens by field, using serialization: "+e);
+			fields = null;
+		}
+		TOKEN_FIELDS = fields;
+	}
+
+	private SecurityTokensCodec(){}
+
+	/**
+	 * @throws IllegalArgumentException if the tokens cannot be encoded
+	 */
+	static void encode(SecurityTokens tokens, OutputStream target)
+	{
+		encode(tokens, target, false);
+	}
+
+	/**
+	 * @param strict - do not fall back to Java serialization, e.g. to check
+	 * that all values of the tokens have a dedicated encoding
+	 * @throws IllegalArgumentException if the tokens cannot be encoded, or if strict
+	 * and the tokens or one of their values would be serialized
+	 */
+	static void encode(SecurityTokens tokens, OutputStream target, boolean strict)
+	{
+		try{
+			if(tokens instanceof SessionTokensView)tokens = tokens.clone();
+			if(TOKEN_FIELDS==null || tokens.getClass()!=SecurityTokens.class){
+				if(strict)throw new IOException("Cannot encode "+tokens.getClass().getName()+" by field");
+				try(ObjectOutputStream os = new ObjectOutputStream(target)){
+					os.writeObject(tokens);
+				}
+				return;
+			}
+			DataOutputStream out = new DataOutputStream(target);
+			out.writeByte(FIELDS);
+			out.writeInt(TOKEN_FIELDS.size());
+			for(Field f: TOKEN_FIELDS.values()){
+				out.writeUTF(f.getName());
+				writeValue(out, f.get(tokens), strict);
+			}
+			out.flush();
+		}catch(IOException | IllegalAccessException | CloneNotSupportedException e){
+			throw new IllegalArgumentException("Cannot encode security tokens", e);
+		}
+	}
+
+	/**
+	 * @param source - encoded tokens, either field based or serialized, i.e. the
+	 * remaining bytes of the buffer
+	 * @throws IllegalArgumentException if the tokens cannot be decoded
+	 */
+	static SecurityTokens decode(ByteBuffer source)
+	{
+		DataInputStream in = new DataInputStream(new SecuritySessionCodec.ByteBufferInputStream(source));
+		try{
+			if(!source.hasRemaining() || source.get(source.position())!=FIELDS){
+				return (SecurityTokens)deserialize(in);
+			}
+			in.readByte();
+			if(TOKEN_FIELDS==null)throw new IOException("security token fields are not accessible");
+			SecurityTokens tokens = new SecurityTokens();
+			int count = readCount(in);
+			for(int i=0; i<count; i++){
+				String name = in.readUTF();
+				Object value = readValue(in);
+				Field f = TOKEN_FIELDS.get(name);
+				if(f==null){
+					log.debug("Skipping unknown security token field <{}>", name);
+					continue;
+				}
+				if(value==null && f.getType().isPrimitive())continue;
+				f.set(tokens, value);
+			}
+			return tokens;
+		}catch(IOException | ClassNotFoundException | ClassCastException
+				| IllegalAccessException | IllegalArgumentException e){
+			throw new IllegalArgumentException("Cannot decode security tokens", e);
+		}
+	}
+
+	/**
+	 * @return an object input stream accepting only the classes allowed by {@link #FILTER}
+	 */
+	static ObjectInputStream openFiltered(InputStream in) throws IOException
+	{
+		ObjectInputStream is = new ObjectInputStream(in);
+		is.setObjectInputFilter(FILTER);
+		return is;
+	}
+
+	private static Object deserialize(InputStream in) throws IOException, ClassNotFoundException
+	{
+		try(ObjectInputStream is = openFiltered(in)){
+			return is.readObject();
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object value, boolean strict) throws IOException
+	{
+		if(value==null){
+			out.writeByte(NULL);
+		}
+		else if(value instanceof String){
+			out.writeByte(STRING);
+			writeBytes(out, ((String)value).getBytes(StandardCharsets.UTF_8));
+		}
+		else if(value instanceof Boolean){
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean)value);
+		}
+		else if(value instanceof Integer){
+			out.writeByte(INTEGER);
+			out.writeInt((Integer)value);
+		}
+		else if(value instanceof Long){
+			out.writeByte(LONG);
+			out.writeLong((Long)value);
+		}
+		else if(value instanceof X509Certificate){
+			out.writeByte(CERTIFICATE);
+			writeCertificate(out, (X509Certificate)value);
+		}
+		else if(value.getClass()==X509Certificate[].class){
+			X509Certificate[] chain = (X509Certificate[])value;
+			out.writeByte(CERTIFICATE_CHAIN);
+			out.writeInt(chain.length);
+			for(X509Certificate c: chain){
+				writeCertificate(out, c);
+			}
+		}
+		else if(value instanceof X500Principal){
+			out.writeByte(PRINCIPAL);
+			writeBytes(out, ((X500Principal)value).getEncoded());
+		}
+		else if(value.getClass()==ArrayList.class){
+			List<?> list = (List<?>)value;
+			out.writeByte(LIST);
+			out.writeInt(list.size());
+			for(Object o: list){
+				writeValue(out, o, strict);
+			}
+		}
+		else if(value.getClass()==HashMap.class && hasStringKeys((Map<?,?>)value)){
+			Map<?,?> map = (Map<?,?>)value;
+			out.writeByte(MAP);
+			out.writeInt(map.size());
+			for(Map.Entry<?,?> e: map.entrySet()){
+				writeBytes(out, ((String)e.getKey()).getBytes(StandardCharsets.UTF_8));
+				writeValue(out, e.getValue(), strict);
+			}
+		}
+		else if(value instanceof XmlObject){
+			out.writeByte(XML);
+			writeXml(out, (XmlObject)value);
+		}
+		else if(getWrappedXml(value)!=null){
+			out.writeByte(XML_WRAPPER);
+			out.writeUTF(value.getClass().getName());
+			writeXml(out, getWrappedXml(value));
+		}
+		else if(value instanceof Enum && isEnumAllowed(((Enum<?>)value).getDeclaringClass().getName())){
+			out.writeByte(ENUM);
+			out.writeUTF(((Enum<?>)value).getDeclaringClass().getName());
+			out.writeUTF(((Enum<?>)value).name());
+		}
+		else{
+			if(strict)throw new IOException("Value of type "+value.getClass().getName()+" would be serialized");
+			out.writeByte(SERIALIZED);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try(ObjectOutputStream os = new ObjectOutputStream(bos)){
+				os.writeObject(value);
+			}
+			out.writeInt(bos.size());
+			bos.writeTo(out);
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException
+	{
+		byte tag = in.readByte();
+		switch(tag){
+		case NULL:
+			return null;
+		case STRING:
+			return new String(readBytes(in), StandardCharsets.UTF_8);
+		case BOOLEAN:
+			return in.readBoolean();
+		case INTEGER:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case CERTIFICATE:
+			return readCertificate(in);
+		case CERTIFICATE_CHAIN:
+			X509Certificate[] chain = new X509Certificate[readCount(in)];
+			for(int i=0; i<chain.length; i++){
+				chain[i] = readCertificate(in);
+			}
+			return chain;
+		case PRINCIPAL:
+			return new X500Principal(readBytes(in));
+		case LIST:
+			int size = readCount(in);
+			List<Object> list = new ArrayList<>(size);
+			for(int i=0; i<size; i++){
+				list.add(readValue(in));
+			}
+			return list;
+		case MAP:
+			int entries = readCount(in);
+			Map<String, Object> map = new HashMap<>();
+			for(int i=0; i<entries; i++){
+				String key = new String(readBytes(in), StandardCharsets.UTF_8);
+				map.put(key, readValue(in));
+			}
+			return map;
+		case XML:
+			return readXml(in);
+		case XML_WRAPPER:
+			String className = in.readUTF();
+			return wrap(className, readXml(in));
+		case SERIALIZED:
+			return deserialize(new ByteArrayInputStream(readBytes(in)));
+		case ENUM:
+			String enumName = in.readUTF();
+			return readEnum(enumName, in.readUTF());
+		default:
+			throw new IOException("Unknown value type "+tag);
+		}
+	}
+
+	private static boolean isEnumAllowed(String className)
+	{
+		return className.startsWith(WRAPPER_PACKAGE) || className.startsWith(JDK_PACKAGE);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Object readEnum(String className, String name) throws IOException, ClassNotFoundException
+	{
+		if(!isEnumAllowed(className))throw new IOException("Class not allowed: "+className);
+		Class<?> c = Class.forName(className, false, SecurityTokensCodec.class.getClassLoader());
+		if(!c.isEnum())throw new IOException("Not an enum: "+className);
+		return Enum.valueOf((Class<? extends Enum>)c, name);
+	}
+
+	private static boolean hasStringKeys(Map<?,?> map)
+	{
+		for(Object key: map.keySet()){
+			if(!(key instanceof String))return false;
+		}
+		return true;
+	}
+
+	private static void writeCertificate(DataOutputStream out, X509Certificate cert) throws IOException
+	{
+		try{
+			writeBytes(out, cert.getEncoded());
+		}catch(CertificateException e){
+			throw new IOException(e);
+		}
+	}
+
+	private static X509Certificate readCertificate(DataInputStream in) throws IOException
+	{
+		byte[] der = readBytes(in);
+		try{
+			CertificateFactory cf = CertificateFactory.getInstance("X.509");
+			return (X509Certificate)cf.generateCertificate(new ByteArrayInputStream(der));
+		}catch(CertificateException e){
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * writes the name of the document's Java type, followed by its XML
+	 */
+	private static void writeXml(DataOutputStream out, XmlObject xml) throws IOException
+	{
+		String type = xml.schemaType().getFullJavaName();
+		out.writeUTF(type!=null ? type : "");
+		writeBytes(out, xml.xmlText().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static XmlObject readXml(DataInputStream in) throws IOException
+	{
+		String typeName = in.readUTF();
+		String xml = new String(readBytes(in), StandardCharsets.UTF_8);
+		SchemaType type = typeName.isEmpty() ? null : XmlBeans.getContextTypeLoader().typeForClassname(typeName);
+		try{
+			return XmlBeans.getContextTypeLoader().parse(xml, type, null);
+		}catch(XmlException e){
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @return the XML document wrapped by an assertion object, or <code>null</code>
+	 */
+	private static XmlObject getWrappedXml(Object value)
+	{
+		if(!value.getClass().getName().startsWith(WRAPPER_PACKAGE))return null;
+		try{
+			Method m = value.getClass().getMethod("getXMLBeanDoc");
+			Object doc = m.invoke(value);
+			if(!(doc instanceof XmlObject) || findConstructor(value.getClass(), doc.getClass())==null)return null;
+			return (XmlObject)doc;
+		}catch(NoSuchMethodException | IllegalAccessException | InvocationTargetException e){
+			return null;
+		}
+	}
+
+	private static Object wrap(String className, XmlObject doc) throws IOException, ClassNotFoundException
+	{
+		if(!className.startsWith(WRAPPER_PACKAGE))throw new IOException("Class not allowed: "+className);
+		Class<?> c = Class.forName(className, false, SecurityTokensCodec.class.getClassLoader());
+		Constructor<?> constructor = findConstructor(c, doc.getClass());
+		if(constructor==null)throw new IOException("Cannot create "+className+" from XML");
+		try{
+			return constructor.newInstance(doc);
+		}catch(InvocationTargetException | InstantiationException | IllegalAccessException e){
+			throw new IOException("Cannot create "+className+" from XML", e);
+		}
+	}
+
+	private static Constructor<?> findConstructor(Class<?> c, Class<?> docClass)
+	{
+		for(Constructor<?> constructor: c.getConstructors()){
+			Class<?>[] params = constructor.getParameterTypes();
+			if(params.length==1 && params[0].isAssignableFrom(docClass))return constructor;
+		}
+		return null;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException
+	{
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException
+	{
+		byte[] b = new byte[readCount(in)];
+		in.readFully(b);
+		return b;
+	}
+
+	/**
+	 * reads a length or count, which cannot exceed the remaining bytes
+	 */
+	private static int readCount(DataInputStream in) throws IOException
+	{
+		int count = in.readInt();
+		if(count<0 || count>in.available())throw new IOException("Invalid length "+count+": data is truncated");
+		return count;
+	}
+}
@@ -0,0 +1,114 @@
+package eu.unicore.security.wsutil;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Records session accesses from request threads, to be applied to the LRU
+ * index in batches, so that lookups do not need to take the per-user lock.
+ * <p>
+ * Accesses go to one of several fixed size ring buffers, selected by the calling
+ * thread. The buffers are lossy: if a buffer is full or contended, the access is
+ * dropped, which only makes the LRU order approximate. A full buffer triggers
+ * a drain by the recording thread, unless another thread is already draining.
+ * This class is thread safe.
+ */
+class SessionAccessBuffer
+{
+	private static final int BUFFER_SIZE = 16;
+	private static final int MASK = BUFFER_SIZE-1;
+
+	private final Stripe[] stripes;
+	private final ReentrantLock drainLock = new ReentrantLock();
+	private final Consumer<SecuritySession> consumer;
+
+	/**
+	 * @param consumer - applies a recorded access, invoked by one thread at a time
+	 */
+	SessionAccessBuffer(Consumer<SecuritySession> consumer)
+	{
+		int n = 1;
+		while(n<2*Runtime.getRuntime().availableProcessors() && n<64)n <<= 1;
+		this.stripes = new Stripe[n];
+		for(int i=0; i<stripes.length; i++){
+			stripes[i] = new Stripe();
+		}
+		this.consumer = consumer;
+	}
+
+	/**
+	 * records an access to the session
+	 */
+	void record(SecuritySession session)
+	{
+		int h = (int)Thread.currentThread().getId() * 0x9E3779B9;
+		Stripe stripe = stripes[(h ^ (h>>>16)) & (stripes.length-1)];
+		if(!stripe.offer(session) && drainLock.tryLock()){
+			try{
+				drainAll();
+			}finally{
+				drainLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * applies all recorded accesses, waiting for a concurrent drain to finish
+	 */
+	void drain()
+	{
+		drainLock.lock();
+		try{
+			drainAll();
+		}finally{
+			drainLock.unlock();
+		}
+	}
+
+	private void drainAll()
+	{
+		for(Stripe s: stripes){
+			s.drainTo(consumer);
+		}
+	}
+
+	private static final class Stripe
+	{
+		private final AtomicReferenceArray<SecuritySession> buffer = new AtomicReferenceArray<>(BUFFER_SIZE);
+		private final AtomicLong writeCounter = new AtomicLong();
+		// only modified while holding the drain lock
+		private volatile long readCounter;
+
+		/**
+		 * @return <code>false</code> if the buffer is full
+		 */
+		boolean offer(SecuritySession session)
+		{
+			long head = readCounter;
+			long tail = writeCounter.get();
+			if(tail-head>=BUFFER_SIZE)return false;
+			// on contention the access is dropped
+			if(writeCounter.compareAndSet(tail, tail+1)){
+				buffer.lazySet((int)(tail & MASK), session);
+			}
+			return true;
+		}
+
+		void drainTo(Consumer<SecuritySession> consumer)
+		{
+			long head = readCounter;
+			long tail = writeCounter.get();
+			for(; head<tail; head++){
+				int index = (int)(head & MASK);
+				SecuritySession session = buffer.get(index);
+				// slot claimed, but not yet written: leave it for the next drain
+				if(session==null)break;
+				buffer.lazySet(index, null);
+				consumer.accept(session);
+			}
+			readCounter = head;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package eu.unicore.security.wsutil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounds the total weight (estimated memory size) of the sessions in a store,
+ * choosing eviction victims with the W-TinyLFU policy.
+ * <p>
+ * New sessions enter a small LRU window, which always keeps at least the newest
+ * session, even if it alone exceeds the window's share of the budget. Sessions
+ * leaving the window are candidates
+ * for the main LRU region: when the budget is exceeded, the candidate is compared to
+ * the least recently used session of the main region, and the one that was accessed
+ * less frequently is evicted. Access frequencies are estimated with a count-min sketch
+ * that is periodically aged. Thus a burst of sessions that are never used again
+ * does not displace frequently used ones.
+ * <p>
+ * Sessions heavier than the whole budget must not be added.
+ * <p>
+ * This class is thread safe. Updates are queued and applied in batches by whichever
+ * thread gets the lock first, similar to the {@link SessionAccessBuffer}; other threads
+ * do not wait. Unlike accesses, updates are never dropped. The victims are passed to the
+ * evictor by the thread applying the updates, after releasing the lock.
+ */
+class SessionCapacityPolicy
+{
+	/**
+	 * share of the total weight reserved for the window
+	 */
+	private static final double WINDOW_RATIO = 0.01;
+
+	private final long maxWeight;
+	private final long maxWindowWeight;
+	private final Consumer<Entry> evictor;
+
+	private final Queue<Update> updates = new ConcurrentLinkedQueue<>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// guarded by the lock
+	private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+	private long windowWeight;
+	private final FrequencySketch sketch = new FrequencySketch();
+
+	// written while holding the lock
+	private volatile long totalWeight;
+
+	/**
+	 * @param maxWeight - maximum total weight
+	 * @param evictor - removes an evicted session from the store
+	 */
+	SessionCapacityPolicy(long maxWeight, Consumer<Entry> evictor)
+	{
+		this.maxWeight = maxWeight;
+		this.maxWindowWeight = (long)(maxWeight*WINDOW_RATIO);
+		this.evictor = evictor;
+	}
+
+	/**
+	 * adds a session, replacing an entry with the same ID. The new session is never
+	 * evicted to make room for itself.
+	 * @throws IllegalArgumentException if the weight exceeds the maximum total weight
+	 */
+	void add(String sessionID, long expires, String userKey, long weight)
+	{
+		if(weight>maxWeight)throw new IllegalArgumentException(
+				"Session weight "+weight+" exceeds the maximum total weight "+maxWeight);
+		Entry entry = new Entry(sessionID, expires, userKey, weight);
+		submit(evicted -> applyAdd(entry, evicted));
+	}
+
+	void recordAccess(String sessionID)
+	{
+		submit(evicted -> applyAccess(sessionID));
+	}
+
+	/**
+	 * removes the session, if its expiry time matches
+	 */
+	void remove(String sessionID, long expires)
+	{
+		submit(evicted -> applyRemove(sessionID, expires));
+	}
+
+	private void submit(Update update)
+	{
+		updates.add(update);
+		drainUpdates();
+	}
+
+	private void drainUpdates()
+	{
+		// re-check after unlocking, updates queued meanwhile may have found the lock taken
+		while(!updates.isEmpty() && lock.tryLock()){
+			List<Entry> evicted = new ArrayList<>();
+			try{
+				Update update;
+				while((update = updates.poll())!=null){
+					update.apply(evicted);
+				}
+			}finally{
+				lock.unlock();
+			}
+			for(Entry e: evicted){
+				evictor.accept(e);
+			}
+		}
+	}
+
+	private void applyAdd(Entry newest, List<Entry> evicted)
+	{
+		String sessionID = newest.sessionID;
+		sketch.increment(sessionID);
+		removeEntry(sessionID);
+		window.put(sessionID, newest);
+		windowWeight += newest.weight;
+		totalWeight += newest.weight;
+		Iterator<Entry> it = window.values().iterator();
+		while(windowWeight>maxWindowWeight && window.size()>1){
+			Entry candidate = it.next();
+			it.remove();
+			windowWeight -= candidate.weight;
+			admit(candidate, evicted);
+		}
+		// still above the budget: evict the older window entries, then the least
+		// recently used entries of the main region
+		it = window.values().iterator();
+		while(totalWeight>maxWeight && window.size()>1){
+			Entry e = it.next();
+			it.remove();
+			windowWeight -= e.weight;
+			totalWeight -= e.weight;
+			evicted.add(e);
+		}
+		it = main.values().iterator();
+		while(totalWeight>maxWeight && it.hasNext()){
+			Entry e = it.next();
+			it.remove();
+			totalWeight -= e.weight;
+			evicted.add(e);
+		}
+	}
+
+	/**
+	 * moves the candidate from the window to the main region, if there is room or if
+	 * it is used more frequently than the main region's victims
+	 */
+	private void admit(Entry candidate, List<Entry> evicted)
+	{
+		int candidateFrequency = sketch.frequency(candidate.sessionID);
+		Iterator<Entry> victims = main.values().iterator();
+		while(totalWeight>maxWeight){
+			Entry victim = victims.hasNext() ? victims.next() : null;
+			if(victim==null || sketch.frequency(victim.sessionID)>=candidateFrequency){
+				totalWeight -= candidate.weight;
+				evicted.add(candidate);
+				return;
+			}
+			victims.remove();
+			totalWeight -= victim.weight;
+			evicted.add(victim);
+		}
+		main.put(candidate.sessionID, candidate);
+	}
+
+	private void applyAccess(String sessionID)
+	{
+		sketch.increment(sessionID);
+		if(window.get(sessionID)==null){
+			main.get(sessionID);
+		}
+	}
+
+	private void applyRemove(String sessionID, long expires)
+	{
+		Entry e = window.get(sessionID);
+		if(e==null)e = main.get(sessionID);
+		if(e!=null && e.expires==expires){
+			removeEntry(sessionID);
+		}
+	}
+
+	private void removeEntry(String sessionID)
+	{
+		Entry e = window.remove(sessionID);
+		if(e!=null){
+			windowWeight -= e.weight;
+		}
+		else{
+			e = main.remove(sessionID);
+		}
+		if(e!=null){
+			totalWeight -= e.weight;
+		}
+	}
+
+	/**
+	 * @return the total weight, not including updates that are still queued
+	 */
+	long getWeight()
+	{
+		return totalWeight;
+	}
+
+	long getMaxWeight()
+	{
+		return maxWeight;
+	}
+
+	private interface Update
+	{
+		void apply(List<Entry> evicted);
+	}
+
+	static final class Entry
+	{
+		final String sessionID;
+		final long expires;
+		final String userKey;
+		final long weight;
+
+		Entry(String sessionID, long expires, String userKey, long weight)
+		{
+			this.sessionID = sessionID;
+			this.expires = expires;
+			this.userKey = userKey;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * count-min sketch with four rows of 4 bit counters. Once the number of increments
+	 * reaches the sample size, all counters are halved, so that old accesses
+	 * lose their weight.
+	 */
+	static final class FrequencySketch
+	{
+		private static final int COUNTERS = 1<<16;
+		private static final int SAMPLE_SIZE = 10*COUNTERS;
+		private static final long[] SEEDS = {
+				0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+		// 16 counters per long
+		private final long[] table = new long[COUNTERS/16];
+		private int additions;
+
+		int frequency(String key)
+		{
+			int hash = spread(key.hashCode());
+			int frequency = Integer.MAX_VALUE;
+			for(int i=0; i<4; i++){
+				int index = indexOf(hash, i);
+				int count = (int)((table[index>>>4] >>> ((index & 15) << 2)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		void increment(String key)
+		{
+			int hash = spread(key.hashCode());
+			boolean added = false;
+			for(int i=0; i<4; i++){
+				int index = indexOf(hash, i);
+				int word = index>>>4;
+				int offset = (index & 15) << 2;
+				long mask = 0xfL << offset;
+				if((table[word] & mask) != mask){
+					table[word] += 1L << offset;
+					added = true;
+				}
+			}
+			if(added && ++additions==SAMPLE_SIZE){
+				reset();
+			}
+		}
+
+		private void reset()
+		{
+			for(int i=0; i<table.length; i++){
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			}
+			additions /= 2;
+		}
+
+		private static int indexOf(int hash, int row)
+		{
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return (int)h & (COUNTERS-1);
+		}
+
+		private static int spread(int x)
+		{
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+	}
+}
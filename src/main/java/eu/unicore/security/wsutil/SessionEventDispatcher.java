@@ -0,0 +1,131 @@
+package eu.unicore.security.wsutil;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.util.Log;
+
+/**
+ * Delivers {@link SecuritySessionEvent}s to the {@link SecuritySessionListener}s
+ * off the request threads. Events are put into a bounded queue, which is processed
+ * by a daemon thread, started when the first listener is added. If the queue is
+ * full, events are dropped (and counted), so slow listeners never block the
+ * session store. Without listeners, no events are queued.
+ * <p>
+ * {@link #close()} stops the thread; events still queued at that time are discarded.
+ */
+public class SessionEventDispatcher
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, SessionEventDispatcher.class);
+
+	public static final int DEF_QUEUE_SIZE = 10000;
+
+	private final List<SecuritySessionListener> listeners = new CopyOnWriteArrayList<>();
+	private final BlockingQueue<SecuritySessionEvent> queue;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private Thread thread;
+	private volatile boolean closed;
+
+	public SessionEventDispatcher()
+	{
+		this(DEF_QUEUE_SIZE);
+	}
+
+	public SessionEventDispatcher(int queueSize)
+	{
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+	}
+
+	public synchronized void addListener(SecuritySessionListener listener)
+	{
+		if(closed)throw new IllegalStateException("Event dispatcher is closed");
+		listeners.add(listener);
+		if(thread==null){
+			thread = new Thread(this::dispatch, "security-session-events");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public void removeListener(SecuritySessionListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * queues the event, unless there are no listeners
+	 */
+	public void publish(SecuritySessionEvent.Type type, String sessionID, String userKey, long expiryTime)
+	{
+		if(closed || listeners.isEmpty())return;
+		if(!queue.offer(new SecuritySessionEvent(type, sessionID, userKey, expiryTime))){
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * get the number of events waiting for delivery
+	 */
+	public int getPendingEvents()
+	{
+		return queue.size();
+	}
+
+	/**
+	 * get the number of events that were dropped because the queue was full
+	 */
+	public long getDroppedEvents()
+	{
+		return dropped.sum();
+	}
+
+	public long getDeliveredEvents()
+	{
+		return delivered.sum();
+	}
+
+	/**
+	 * stops the dispatch thread and discards all pending events.
+	 * Events published afterwards are ignored.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		if(thread!=null){
+			thread.interrupt();
+			thread = null;
+		}
+		queue.clear();
+	}
+
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	private void dispatch()
+	{
+		while(!closed){
+			SecuritySessionEvent event;
+			try{
+				event = queue.take();
+			}catch(InterruptedException e){
+				return;
+			}
+			for(SecuritySessionListener l: listeners){
+				try{
+					l.sessionChanged(event);
+				}catch(RuntimeException e){
+					log.warn("Error in security session listener "+l+" for event "+event, e);
+				}
+			}
+			delivered.increment();
+		}
+	}
+}
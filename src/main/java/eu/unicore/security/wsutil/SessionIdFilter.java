@@ -0,0 +1,98 @@
+package eu.unicore.security.wsutil;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of session IDs, used to reject lookups of IDs that were never issued
+ * without touching the session table. There are no false negatives, and false positives
+ * occur with a probability of about 1% as long as no more IDs than the configured
+ * capacity have been added.
+ * <p>
+ * IDs cannot be removed, so the owner replaces the filter with a fresh one holding
+ * the live IDs once {@link #isFull()}. This class is thread safe.
+ */
+class SessionIdFilter
+{
+	private static final int HASHES = 7;
+	private static final int BITS_PER_ID = 10;
+
+	private final AtomicLongArray bits;
+	private final long numBits;
+	private final int capacity;
+	private final AtomicInteger added = new AtomicInteger();
+
+	/**
+	 * @param capacity - number of IDs the filter is sized for
+	 */
+	SessionIdFilter(int capacity)
+	{
+		this.capacity = Math.max(capacity, 64);
+		long words = ((long)this.capacity*BITS_PER_ID + 63) / 64;
+		this.bits = new AtomicLongArray((int)Math.min(words, Integer.MAX_VALUE-8));
+		this.numBits = (long)bits.length()*64;
+	}
+
+	void add(String id)
+	{
+		long h = hash(id);
+		int h1 = (int)h;
+		int h2 = (int)(h>>>32);
+		for(int i=1; i<=HASHES; i++){
+			long bit = ((h1 + i*h2) & Integer.MAX_VALUE) % numBits;
+			int word = (int)(bit>>>6);
+			long mask = 1L << bit;
+			long current = bits.get(word);
+			while((current & mask)==0 && !bits.compareAndSet(word, current, current | mask)){
+				current = bits.get(word);
+			}
+		}
+		added.incrementAndGet();
+	}
+
+	/**
+	 * @return <code>false</code> if the ID was definitely never added
+	 */
+	boolean mightContain(String id)
+	{
+		long h = hash(id);
+		int h1 = (int)h;
+		int h2 = (int)(h>>>32);
+		for(int i=1; i<=HASHES; i++){
+			long bit = ((h1 + i*h2) & Integer.MAX_VALUE) % numBits;
+			if((bits.get((int)(bit>>>6)) & (1L << bit))==0)return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return <code>true</code> if more IDs were added than the filter was sized for
+	 */
+	boolean isFull()
+	{
+		return added.get()>=capacity;
+	}
+
+	int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the characters, with a final avalanche step
+	 */
+	private static long hash(String id)
+	{
+		long h = 0xcbf29ce484222325L;
+		for(int i=0; i<id.length(); i++){
+			h ^= id.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
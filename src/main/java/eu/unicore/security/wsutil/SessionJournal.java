@@ -0,0 +1,426 @@
+package eu.unicore.security.wsutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.util.Log;
+
+/**
+ * Append-only journal of security session events (creation, access, removal),
+ * allowing a {@link SecuritySessionStore} to restore its sessions after a restart.
+ * <p>
+ * Events are queued without blocking the calling thread and encoded and written
+ * to disk periodically by a background thread. When the journal grows above a
+ * threshold, it is compacted into a snapshot containing only the live sessions.
+ * Events still queued when the process dies are lost, which only means that
+ * the affected sessions must be re-created.
+ * <p>
+ * The queue is bounded. If it is full, creation and access events are dropped (and
+ * counted), while removals are put into an overflow queue written after the regular
+ * one, so that removed sessions are never restored. The calling thread never waits
+ * for disk I/O or compaction.
+ * <p>
+ * The directory contains two files, the snapshot and the journal of events that
+ * happened after the snapshot was written. As they contain session IDs, which
+ * grant access to the sessions, the directory and the files are created with
+ * permissions for the owner only.
+ */
+public class SessionJournal implements Closeable
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, SessionJournal.class);
+
+	public static final long DEF_FLUSH_INTERVAL = 1000;
+
+	public static final long DEF_COMPACTION_THRESHOLD = 16*1024*1024;
+
+	public static final int DEF_QUEUE_SIZE = 100000;
+
+	private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+	private static final Set<PosixFilePermission> FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+
+	private static final String SNAPSHOT_FILE = "sessions.snapshot";
+	private static final String JOURNAL_FILE = "sessions.journal";
+
+	private static final byte CREATE = 1;
+	private static final byte TOUCH = 2;
+	private static final byte REMOVE = 3;
+
+	private final File snapshot;
+	private final File journal;
+	private final long compactionThreshold;
+
+	private final BlockingQueue<Event> pending;
+
+	/**
+	 * removals that did not fit into the pending queue. Not bounded, but it only holds
+	 * removals, which are limited by the number of sessions
+	 */
+	private final Queue<Event> overflow = new ConcurrentLinkedQueue<>();
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final ScheduledExecutorService flusher;
+
+	// guarded by this
+	private DataOutputStream out;
+
+	/**
+	 * creates a journal with default flush interval and compaction threshold
+	 * @param directory - directory for the journal files, created if it does not exist
+	 */
+	public SessionJournal(File directory) throws IOException
+	{
+		this(directory, DEF_FLUSH_INTERVAL, DEF_COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * @param directory - directory for the journal files, created if it does not exist
+	 * @param flushInterval - interval in millis for writing queued events to disk
+	 * @param compactionThreshold - size of the journal file in bytes which triggers compaction
+	 */
+	public SessionJournal(File directory, long flushInterval, long compactionThreshold) throws IOException
+	{
+		this(directory, flushInterval, compactionThreshold, DEF_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param directory - directory for the journal files, created if it does not exist
+	 * @param flushInterval - interval in millis for writing queued events to disk
+	 * @param compactionThreshold - size of the journal file in bytes which triggers compaction
+	 * @param queueSize - maximum number of events waiting to be written
+	 */
+	public SessionJournal(File directory, long flushInterval, long compactionThreshold, int queueSize) throws IOException
+	{
+		createDirectory(directory.toPath());
+		this.snapshot = new File(directory, SNAPSHOT_FILE);
+		this.journal = new File(directory, JOURNAL_FILE);
+		this.compactionThreshold = compactionThreshold;
+		this.pending = new ArrayBlockingQueue<>(queueSize);
+		if(snapshot.exists())restrictToOwner(snapshot.toPath());
+		this.out = openJournal(true);
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "security-session-journal");
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * queues the creation of the session, which is encoded later by the background thread
+	 */
+	public void sessionCreated(SecuritySession session)
+	{
+		Event e = new Event(CREATE, session.getSessionID(), session.getExpiryTime(),
+				session.getLastAccessed(), null);
+		e.session = session;
+		queue(e);
+	}
+
+	public void sessionAccessed(String sessionID, long time)
+	{
+		queue(new Event(TOUCH, sessionID, 0, time, null));
+	}
+
+	public void sessionRemoved(String sessionID, long expiryTime)
+	{
+		Event e = new Event(REMOVE, sessionID, expiryTime, 0, null);
+		if(!pending.offer(e)){
+			overflow.add(e);
+		}
+	}
+
+	/**
+	 * get the number of events that were dropped because the queue was full
+	 */
+	public long getDroppedEvents()
+	{
+		return dropped.sum();
+	}
+
+	private void queue(Event e)
+	{
+		if(!pending.offer(e)){
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * reads the snapshot and the journal
+	 * @return the sessions that are not expired, least recently used first
+	 */
+	public synchronized List<SecuritySession> restore() throws IOException
+	{
+		long start = System.currentTimeMillis();
+		Map<String, Event> live = replay();
+		List<Event> events = new ArrayList<>(live.values());
+		events.sort(Comparator.comparingLong(e -> e.time));
+		List<SecuritySession> result = new ArrayList<>(events.size());
+		for(Event e: events){
+			try{
+				SecuritySession session = SecuritySessionCodec.decode(e.data);
+				session.setLastAccessed(e.time);
+				result.add(session);
+			}catch(IllegalArgumentException ex){
+				log.warn("Cannot restore security session <"+e.sessionID+">: "+ex.getMessage());
+			}
+		}
+		log.info("Restored {} security sessions in {} ms", result.size(), System.currentTimeMillis()-start);
+		return result;
+	}
+
+	/**
+	 * writes queued events to disk, compacting the journal if it got too large
+	 */
+	public synchronized void flush() throws IOException
+	{
+		if(out==null)return;
+		writePending();
+		out.flush();
+		if(journal.length()>compactionThreshold){
+			compact();
+		}
+	}
+
+	/**
+	 * folds the snapshot and the journal into a new snapshot without removed or expired
+	 * sessions, and starts a new, empty journal
+	 */
+	public synchronized void compact() throws IOException
+	{
+		if(out==null)return;
+		writePending();
+		out.close();
+		boolean compacted = false;
+		try{
+			Map<String, Event> live = replay();
+			File tmp = new File(snapshot.getParentFile(), SNAPSHOT_FILE+".tmp");
+			createFile(tmp.toPath());
+			try(DataOutputStream snap = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))){
+				for(Event ev: live.values()){
+					write(snap, ev);
+				}
+			}
+			Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			compacted = true;
+			log.debug("Compacted security session journal, {} sessions in snapshot", live.size());
+		}finally{
+			// start a new journal, or continue the old one if compaction failed
+			out = null;
+			out = openJournal(!compacted);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		flusher.shutdown();
+		synchronized (this) {
+			if(out==null)return;
+			flush();
+			out.close();
+			out = null;
+		}
+	}
+
+	private void flushQuietly()
+	{
+		try{
+			flush();
+		}catch(IOException e){
+			log.error("Cannot write security session journal", e);
+		}
+	}
+
+	private DataOutputStream openJournal(boolean append) throws IOException
+	{
+		createFile(journal.toPath());
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, append)));
+	}
+
+	/**
+	 * writes the queued events, encoding the created sessions, followed by the
+	 * overflowing removals, which happened after the creation of their session
+	 */
+	private void writePending() throws IOException
+	{
+		Event e;
+		while((e = pending.poll())!=null){
+			if(e.session!=null){
+				try{
+					e.data = SecuritySessionCodec.encode(e.session);
+				}catch(IllegalArgumentException ex){
+					log.warn("Cannot write security session <"+e.sessionID+"> to the journal: "+ex.getMessage());
+					continue;
+				}
+				e.session = null;
+			}
+			write(out, e);
+		}
+		while((e = overflow.poll())!=null){
+			write(out, e);
+		}
+	}
+
+	private static void createDirectory(Path dir) throws IOException
+	{
+		if(!Files.isDirectory(dir)){
+			try{
+				Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(DIRECTORY_PERMISSIONS));
+			}catch(UnsupportedOperationException e){
+				Files.createDirectories(dir);
+			}
+		}
+		restrictToOwner(dir);
+	}
+
+	/**
+	 * creates the file accessible by the owner only, or restricts the permissions
+	 * of an existing file
+	 */
+	private static void createFile(Path file) throws IOException
+	{
+		try{
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(FILE_PERMISSIONS));
+			return;
+		}catch(FileAlreadyExistsException | UnsupportedOperationException e){
+			if(!Files.exists(file))Files.createFile(file);
+		}
+		restrictToOwner(file);
+	}
+
+	private static void restrictToOwner(Path path) throws IOException
+	{
+		boolean directory = Files.isDirectory(path);
+		try{
+			Files.setPosixFilePermissions(path, directory ? DIRECTORY_PERMISSIONS : FILE_PERMISSIONS);
+		}catch(UnsupportedOperationException e){
+			File f = path.toFile();
+			boolean ok = f.setReadable(false, false) && f.setReadable(true, true)
+					&& f.setWritable(false, false) && f.setWritable(true, true);
+			if(directory)ok = ok && f.setExecutable(false, false) && f.setExecutable(true, true);
+			if(!ok)log.warn("Cannot restrict access to {} to its owner", path);
+		}
+	}
+
+	/**
+	 * reads snapshot and journal
+	 * @return creation events of sessions that are neither removed nor expired,
+	 * with their last access time
+	 */
+	private Map<String, Event> replay() throws IOException
+	{
+		Map<String, Event> live = new HashMap<>();
+		read(snapshot, live);
+		read(journal, live);
+		long now = System.currentTimeMillis();
+		live.values().removeIf(ev -> ev.expires<now);
+		return live;
+	}
+
+	private void read(File file, Map<String, Event> live) throws IOException
+	{
+		if(!file.exists())return;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+			while(true){
+				byte type;
+				try{
+					type = in.readByte();
+				}catch(EOFException eof){
+					return;
+				}
+				String id = in.readUTF();
+				long expires = in.readLong();
+				long time = in.readLong();
+				if(type==CREATE){
+					int length = in.readInt();
+					// available() is the remaining size of the file
+					if(length<0 || length>in.available()){
+						log.warn("Ignoring the rest of {}: invalid record length {}", file.getAbsolutePath(), length);
+						return;
+					}
+					byte[] data = new byte[length];
+					in.readFully(data);
+					live.put(id, new Event(CREATE, id, expires, time, data));
+				}
+				else if(type==TOUCH){
+					Event created = live.get(id);
+					if(created!=null)created.time = time;
+				}
+				else if(type==REMOVE){
+					Event created = live.get(id);
+					if(created!=null && created.expires==expires)live.remove(id);
+				}
+				else{
+					throw new IOException("Corrupted security session journal "+file.getAbsolutePath());
+				}
+			}
+		}catch(EOFException eof){
+			// last record incomplete, e.g. after a crash
+			log.warn("Ignoring incomplete last record in {}", file.getAbsolutePath());
+		}
+	}
+
+	private static void write(DataOutputStream os, Event e) throws IOException
+	{
+		os.writeByte(e.type);
+		os.writeUTF(e.sessionID);
+		os.writeLong(e.expires);
+		os.writeLong(e.time);
+		if(e.type==CREATE){
+			os.writeInt(e.data.length);
+			os.write(e.data);
+		}
+	}
+
+	private static class Event
+	{
+		final byte type;
+		final String sessionID;
+		final long expires;
+		byte[] data;
+		long time;
+		// created session not encoded yet
+		SecuritySession session;
+
+		Event(byte type, String sessionID, long expires, long time, byte[] data)
+		{
+			this.type = type;
+			this.sessionID = sessionID;
+			this.expires = expires;
+			this.time = time;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,707 @@
+package eu.unicore.security.wsutil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.util.Log;
+
+/**
+ * Exchanges security session events with peer servers over TCP.
+ * <p>
+ * Session creations and removals are queued per peer and encoded and sent
+ * asynchronously over a persistent connection. If a peer is unreachable, events for
+ * it are dropped. Lookups of unknown sessions are sent to all peers in parallel;
+ * the caller waits for the first peer having the session, at most for the timeout
+ * in total. Peers that failed to answer a lookup are not asked again for
+ * {@link #PEER_BACKOFF}.
+ * <p>
+ * All messages are encrypted and authenticated (AES-GCM) with keys derived (HKDF)
+ * from a secret shared by all peers, which must have enough entropy by itself,
+ * e.g. 32 random bytes. Messages from parties not knowing the secret are rejected.
+ * Every message carries a header with the sender instance, a timestamp and a sequence
+ * number, which is authenticated separately before the message body is read, and is
+ * bound to the body as associated data. Messages older than {@link #MAX_CLOCK_SKEW} and
+ * replayed messages are rejected. The clocks of the peers must thus be synchronized.
+ * <p>
+ * At most {@link #MAX_CONNECTIONS} incoming connections are served at a time, further
+ * ones are closed right away. Idle incoming connections are closed after
+ * {@link #IDLE_TIMEOUT}.
+ */
+public class SessionReplicator implements Closeable
+{
+	private static final Logger log = Log.getLogger(Log.SECURITY, SessionReplicator.class);
+
+	/**
+	 * Receives the events sent by peers
+	 */
+	public static interface Handler
+	{
+		public void remoteSessionCreated(SecuritySession session);
+
+		public void remoteSessionRemoved(String sessionID, long expiryTime, String userKey);
+
+		/**
+		 * @return the locally stored session or <code>null</code>
+		 */
+		public SecuritySession localLookup(String sessionID);
+	}
+
+	public static final int DEF_TIMEOUT = 1000;
+
+	/**
+	 * time (ms) during which a peer is not asked for sessions after a failed lookup
+	 */
+	public static final long PEER_BACKOFF = 10000;
+
+	/**
+	 * maximum number of concurrently served incoming connections
+	 */
+	public static final int MAX_CONNECTIONS = 32;
+
+	/**
+	 * time (ms) after which idle incoming connections are closed
+	 */
+	public static final int IDLE_TIMEOUT = 30000;
+
+	/**
+	 * maximum age (ms) of accepted messages, and maximum clock difference between peers
+	 */
+	public static final long MAX_CLOCK_SKEW = 60000;
+
+	private static final int QUEUE_SIZE = 10000;
+	private static final int MAX_FRAME = 1024*1024;
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_LENGTH = 16;
+
+	/**
+	 * body length, sender, timestamp, sequence number
+	 */
+	private static final int HEADER_LENGTH = 4+8+8+8;
+	private static final int HEADER_MAC_LENGTH = 16;
+
+	/**
+	 * number of sequence numbers below the highest one received from a sender that
+	 * are still accepted, as messages sent over different connections may overtake each other
+	 */
+	private static final int REPLAY_WINDOW = 1024;
+
+	private static final String KDF_SALT = "unicore-security-session-replication";
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte GET = 3;
+	private static final byte FOUND = 4;
+	private static final byte NOT_FOUND = 5;
+
+	private final Handler handler;
+	private final SecretKeySpec key;
+	private final SecretKeySpec headerKey;
+	private final SecureRandom random = new SecureRandom();
+	private final int timeout;
+
+	/**
+	 * identifies this instance as sender, changes on every restart
+	 */
+	private final long senderID;
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * sequence numbers received per sender
+	 */
+	private final Map<Long, ReplayWindow> received = new ConcurrentHashMap<>();
+	private volatile long nextPurge;
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService executor;
+	private final ExecutorService connections;
+	private final ExecutorService lookups;
+	private final List<Peer> peers = new CopyOnWriteArrayList<>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param bindAddress - address to listen on for peer connections (port 0 for any free port)
+	 * @param sharedSecret - secret shared by all peers
+	 * @param handler - receives the events from peers
+	 * @param timeout - connect and read timeout in millis
+	 */
+	public SessionReplicator(InetSocketAddress bindAddress, byte[] sharedSecret, Handler handler, int timeout)
+			throws IOException
+	{
+		this.handler = handler;
+		this.timeout = timeout;
+		this.key = new SecretKeySpec(KeyDerivation.hkdf(sharedSecret, KDF_SALT, "encryption", 32), "AES");
+		this.headerKey = new SecretKeySpec(KeyDerivation.hkdf(sharedSecret, KDF_SALT, "header", 32), "HmacSHA256");
+		this.senderID = random.nextLong();
+		ThreadFactory threads = r -> {
+			Thread t = new Thread(r, "security-session-replication");
+			t.setDaemon(true);
+			return t;
+		};
+		// accept loop and peer senders, i.e. threads started by the owner
+		this.executor = Executors.newCachedThreadPool(threads);
+		this.connections = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), threads);
+		this.lookups = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), threads);
+		this.serverSocket = new ServerSocket();
+		serverSocket.bind(bindAddress);
+		executor.execute(this::acceptLoop);
+		log.info("Security session replication listening on {}", serverSocket.getLocalSocketAddress());
+	}
+
+	/**
+	 * @return the port this replicator listens on
+	 */
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	public void addPeer(InetSocketAddress address)
+	{
+		Peer peer = new Peer(address);
+		peers.add(peer);
+		executor.execute(peer::sendLoop);
+	}
+
+	/**
+	 * @return number of events that were not delivered to a peer
+	 */
+	public long getDroppedEvents()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of received messages that were rejected as not authentic, stale or replayed
+	 */
+	public long getRejectedMessages()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * queues the session for the peers. It is encoded by the first sender thread
+	 * that sends it, not by the calling thread
+	 */
+	public void sessionCreated(SecuritySession session)
+	{
+		send(new Outgoing(PUT, out -> {
+			byte[] data = SecuritySessionCodec.encode(session);
+			out.writeInt(data.length);
+			out.write(data);
+		}));
+	}
+
+	public void sessionRemoved(String sessionID, long expiryTime, String userKey)
+	{
+		send(new Outgoing(REMOVE, out -> {
+			out.writeUTF(sessionID);
+			out.writeLong(expiryTime);
+			out.writeUTF(userKey);
+		}));
+	}
+
+	/**
+	 * asks the peers for the given session in parallel, skipping peers that recently failed
+	 * @return the session from the first peer that has it, or <code>null</code> if none
+	 * has it within the timeout
+	 */
+	public SecuritySession lookup(String sessionID)
+	{
+		byte[] request = message(GET, out -> out.writeUTF(sessionID));
+		long now = System.currentTimeMillis();
+		long deadline = now+timeout;
+		CompletionService<SecuritySession> results = new ExecutorCompletionService<>(lookups);
+		List<Future<SecuritySession>> pending = new ArrayList<>();
+		List<Peer> asked = new ArrayList<>();
+		for(Peer peer: peers){
+			if(!peer.isAvailable(now))continue;
+			try{
+				pending.add(results.submit(() -> peer.lookup(sessionID, request, deadline)));
+				asked.add(peer);
+			}catch(RejectedExecutionException e){
+				log.debug("Too many concurrent session lookups, not asking {}", peer.address);
+			}
+		}
+		boolean timedOut = false;
+		try{
+			for(int i=0; i<pending.size(); i++){
+				long remaining = deadline-System.currentTimeMillis();
+				Future<SecuritySession> f = remaining>0 ? results.poll(remaining, TimeUnit.MILLISECONDS) : null;
+				if(f==null){
+					timedOut = true;
+					break;
+				}
+				try{
+					SecuritySession session = f.get();
+					if(session!=null)return session;
+				}catch(ExecutionException e){
+					log.debug("Session lookup failed: {}", e.getCause().toString());
+				}
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			for(int i=0; i<pending.size(); i++){
+				// peers that did not answer in time count as failed
+				if(timedOut && !pending.get(i).isDone())asked.get(i).failed();
+				pending.get(i).cancel(false);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		serverSocket.close();
+		for(Peer p: peers){
+			p.close();
+		}
+		executor.shutdownNow();
+		connections.shutdownNow();
+		lookups.shutdownNow();
+	}
+
+	/**
+	 * queues the message for all peers. It is sealed when it is sent, so that
+	 * its timestamp and sequence number are current
+	 */
+	private void send(Outgoing message)
+	{
+		if(peers.isEmpty())return;
+		for(Peer p: peers){
+			if(!p.queue.offer(message)){
+				dropped.incrementAndGet();
+			}
+		}
+	}
+
+	private void acceptLoop()
+	{
+		while(!closed){
+			try{
+				Socket s = serverSocket.accept();
+				try{
+					s.setSoTimeout(IDLE_TIMEOUT);
+					connections.execute(() -> serve(s));
+				}catch(RejectedExecutionException e){
+					// too many connections, or closed concurrently
+					if(!closed)log.warn("Rejecting replication connection from {}: too many connections",
+							s.getRemoteSocketAddress());
+					s.close();
+				}
+			}catch(IOException e){
+				if(!closed)log.warn("Error accepting replication connection", e);
+			}
+		}
+	}
+
+	private void serve(Socket socket)
+	{
+		try(Socket s = socket){
+			InputStream in = s.getInputStream();
+			OutputStream out = s.getOutputStream();
+			while(!closed){
+				DataInputStream message;
+				try{
+					message = readFrame(in);
+				}catch(SocketException | SocketTimeoutException | EOFException e){
+					return;
+				}
+				handle(message, out);
+			}
+		}catch(IOException | RuntimeException e){
+			if(!closed)log.warn("Error on replication connection from "
+					+socket.getRemoteSocketAddress()+": "+e.getMessage());
+		}
+	}
+
+	private void handle(DataInputStream in, OutputStream out) throws IOException
+	{
+		byte type = in.readByte();
+		if(type==PUT){
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			handler.remoteSessionCreated(SecuritySessionCodec.decode(data));
+		}
+		else if(type==REMOVE){
+			handler.remoteSessionRemoved(in.readUTF(), in.readLong(), in.readUTF());
+		}
+		else if(type==GET){
+			SecuritySession session = handler.localLookup(in.readUTF());
+			byte[] response;
+			if(session!=null){
+				byte[] data = SecuritySessionCodec.encode(session);
+				response = message(FOUND, o -> {
+					o.writeInt(data.length);
+					o.write(data);
+				});
+			}
+			else{
+				response = message(NOT_FOUND, o -> {});
+			}
+			writeFrame(out, seal(response));
+		}
+		else{
+			throw new IOException("Unknown message type "+type);
+		}
+	}
+
+	private interface Writer
+	{
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * message queued for the peers, built once, by the first sender thread needing it
+	 */
+	private static class Outgoing
+	{
+		private final byte type;
+		private Writer body;
+		private byte[] message;
+
+		Outgoing(byte type, Writer body)
+		{
+			this.type = type;
+			this.body = body;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if the message cannot be built
+		 */
+		synchronized byte[] get()
+		{
+			if(message==null){
+				message = message(type, body);
+				body = null;
+			}
+			return message;
+		}
+	}
+
+	private static byte[] message(byte type, Writer body)
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bos)){
+			out.writeByte(type);
+			body.write(out);
+		}catch(IOException e){
+			throw new IllegalStateException(e);
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * adds the header and encrypts the message
+	 * @return header, header MAC, IV and ciphertext
+	 */
+	private byte[] seal(byte[] message)
+	{
+		try{
+			int bodyLength = IV_LENGTH+message.length+TAG_LENGTH;
+			ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH+HEADER_MAC_LENGTH+bodyLength);
+			frame.putInt(bodyLength);
+			frame.putLong(senderID);
+			frame.putLong(System.currentTimeMillis());
+			frame.putLong(sequence.getAndIncrement());
+			byte[] result = frame.array();
+			frame.put(headerMac(result), 0, HEADER_MAC_LENGTH);
+			byte[] iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			frame.put(iv);
+			Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+			c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH*8, iv));
+			c.updateAAD(result, 0, HEADER_LENGTH);
+			c.doFinal(message, 0, message.length, result, frame.position());
+			return result;
+		}catch(GeneralSecurityException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private byte[] headerMac(byte[] header) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(headerKey);
+		mac.update(header, 0, HEADER_LENGTH);
+		return mac.doFinal();
+	}
+
+	private static void writeFrame(OutputStream os, byte[] frame) throws IOException
+	{
+		os.write(frame);
+		os.flush();
+	}
+
+	/**
+	 * reads the next frame. The header is authenticated and checked before memory for
+	 * the body is allocated. The body is then decrypted and authenticated
+	 * @return the message
+	 */
+	private DataInputStream readFrame(InputStream is) throws IOException
+	{
+		DataInputStream in = new DataInputStream(is);
+		byte[] header = new byte[HEADER_LENGTH+HEADER_MAC_LENGTH];
+		in.readFully(header);
+		ByteBuffer fields = ByteBuffer.wrap(header);
+		int length = fields.getInt();
+		long sender = fields.getLong();
+		long timestamp = fields.getLong();
+		long seq = fields.getLong();
+		try{
+			byte[] mac = headerMac(header);
+			if(!MessageDigest.isEqual(Arrays.copyOf(mac, HEADER_MAC_LENGTH),
+					Arrays.copyOfRange(header, HEADER_LENGTH, header.length))){
+				throw reject("authentication failed");
+			}
+			if(length<=IV_LENGTH+TAG_LENGTH || length>MAX_FRAME){
+				throw reject("invalid frame length "+length);
+			}
+			long now = System.currentTimeMillis();
+			if(Math.abs(now-timestamp)>MAX_CLOCK_SKEW){
+				throw reject("stale message");
+			}
+			byte[] body = new byte[length];
+			in.readFully(body);
+			Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+			c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH*8, body, 0, IV_LENGTH));
+			c.updateAAD(header, 0, HEADER_LENGTH);
+			byte[] message = c.doFinal(body, IV_LENGTH, length-IV_LENGTH);
+			if(!accept(sender, seq, now)){
+				throw reject("replayed message");
+			}
+			return new DataInputStream(new ByteArrayInputStream(message));
+		}catch(GeneralSecurityException e){
+			throw reject("authentication failed");
+		}
+	}
+
+	private IOException reject(String reason)
+	{
+		rejected.incrementAndGet();
+		return new IOException("Rejected replication message: "+reason);
+	}
+
+	/**
+	 * records the sequence number of an authenticated message
+	 * @return <code>false</code> if the message was already received or is too old
+	 */
+	private boolean accept(long sender, long seq, long now)
+	{
+		if(now>nextPurge){
+			// a purged sender's messages are older than MAX_CLOCK_SKEW and thus rejected anyway
+			nextPurge = now+MAX_CLOCK_SKEW;
+			received.values().removeIf(w -> w.isUnusedSince(now-3*MAX_CLOCK_SKEW));
+		}
+		return received.computeIfAbsent(sender, k -> new ReplayWindow()).accept(seq, now);
+	}
+
+	/**
+	 * sliding window of received sequence numbers
+	 */
+	private static class ReplayWindow
+	{
+		private final long[] seen = new long[REPLAY_WINDOW/64];
+		private long highest = -1;
+		private volatile long lastUsed;
+
+		synchronized boolean accept(long seq, long now)
+		{
+			lastUsed = now;
+			if(seq<0 || seq<=highest-REPLAY_WINDOW)return false;
+			if(seq>highest){
+				for(long s=Math.max(highest+1, seq-REPLAY_WINDOW+1); s<=seq; s++){
+					clear(s);
+				}
+				highest = seq;
+			}
+			else if(isSet(seq)){
+				return false;
+			}
+			set(seq);
+			return true;
+		}
+
+		boolean isUnusedSince(long time)
+		{
+			return lastUsed<time;
+		}
+
+		private int slot(long seq)
+		{
+			return (int)(seq % REPLAY_WINDOW);
+		}
+
+		private boolean isSet(long seq)
+		{
+			int i = slot(seq);
+			return (seen[i>>6] & (1L<<(i&63)))!=0;
+		}
+
+		private void set(long seq)
+		{
+			int i = slot(seq);
+			seen[i>>6] |= 1L<<(i&63);
+		}
+
+		private void clear(long seq)
+		{
+			int i = slot(seq);
+			seen[i>>6] &= ~(1L<<(i&63));
+		}
+	}
+
+	private class Peer
+	{
+		final InetSocketAddress address;
+		final BlockingQueue<Outgoing> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		private volatile Socket socket;
+		private long lastSent;
+
+		// time until which the peer is not asked for sessions
+		private volatile long failedUntil;
+
+		Peer(InetSocketAddress address)
+		{
+			this.address = address;
+		}
+
+		boolean isAvailable(long now)
+		{
+			return failedUntil<=now;
+		}
+
+		void failed()
+		{
+			failedUntil = System.currentTimeMillis()+PEER_BACKOFF;
+		}
+
+		/**
+		 * asks this peer for the session, over a new connection
+		 * @return the session or <code>null</code>
+		 */
+		SecuritySession lookup(String sessionID, byte[] request, long deadline)
+		{
+			try(Socket s = new Socket()){
+				s.connect(address, remaining(deadline));
+				s.setSoTimeout(remaining(deadline));
+				writeFrame(s.getOutputStream(), seal(request));
+				DataInputStream response = readFrame(s.getInputStream());
+				if(response.readByte()==FOUND){
+					byte[] data = new byte[response.readInt()];
+					response.readFully(data);
+					SecuritySession session = SecuritySessionCodec.decode(data);
+					if(sessionID.equals(session.getSessionID()))return session;
+					log.debug("Session lookup at {} returned a different session", address);
+				}
+			}catch(IOException | RuntimeException e){
+				failed();
+				log.debug("Session lookup at {} failed: {}", address, e.getMessage());
+			}
+			return null;
+		}
+
+		private int remaining(long deadline) throws SocketTimeoutException
+		{
+			long remaining = deadline-System.currentTimeMillis();
+			if(remaining<=0)throw new SocketTimeoutException("lookup deadline passed");
+			return (int)remaining;
+		}
+
+		void sendLoop()
+		{
+			while(!closed){
+				Outgoing outgoing;
+				try{
+					outgoing = queue.poll(1, TimeUnit.SECONDS);
+				}catch(InterruptedException e){
+					return;
+				}
+				long now = System.currentTimeMillis();
+				if(outgoing==null){
+					// close before the peer closes the connection as idle
+					if(socket!=null && now-lastSent>IDLE_TIMEOUT/2)close();
+					continue;
+				}
+				byte[] message;
+				try{
+					message = outgoing.get();
+				}catch(IllegalArgumentException e){
+					dropped.incrementAndGet();
+					log.warn("Cannot encode session event for {}: {}", address, e.getMessage());
+					continue;
+				}
+				try{
+					if(socket==null){
+						socket = new Socket();
+						socket.connect(address, timeout);
+					}
+					writeFrame(socket.getOutputStream(), seal(message));
+					lastSent = now;
+				}catch(IOException e){
+					dropped.incrementAndGet();
+					log.debug("Cannot send session event to {}: {}", address, e.getMessage());
+					close();
+				}
+			}
+		}
+
+		void close()
+		{
+			try{
+				if(socket!=null)socket.close();
+			}catch(IOException e){}
+			socket = null;
+		}
+	}
+}
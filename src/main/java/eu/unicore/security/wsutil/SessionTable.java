@@ -0,0 +1,41 @@
+package eu.unicore.security.wsutil;
+
+/**
+ * Holds the security session records of a {@link SecuritySessionStore}, keyed by
+ * session ID. The store keeps its own indexes (per user, by expiry time) on top of it.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface SessionTable
+{
+	/**
+	 * store the session, replacing any session with the same ID
+	 * @param session
+	 * @return the replaced session or <code>null</code> if there was none
+	 * @throws IllegalStateException if the table has no space left for the session
+	 */
+	public SecuritySession put(SecuritySession session);
+
+	/**
+	 * @param sessionID
+	 * @return the session with the given ID or <code>null</code>
+	 */
+	public SecuritySession get(String sessionID);
+
+	/**
+	 * remove the session with the given ID, if its expiry time matches.
+	 * The expiry time protects against removing a newer session stored
+	 * under the same ID.
+	 *
+	 * @param sessionID
+	 * @param expiryTime - see {@link SecuritySession#getExpiryTime()}
+	 * @return <code>true</code> if the session was removed
+	 */
+	public boolean remove(String sessionID, long expiryTime);
+
+	/**
+	 * @return number of stored sessions
+	 */
+	public int size();
+
+}
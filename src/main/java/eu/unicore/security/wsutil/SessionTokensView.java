@@ -0,0 +1,304 @@
+package eu.unicore.security.wsutil;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.util.Log;
+
+/**
+ * Copy-on-write view of the {@link SecurityTokens} of a {@link SecuritySession},
+ * handed out to the requests using the session instead of a full copy.
+ * <p>
+ * The view shares the token data (certificates, assertions, names) with the session's
+ * tokens: creating it only copies the field references (and makes shallow copies of
+ * collections). Setting a property on the view replaces it in the view only. The context is an overlay map: values put into it
+ * (e.g. request-scoped values) or removed from it are recorded in the view, all other
+ * values are read from the session's tokens. Thus changes made by a request are never
+ * visible to the session or to other requests. {@link #clone()} and serialization
+ * produce independent, plain {@link SecurityTokens}.
+ * <p>
+ * Views can only be created for plain {@link SecurityTokens}, as subclasses may hold
+ * additional state. For subclasses, {@link #of(SecurityTokens)} returns a copy.
+ */
+class SessionTokensView extends SecurityTokens
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = Log.getLogger(Log.SECURITY, SessionTokensView.class);
+
+	/**
+	 * instance fields of SecurityTokens, without the context
+	 */
+	private static final Field[] FIELDS;
+
+	/**
+	 * the field holding the context map
+	 */
+	private static final Field CONTEXT;
+
+	/**
+	 * whether the context field can hold an overlay, otherwise the context is copied
+	 */
+	private static final boolean OVERLAY;
+
+	static{
+		Field[] fields = null;
+		Field context = null;
+		try{
+			SecurityTokens probe = new SecurityTokens();
+			List<Field> list = new ArrayList<>();
+			for(Class<?> c = SecurityTokens.class; c!=Object.class; c = c.getSuperclass()){
+				for(Field f: c.getDeclaredFields()){
+					if(Modifier.isStatic(f.getModifiers()))continue;
+					f.setAccessible(true);
+					if(f.get(probe)==probe.getContext() && f.getType().isAssignableFrom(HashMap.class)){
+						context = f;
+					}
+					else{
+						list.add(f);
+					}
+				}
+			}
+			if(context!=null){
+				fields = list.toArray(new Field[list.size()]);
+			}
+			else{
+				log.warn("Cannot create views of security tokens: context field not found");
+			}
+		}catch(Exception e){
+			log.warn("Cannot create views of security tokens: "+e);
+		}
+		FIELDS = fields;
+		CONTEXT = context;
+		OVERLAY = context!=null && context.getType().isAssignableFrom(ContextOverlay.class);
+		if(context!=null && !OVERLAY){
+			log.warn("Security token views copy the context: field type "+context.getType().getName()
+					+" cannot hold an overlay");
+		}
+	}
+
+	private final transient SecurityTokens base;
+
+	private SessionTokensView(SecurityTokens base) throws IllegalAccessException
+	{
+		this.base = base;
+		for(Field f: FIELDS){
+			f.set(this, copyIfMutable(f, f.get(base)));
+		}
+		Map<String, ?> baseContext = base.getContext();
+		CONTEXT.set(this, OVERLAY ? new ContextOverlay(baseContext) : new HashMap<>(baseContext));
+	}
+
+	/**
+	 * collections are modified in place, so the view gets its own (shallow) copy
+	 */
+	private static Object copyIfMutable(Field f, Object value)
+	{
+		Object copy = null;
+		if(value instanceof List)copy = new ArrayList<>((List<?>)value);
+		else if(value instanceof Set)copy = new HashSet<>((Set<?>)value);
+		else if(value instanceof Map)copy = new HashMap<>((Map<?,?>)value);
+		return copy!=null && f.getType().isInstance(copy) ? copy : value;
+	}
+
+	/**
+	 * @return a view of the tokens if possible, otherwise a copy
+	 */
+	static SecurityTokens of(SecurityTokens tokens)
+	{
+		if(tokens==null)return null;
+		if(FIELDS!=null && tokens.getClass()==SecurityTokens.class){
+			try{
+				return new SessionTokensView(tokens);
+			}catch(IllegalAccessException e){
+				// fall back to a copy
+			}
+		}
+		try{
+			return tokens.clone();
+		}catch(CloneNotSupportedException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return an independent copy of the tokens, including the changes made via this view
+	 */
+	@Override
+	public SecurityTokens clone() throws CloneNotSupportedException
+	{
+		SecurityTokens copy = base.clone();
+		try{
+			for(Field f: FIELDS){
+				Object value = f.get(this);
+				if(value!=f.get(base))f.set(copy, copyIfMutable(f, value));
+			}
+			CONTEXT.set(copy, new HashMap<>(getContext()));
+		}catch(IllegalAccessException e){
+			throw new IllegalStateException(e);
+		}
+		return copy;
+	}
+
+	protected Object writeReplace() throws ObjectStreamException
+	{
+		try{
+			return clone();
+		}catch(CloneNotSupportedException e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * map that records changes, and reads all other values from the base map.
+	 * The base map is never modified.
+	 */
+	static class ContextOverlay extends AbstractMap<String, Object> implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Map<String, ?> base;
+		private final Map<String, Object> added = new HashMap<>(4);
+		// keys of the base map that were removed
+		private Set<Object> removed;
+
+		ContextOverlay(Map<String, ?> base)
+		{
+			this.base = base;
+		}
+
+		private boolean isRemoved(Object key)
+		{
+			return removed!=null && removed.contains(key);
+		}
+
+		@Override
+		public Object get(Object key)
+		{
+			if(added.containsKey(key))return added.get(key);
+			return isRemoved(key) ? null : base.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return added.containsKey(key) || (!isRemoved(key) && base.containsKey(key));
+		}
+
+		@Override
+		public Object put(String key, Object value)
+		{
+			Object previous = get(key);
+			added.put(key, value);
+			if(removed!=null)removed.remove(key);
+			return previous;
+		}
+
+		@Override
+		public Object remove(Object key)
+		{
+			Object previous = get(key);
+			added.remove(key);
+			if(base.containsKey(key)){
+				if(removed==null)removed = new HashSet<>();
+				removed.add(key);
+			}
+			return previous;
+		}
+
+		@Override
+		public void clear()
+		{
+			added.clear();
+			removed = new HashSet<>(base.keySet());
+		}
+
+		@Override
+		public int size()
+		{
+			int size = added.size();
+			for(String key: base.keySet()){
+				if(!added.containsKey(key) && !isRemoved(key))size++;
+			}
+			return size;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet()
+		{
+			return new AbstractSet<Map.Entry<String, Object>>(){
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator()
+				{
+					Iterator<String> keys = merged().keySet().iterator();
+					return new Iterator<Map.Entry<String, Object>>(){
+						private String current;
+
+						@Override
+						public boolean hasNext()
+						{
+							return keys.hasNext();
+						}
+
+						@Override
+						public Map.Entry<String, Object> next()
+						{
+							current = keys.next();
+							return new SimpleEntry<String, Object>(current, get(current)){
+								private static final long serialVersionUID = 1L;
+
+								@Override
+								public Object setValue(Object value)
+								{
+									super.setValue(value);
+									return put(getKey(), value);
+								}
+							};
+						}
+
+						@Override
+						public void remove()
+						{
+							if(current==null)throw new IllegalStateException();
+							ContextOverlay.this.remove(current);
+							current = null;
+						}
+					};
+				}
+
+				@Override
+				public int size()
+				{
+					return ContextOverlay.this.size();
+				}
+			};
+		}
+
+		private Map<String, Object> merged()
+		{
+			Map<String, Object> merged = new HashMap<>(base);
+			if(removed!=null)merged.keySet().removeAll(removed);
+			merged.putAll(added);
+			return merged;
+		}
+
+		private Object writeReplace() throws ObjectStreamException
+		{
+			return merged();
+		}
+	}
+}
@@ -24,6 +24,7 @@ import org.apache.cxf.transports.http.configuration.ConnectionType;
 import org.apache.cxf.transports.http.configuration.ProxyServerType;
 import org.apache.logging.log4j.Logger;
 
+import eu.unicore.security.wsutil.PhaseTimings;
 import eu.unicore.security.wsutil.XmlBeansNsHackOutHandler;
 import eu.unicore.security.wsutil.XmlBinding;
 import eu.unicore.security.wsutil.cxf.XmlBeansDataBinding;
@@ -55,6 +56,8 @@ public class WSClientFactory {
 
 	protected final List<Feature> features = new ArrayList<>();
 
+	protected PhaseTimings phaseTimings;
+
 	/**
 	 * @param securityCfg
 	 */
@@ -175,6 +178,18 @@ public class WSClientFactory {
 				client.getOutFaultInterceptors().add(h);
 		}
 		client.getOutFaultInterceptors().add(new CleanupHandler(client));
+		if(phaseTimings!=null){
+			phaseTimings.install(client);
+		}
+	}
+
+	/**
+	 * record per-phase latencies of the calls made by proxies created from now on
+	 * @param phaseTimings - created via {@link PhaseTimings#forClient()}, or <code>null</code> to disable
+	 */
+	public void setPhaseTimings(PhaseTimings phaseTimings)
+	{
+		this.phaseTimings = phaseTimings;
 	}
 
 	/**
@@ -0,0 +1,135 @@
+package eu.unicore.security.wsutil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.xmlbeans.XmlObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.unicore.security.SecurityTokens;
+
+/**
+ * Cost of encoding and decoding a session with {@link SecuritySessionCodec}, compared
+ * to Java serialization. The tokens hold a certificate chain, a principal and an
+ * XML assertion.
+ * <p>
+ * Run {@link #main(String[])} with the test classpath (from the project directory)
+ * to include the allocation per call and print the encoded sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionCodecBenchmark
+{
+	private SecuritySession session;
+	private byte[] encoded;
+	private byte[] serialized;
+	private ByteBuffer buffer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		session = createSession();
+		encoded = SecuritySessionCodec.encode(session);
+		serialized = serialize(session);
+		buffer = ByteBuffer.allocateDirect(2*encoded.length);
+	}
+
+	@Benchmark
+	public byte[] encode()
+	{
+		return SecuritySessionCodec.encode(session);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeToBuffer()
+	{
+		buffer.clear();
+		SecuritySessionCodec.encode(session, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public SecuritySession decode()
+	{
+		return SecuritySessionCodec.decode(encoded);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws Exception
+	{
+		return serialize(session);
+	}
+
+	@Benchmark
+	public Object deserialize() throws Exception
+	{
+		try(ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(serialized))){
+			return is.readObject();
+		}
+	}
+
+	static SecuritySession createSession() throws Exception
+	{
+		KeyStore ks = KeyStore.getInstance("JKS");
+		try(FileInputStream fis = new FileInputStream("src/test/resources/certs/client1.jks")){
+			ks.load(fis, "the!test".toCharArray());
+		}
+		Certificate[] chain = ks.getCertificateChain("client1");
+		X509Certificate[] x509 = Arrays.copyOf(chain, chain.length, X509Certificate[].class);
+		SecurityTokens tokens = new SecurityTokens();
+		tokens.getContext().put("chain", x509);
+		tokens.getContext().put("principal", x509[0].getSubjectX500Principal());
+		tokens.getContext().put("assertion", XmlObject.Factory.parse(
+				"<a:Assertion xmlns:a='urn:test' ID='_1' IssueInstant='2024-01-01T00:00:00Z'>"
+				+ "<a:Issuer>CN=Issuer</a:Issuer><a:Subject>CN=User</a:Subject></a:Assertion>"));
+		return new SecuritySession("session", tokens, 3600000);
+	}
+
+	private static byte[] serialize(Object o) throws Exception
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try(ObjectOutputStream os = new ObjectOutputStream(bos)){
+			os.writeObject(o);
+		}
+		return bos.toByteArray();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		SecuritySession session = createSession();
+		System.out.println("encoded: "+SecuritySessionCodec.encode(session).length
+				+" bytes, serialized: "+serialize(session).length+" bytes");
+		Options opts = new OptionsBuilder()
+				.include(SessionCodecBenchmark.class.getName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,172 @@
+package eu.unicore.security.wsutil;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+
+/**
+ * Throughput of session lookups, and of lookups mixed with session creations
+ * (1 in 20), under contention: {@link SecuritySessionStore} compared to
+ * the former store synchronizing every call on one monitor.
+ * <p>
+ * Run {@link #main(String[])} with the test classpath to measure with 1 to 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class SessionStoreBenchmark
+{
+	private static final int USERS = 2000;
+	private static final int SESSIONS_PER_USER = 5;
+
+	private SecuritySessionStore store;
+	private SynchronizedSessionStore synchronizedStore;
+	private String[] ids;
+	private SecurityTokens[] tokens;
+	private final AtomicLong counter = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		store = new SecuritySessionStore(SESSIONS_PER_USER);
+		synchronizedStore = new SynchronizedSessionStore(SESSIONS_PER_USER);
+		tokens = new SecurityTokens[USERS];
+		ids = new String[USERS*SESSIONS_PER_USER];
+		for(int u=0; u<USERS; u++){
+			tokens[u] = new MockTokens("CN=User "+u, "10.0.0.1");
+			for(int s=0; s<SESSIONS_PER_USER; s++){
+				String id = "session-"+u+"-"+s;
+				ids[u*SESSIONS_PER_USER+s] = id;
+				store.storeSession(new SecuritySession(id, tokens[u], 3600000), tokens[u]);
+				synchronizedStore.storeSession(new SecuritySession(id, tokens[u], 3600000), tokens[u]);
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		store.close();
+	}
+
+	@Benchmark
+	public SecuritySession lookup()
+	{
+		return store.getSession(randomID());
+	}
+
+	@Benchmark
+	public SecuritySession lookupSynchronized()
+	{
+		return synchronizedStore.getSession(randomID());
+	}
+
+	@Benchmark
+	public SecuritySession mixed()
+	{
+		if(ThreadLocalRandom.current().nextInt(20)==0){
+			SecurityTokens t = randomTokens();
+			SecuritySession s = new SecuritySession("new-"+counter.incrementAndGet(), t, 3600000);
+			store.storeSession(s, t);
+			return s;
+		}
+		return store.getSession(randomID());
+	}
+
+	@Benchmark
+	public SecuritySession mixedSynchronized()
+	{
+		if(ThreadLocalRandom.current().nextInt(20)==0){
+			SecurityTokens t = randomTokens();
+			SecuritySession s = new SecuritySession("new-"+counter.incrementAndGet(), t, 3600000);
+			synchronizedStore.storeSession(s, t);
+			return s;
+		}
+		return synchronizedStore.getSession(randomID());
+	}
+
+	private String randomID()
+	{
+		return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+	}
+
+	private SecurityTokens randomTokens()
+	{
+		return tokens[ThreadLocalRandom.current().nextInt(tokens.length)];
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		for(int threads: new int[]{1, 2, 4, 8, 16, 32, 64}){
+			Options opts = new OptionsBuilder()
+					.include(SessionStoreBenchmark.class.getName())
+					.threads(threads)
+					.build();
+			new Runner(opts).run();
+		}
+	}
+
+	/**
+	 * the store as of 5.0.2: a HashMap guarded by the store's monitor, with
+	 * per-user counters and a scan of all sessions for the LRU one (expiry omitted)
+	 */
+	static class SynchronizedSessionStore
+	{
+		private final Map<String, SecuritySession> sessions = new HashMap<>();
+		private final Map<String, Integer> sessionsPerUser = new HashMap<>();
+		private final int maxPerUser;
+
+		SynchronizedSessionStore(int maxPerUser)
+		{
+			this.maxPerUser = maxPerUser;
+		}
+
+		synchronized void storeSession(SecuritySession session, SecurityTokens tokens)
+		{
+			String userKey = SecuritySessionStore.getUserKey(tokens);
+			session.setUserKey(userKey);
+			sessions.put(session.getSessionID(), session);
+			int count = sessionsPerUser.merge(userKey, 1, Integer::sum);
+			if(maxPerUser>0 && count>maxPerUser){
+				SecuritySession lru = null;
+				for(SecuritySession s: sessions.values()){
+					if(lru==null || lru.getLastAccessed()>s.getLastAccessed()){
+						lru = s;
+					}
+				}
+				if(lru!=null && sessions.remove(lru.getSessionID())!=null){
+					sessionsPerUser.merge(userKey, -1, Integer::sum);
+				}
+			}
+		}
+
+		synchronized SecuritySession getSession(String sessionID)
+		{
+			return sessions.get(sessionID);
+		}
+	}
+}
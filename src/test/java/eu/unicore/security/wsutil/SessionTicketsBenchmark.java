@@ -0,0 +1,97 @@
+package eu.unicore.security.wsutil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.unicore.security.SecurityTokens;
+
+/**
+ * Cost of restoring a session from a ticket with {@link SecuritySessionTickets#restore(String)},
+ * compared to looking it up in a {@link SecuritySessionStore} holding 10000 sessions
+ * (without a limit per user), and the cost of issuing a ticket.
+ * <p>
+ * Run {@link #main(String[])} with the test classpath to include the allocation per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionTicketsBenchmark
+{
+	private static final int SESSIONS = 10000;
+
+	private SecuritySessionStore store;
+	private SecuritySessionTickets tickets;
+	private SecuritySession session;
+	private String[] ids;
+	private String ticket;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		store = new SecuritySessionStore(0);
+		ids = new String[SESSIONS];
+		for(int i=0; i<SESSIONS; i++){
+			SecurityTokens tokens = new SecurityTokens();
+			tokens.getContext().put("attribute", "value-"+i);
+			ids[i] = "session-"+i;
+			store.storeSession(new SecuritySession(ids[i], tokens, 3600000), tokens);
+		}
+		tickets = new SecuritySessionTickets(1, "benchmark key with 32 bytes.....".getBytes(StandardCharsets.UTF_8));
+		session = store.getSession(ids[0]);
+		ticket = tickets.issue(session);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		store.close();
+	}
+
+	@Benchmark
+	public SecuritySession lookup()
+	{
+		return store.getSession(ids[ThreadLocalRandom.current().nextInt(SESSIONS)]);
+	}
+
+	@Benchmark
+	public SecuritySession restore()
+	{
+		return tickets.restore(ticket);
+	}
+
+	@Benchmark
+	public String issue()
+	{
+		return tickets.issue(session);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options opts = new OptionsBuilder()
+				.include(SessionTicketsBenchmark.class.getName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opts).run();
+	}
+}
@@ -0,0 +1,90 @@
+package eu.unicore.security.wsutil;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import eu.unicore.security.SecurityTokens;
+
+/**
+ * Cost of handing out the tokens of a reused session: the copy made by
+ * {@link SecuritySession#getTokens()} compared to the view made by
+ * {@link SecuritySession#getSharedTokens()}, with and without a request-scoped
+ * value being put into the context.
+ * <p>
+ * Run {@link #main(String[])} with the test classpath to get the allocation per call
+ * (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionTokensBenchmark
+{
+	private static final int CONTEXT_ENTRIES = 10;
+
+	private SecuritySession session;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		SecurityTokens tokens = new SecurityTokens();
+		for(int i=0; i<CONTEXT_ENTRIES; i++){
+			tokens.getContext().put("attribute-"+i, "value-"+i);
+		}
+		session = new SecuritySession("session", tokens, 3600000);
+	}
+
+	@Benchmark
+	public SecurityTokens copy()
+	{
+		return session.getTokens();
+	}
+
+	@Benchmark
+	public SecurityTokens view()
+	{
+		return session.getSharedTokens();
+	}
+
+	@Benchmark
+	public SecurityTokens copyAndPut()
+	{
+		SecurityTokens tokens = session.getTokens();
+		tokens.getContext().put("request", Boolean.TRUE);
+		return tokens;
+	}
+
+	@Benchmark
+	public SecurityTokens viewAndPut()
+	{
+		SecurityTokens tokens = session.getSharedTokens();
+		tokens.getContext().put("request", Boolean.TRUE);
+		return tokens;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options opts = new OptionsBuilder()
+				.include(SessionTokensBenchmark.class.getName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opts).run();
+	}
+}
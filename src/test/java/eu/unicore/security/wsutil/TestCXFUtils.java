@@ -0,0 +1,97 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.cxf.helpers.DOMUtils;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import eu.unicore.security.HTTPAuthNTokens;
+
+public class TestCXFUtils
+{
+	private Document createDocument(int children)
+	{
+		Document doc = DOMUtils.createDocument();
+		Element root = doc.createElementNS("urn:test", "t:Root");
+		doc.appendChild(root);
+		for(int i=0; i<children; i++){
+			Element e = doc.createElementNS("urn:test", "t:Child");
+			e.setTextContent("value "+i+" <&>");
+			root.appendChild(e);
+		}
+		return doc;
+	}
+
+	private String write(Document doc) throws Exception
+	{
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		CXFUtils.writeXml(doc.getDocumentElement(), os);
+		return os.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testWriteXml() throws Exception
+	{
+		String xml = write(createDocument(2));
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><t:Root xmlns:t=\"urn:test\">"
+				+ "<t:Child>value 0 &lt;&amp;&gt;</t:Child><t:Child>value 1 &lt;&amp;&gt;</t:Child></t:Root>", xml);
+		// transformer is reused
+		assertEquals(xml, write(createDocument(2)));
+		CXFUtils.clearTransformerPool();
+		assertEquals(xml, write(createDocument(2)));
+	}
+
+	@Test
+	public void testConcurrentWriteXml() throws Exception
+	{
+		String expected = write(createDocument(100));
+		ExecutorService es = Executors.newFixedThreadPool(4);
+		try{
+			List<Future<String>> results = new ArrayList<>();
+			for(int i=0; i<40; i++){
+				results.add(es.submit(() -> write(createDocument(100))));
+			}
+			for(Future<String> f: results){
+				assertEquals(expected, f.get());
+			}
+		}finally{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testParseBasicCredentials()
+	{
+		String[][] creds = {{"demouser", "the!test:pass"}, {"d\u00e9mo", "\u00fc"}, {"a", ""}, {"ab", "c"}, {"", "x"}};
+		for(String[] c: creds){
+			String encoded = Base64.getEncoder().encodeToString((c[0]+":"+c[1]).getBytes(StandardCharsets.UTF_8));
+			HTTPAuthNTokens t = CXFUtils.parseBasicCredentials("Basic "+encoded);
+			assertEquals(c[0], t.getUserName());
+			assertEquals(c[1], t.getPasswd());
+			// unpadded and with line breaks
+			t = CXFUtils.parseBasicCredentials("Basic "+encoded.replace("=", "").replaceAll("(.{4})", "$1\r\n"));
+			assertEquals(c[0], t.getUserName());
+			assertEquals(c[1], t.getPasswd());
+		}
+		String noColon = Base64.getEncoder().encodeToString("demouser".getBytes(StandardCharsets.UTF_8));
+		HTTPAuthNTokens t = CXFUtils.parseBasicCredentials("Basic "+noColon);
+		assertEquals("demouser", t.getUserName());
+		assertNull(t.getPasswd());
+		assertNull(CXFUtils.parseBasicCredentials("Bearer "+noColon));
+		assertNull(CXFUtils.parseBasicCredentials("Basic"));
+		assertNull(CXFUtils.parseBasicCredentials(null));
+		assertEquals(noColon, CXFUtils.getTokenValue("Bearer", "Bearer "+noColon));
+	}
+}
@@ -0,0 +1,76 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class TestCachingBasicCredentialsValidator
+{
+	private final AtomicInteger calls = new AtomicInteger();
+
+	private final BasicCredentialsVerifier verifier = (user, password) -> {
+		calls.incrementAndGet();
+		return password.equals(user+"-secret");
+	};
+
+	@Test
+	public void testCaching() throws Exception
+	{
+		CachingBasicCredentialsValidator validator = new CachingBasicCredentialsValidator(verifier);
+		for(int i=0; i<10; i++){
+			assertTrue(validator.validate("demouser", "demouser-secret"));
+			assertFalse(validator.validate("demouser", "wrong"));
+			// same concatenation, different split
+			assertFalse(validator.validate("demouser-", "secret"));
+		}
+		// failures are always checked
+		assertEquals(21, calls.get());
+		assertEquals(9, validator.getHits());
+		assertEquals(1, validator.getSize());
+
+		validator.invalidate("demouser");
+		assertEquals(0, validator.getSize());
+		assertTrue(validator.validate("demouser", "demouser-secret"));
+		assertEquals(22, calls.get());
+	}
+
+	@Test
+	public void testNoKeyCollision() throws Exception
+	{
+		CachingBasicCredentialsValidator validator = new CachingBasicCredentialsValidator(
+				(user, password) -> user.equals("a:b") && password.equals("c"));
+		assertTrue(validator.validate("a:b", "c"));
+		assertTrue(validator.validate("a:b", "c"));
+		assertEquals(1, validator.getHits());
+		// same bytes with a separator, split differently: must not hit the cached entry
+		assertFalse(validator.validate("a", "b:c"));
+		assertEquals(1, validator.getHits());
+		assertEquals(1, validator.getSize());
+	}
+
+	@Test
+	public void testExpiry() throws Exception
+	{
+		CachingBasicCredentialsValidator validator = new CachingBasicCredentialsValidator(verifier, 10, 100);
+		assertTrue(validator.validate("demouser", "demouser-secret"));
+		assertTrue(validator.validate("demouser", "demouser-secret"));
+		assertEquals(1, calls.get());
+		Thread.sleep(150);
+		assertTrue(validator.validate("demouser", "demouser-secret"));
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testSizeLimit() throws Exception
+	{
+		CachingBasicCredentialsValidator validator = new CachingBasicCredentialsValidator(verifier, 100, 60000);
+		for(int i=0; i<1000; i++){
+			assertTrue(validator.validate("user"+i, "user"+i+"-secret"));
+			assertTrue(validator.getSize()<=100);
+		}
+	}
+}
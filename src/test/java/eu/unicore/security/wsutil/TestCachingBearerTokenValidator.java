@@ -0,0 +1,158 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.wsutil.BearerTokenVerifier.VerifiedToken;
+
+public class TestCachingBearerTokenValidator
+{
+	/**
+	 * stand-in for an introspection endpoint: tokens "valid-*" are valid,
+	 * "short-*" expire after 200ms, "error" cannot be verified, "fatal" throws an Error
+	 */
+	private static class MockIntrospection implements BearerTokenVerifier
+	{
+		final AtomicInteger calls = new AtomicInteger();
+		volatile CountDownLatch block;
+
+		@Override
+		public VerifiedToken verify(String token) throws IOException
+		{
+			calls.incrementAndGet();
+			if(block!=null){
+				try{
+					block.await(10, TimeUnit.SECONDS);
+				}catch(InterruptedException e){
+					throw new IOException(e);
+				}
+			}
+			if(token.equals("error"))throw new IOException("endpoint not available");
+			if(token.equals("fatal"))throw new AssertionError("verifier broken");
+			if(token.startsWith("valid-"))return new VerifiedToken(token.substring(6), 0, null);
+			if(token.startsWith("short-"))return new VerifiedToken(token.substring(6), System.currentTimeMillis()+200, null);
+			return null;
+		}
+	}
+
+	@Test
+	public void testCaching() throws Exception
+	{
+		MockIntrospection verifier = new MockIntrospection();
+		CachingBearerTokenValidator validator = new CachingBearerTokenValidator(verifier);
+		VerifiedToken t = validator.validate("valid-demouser");
+		assertEquals("demouser", t.getSubject());
+		for(int i=0; i<10; i++){
+			assertSame(t, validator.validate("valid-demouser"));
+			assertNull(validator.validate("invalid"));
+		}
+		assertEquals(2, verifier.calls.get());
+		assertEquals(19, validator.getHits());
+
+		validator.invalidate("valid-demouser");
+		assertNotNull(validator.validate("valid-demouser"));
+		assertEquals(3, verifier.calls.get());
+
+		// failures are not cached
+		assertThrows(IOException.class, () -> validator.validate("error"));
+		assertThrows(IOException.class, () -> validator.validate("error"));
+		assertEquals(5, verifier.calls.get());
+	}
+
+	@Test
+	public void testExpiry() throws Exception
+	{
+		MockIntrospection verifier = new MockIntrospection();
+		CachingBearerTokenValidator validator = new CachingBearerTokenValidator(verifier);
+		assertNotNull(validator.validate("short-demouser"));
+		assertNotNull(validator.validate("short-demouser"));
+		assertEquals(1, verifier.calls.get());
+		Thread.sleep(300);
+		// verified again, and the mock issues a new expiry
+		assertNotNull(validator.validate("short-demouser"));
+		assertEquals(2, verifier.calls.get());
+
+		// maximum TTL
+		CachingBearerTokenValidator validator2 = new CachingBearerTokenValidator(verifier, 100, 100, 100);
+		validator2.validate("valid-demouser");
+		Thread.sleep(150);
+		validator2.validate("valid-demouser");
+		assertEquals(4, verifier.calls.get());
+	}
+
+	@Test
+	public void testSizeLimit() throws Exception
+	{
+		MockIntrospection verifier = new MockIntrospection();
+		CachingBearerTokenValidator validator = new CachingBearerTokenValidator(verifier, 100, 60000, 60000);
+		for(int i=0; i<1000; i++){
+			validator.validate("valid-user"+i);
+			assertTrue(validator.getSize()<=100);
+		}
+	}
+
+	@Test
+	public void testCoalescing() throws Exception
+	{
+		MockIntrospection verifier = new MockIntrospection();
+		verifier.block = new CountDownLatch(1);
+		CachingBearerTokenValidator validator = new CachingBearerTokenValidator(verifier);
+		ExecutorService es = Executors.newFixedThreadPool(8);
+		try{
+			List<Future<VerifiedToken>> results = new ArrayList<>();
+			for(int i=0; i<8; i++){
+				results.add(es.submit(() -> validator.validate("valid-demouser")));
+			}
+			Thread.sleep(200);
+			verifier.block.countDown();
+			for(Future<VerifiedToken> f: results){
+				assertEquals("demouser", f.get().getSubject());
+			}
+		}finally{
+			es.shutdown();
+		}
+		assertEquals(1, verifier.calls.get());
+		assertEquals(1, validator.getVerifications());
+	}
+
+	@Test
+	public void testErrorReleasesWaiters() throws Exception
+	{
+		MockIntrospection verifier = new MockIntrospection();
+		verifier.block = new CountDownLatch(1);
+		CachingBearerTokenValidator validator = new CachingBearerTokenValidator(verifier);
+		ExecutorService es = Executors.newFixedThreadPool(4);
+		try{
+			List<Future<VerifiedToken>> results = new ArrayList<>();
+			for(int i=0; i<4; i++){
+				results.add(es.submit(() -> validator.validate("fatal")));
+			}
+			Thread.sleep(200);
+			verifier.block.countDown();
+			for(Future<VerifiedToken> f: results){
+				ExecutionException ee = assertThrows(ExecutionException.class, () -> f.get(10, TimeUnit.SECONDS));
+				assertTrue(ee.getCause() instanceof AssertionError);
+			}
+		}finally{
+			es.shutdownNow();
+		}
+		assertEquals(1, verifier.calls.get());
+	}
+}
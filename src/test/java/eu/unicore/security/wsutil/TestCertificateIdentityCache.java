@@ -0,0 +1,149 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.FileInputStream;
+import java.lang.reflect.Proxy;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.apache.cxf.transport.http.AbstractHTTPDestination;
+import org.junit.jupiter.api.Test;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+public class TestCertificateIdentityCache
+{
+	private final AtomicInteger calls = new AtomicInteger();
+
+	private final Set<String> trusted = new HashSet<>();
+
+	private final CertificateIdentityResolver<String> resolver = chain -> {
+		calls.incrementAndGet();
+		String dn = chain[0].getSubjectX500Principal().getName();
+		if(!trusted.contains(dn))throw new CertificateException("Not trusted: "+dn);
+		return dn;
+	};
+
+	private static X509Certificate[] load(String name) throws Exception
+	{
+		KeyStore ks = KeyStore.getInstance("JKS");
+		try(FileInputStream fis = new FileInputStream("src/test/resources/certs/"+name+".jks")){
+			ks.load(fis, "the!test".toCharArray());
+		}
+		Certificate[] chain = ks.getCertificateChain(name);
+		X509Certificate[] res = new X509Certificate[chain.length];
+		for(int i=0; i<chain.length; i++)res[i] = (X509Certificate)chain[i];
+		return res;
+	}
+
+	@Test
+	public void testCaching() throws Exception
+	{
+		X509Certificate[] client1 = load("client1");
+		X509Certificate[] client2 = load("client2");
+		String dn1 = client1[0].getSubjectX500Principal().getName();
+		trusted.add(dn1);
+		CertificateIdentityCache<String> cache = new CertificateIdentityCache<>(resolver);
+		for(int i=0; i<10; i++){
+			assertEquals(dn1, cache.resolve("session1", client1));
+			assertEquals(dn1, cache.resolve(null, client1));
+			assertThrows(CertificateException.class, () -> cache.resolve("session2", client2));
+		}
+		// validation failures are cached as well
+		assertEquals(3, calls.get());
+		assertEquals(27, cache.getHits());
+
+		// a session ID presented with a different chain is not trusted
+		assertThrows(CertificateException.class, () -> cache.resolve("session1", client2));
+		assertEquals(4, calls.get());
+
+		cache.invalidateSession("session2");
+		trusted.add(client2[0].getSubjectX500Principal().getName());
+		assertThrows(CertificateException.class, () -> cache.resolve("session1", client2));
+		assertEquals(4, calls.get());
+		cache.trustStoreChanged();
+		assertEquals(0, cache.getSize());
+		cache.resolve("session1", client2);
+		assertEquals(5, calls.get());
+	}
+
+	@Test
+	public void testNegativeTTL() throws Exception
+	{
+		X509Certificate[] client1 = load("client1");
+		CertificateIdentityCache<String> cache = new CertificateIdentityCache<>(resolver, 10, 60000, 100);
+		assertThrows(CertificateException.class, () -> cache.resolve("session1", client1));
+		assertThrows(CertificateException.class, () -> cache.resolve("session1", client1));
+		assertEquals(1, calls.get());
+		// the failure is not cached for the full TTL
+		trusted.add(client1[0].getSubjectX500Principal().getName());
+		Thread.sleep(150);
+		assertEquals(client1[0].getSubjectX500Principal().getName(), cache.resolve("session1", client1));
+		assertEquals(2, calls.get());
+
+		// failures not cached at all
+		CertificateIdentityCache<String> uncached = new CertificateIdentityCache<>(resolver, 10, 60000, 0);
+		X509Certificate[] client2 = load("client2");
+		assertThrows(CertificateException.class, () -> uncached.resolve("session2", client2));
+		assertThrows(CertificateException.class, () -> uncached.resolve("session2", client2));
+		assertEquals(4, calls.get());
+		assertEquals(0, uncached.getSize());
+	}
+
+	@Test
+	public void testMaxTTLAndSize() throws Exception
+	{
+		X509Certificate[] client1 = load("client1");
+		trusted.add(client1[0].getSubjectX500Principal().getName());
+		CertificateIdentityCache<String> cache = new CertificateIdentityCache<>(resolver, 10, 100);
+		cache.resolve("session1", client1);
+		Thread.sleep(150);
+		cache.resolve("session1", client1);
+		assertEquals(2, calls.get());
+		for(int i=0; i<100; i++){
+			cache.resolve("session"+i, client1);
+			assertTrue(cache.getSize()<=10);
+		}
+	}
+
+	@Test
+	public void testResolveFromMessage() throws Exception
+	{
+		X509Certificate[] client1 = load("client1");
+		trusted.add(client1[0].getSubjectX500Principal().getName());
+		HttpServletRequest req = (HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[]{HttpServletRequest.class}, (p, m, args) -> {
+					if(m.getName().equals("getAttribute")){
+						if("jakarta.servlet.request.X509Certificate".equals(args[0]))return client1;
+						if(CertificateIdentityCache.SSL_SESSION_ID_ATTRIBUTE.equals(args[0]))return "abcd";
+					}
+					return null;
+				});
+		Message message = new MessageImpl();
+		Exchange exchange = new ExchangeImpl();
+		exchange.setInMessage(message);
+		message.put(AbstractHTTPDestination.HTTP_REQUEST, req);
+		CertificateIdentityCache<String> cache = new CertificateIdentityCache<>(resolver);
+		assertEquals(client1[0].getSubjectX500Principal().getName(), cache.resolve(message));
+		assertEquals("abcd", CXFUtils.getSSLSessionID(message));
+		cache.invalidateSession("abcd");
+		assertEquals(0, cache.getSize());
+
+		Message plain = new MessageImpl();
+		new ExchangeImpl().setInMessage(plain);
+		assertNull(cache.resolve(plain));
+	}
+}
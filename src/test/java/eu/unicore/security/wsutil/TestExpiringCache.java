@@ -0,0 +1,86 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class TestExpiringCache
+{
+	@Test
+	public void testExpiry()
+	{
+		ExpiringCache<String, String> cache = new ExpiringCache<>(10);
+		long now = System.currentTimeMillis();
+		cache.put("a", "1", now+1000);
+		assertEquals("1", cache.get("a", now));
+		assertNull(cache.get("a", now+1000));
+		assertEquals(0, cache.size());
+
+		// replaced values are not evicted with the old expiry time
+		cache.put("b", "1", now+10);
+		cache.put("b", "2", now+1000);
+		assertEquals("2", cache.get("b", now+100));
+		cache.remove("b", "1");
+		assertEquals("2", cache.get("b", now));
+		cache.remove("b", "2");
+		assertNull(cache.get("b", now));
+	}
+
+	@Test
+	public void testEvictsEarliestExpiry()
+	{
+		ExpiringCache<String, String> cache = new ExpiringCache<>(100);
+		long now = System.currentTimeMillis();
+		for(int i=0; i<100; i++){
+			cache.put("k"+i, "v"+i, now+10000+i);
+		}
+		// expires first
+		cache.put("early", "v", now+1);
+		assertTrue(cache.size()<=100);
+		assertNull(cache.get("early", now));
+		assertNull(cache.get("k0", now));
+		assertNotNull(cache.get("k99", now));
+
+		cache.removeIf(v -> v.equals("v99"));
+		assertNull(cache.get("k99", now));
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testConcurrentPut() throws Exception
+	{
+		ExpiringCache<String, String> cache = new ExpiringCache<>(1000);
+		long now = System.currentTimeMillis();
+		ExecutorService es = Executors.newFixedThreadPool(4);
+		try{
+			List<Future<?>> results = new ArrayList<>();
+			for(int t=0; t<4; t++){
+				int thread = t;
+				results.add(es.submit(() -> {
+					for(int i=0; i<10000; i++){
+						cache.put(thread+"-"+i, "v", now+60000+i);
+						// keys shared by the threads
+						cache.put("shared"+(i%10), "v"+thread, now+60000);
+					}
+				}));
+			}
+			for(Future<?> f: results)f.get();
+		}finally{
+			es.shutdown();
+		}
+		// a put may skip eviction while another thread evicts, but the next one catches up
+		cache.put("last", "v", now+120000);
+		assertTrue(cache.size()<=1000);
+		assertNotNull(cache.get("last", now));
+	}
+}
@@ -0,0 +1,170 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+
+public class TestOffHeapSessionTable
+{
+
+	@Test
+	public void testPutGetRemove()
+	{
+		OffHeapSessionTable table = new OffHeapSessionTable(100, 1024*1024);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession session = new SecuritySession("123", tokens, 60000);
+		session.setUserKey("CN=Test@127.0.0.1");
+		assertNull(table.put(session));
+		SecuritySession s = table.get("123");
+		assertNotNull(s);
+		assertEquals("123", s.getSessionID());
+		assertEquals("CN=Test@127.0.0.1", s.getUserKey());
+		assertEquals(session.getExpiryTime(), s.getExpiryTime());
+		assertEquals("CN=Test", s.getTokens().getEffectiveUserName());
+		assertNull(table.get("456"));
+		assertTrue(table.getUsedBytes()>0);
+
+		assertFalse(table.remove("123", session.getExpiryTime()+1));
+		assertTrue(table.remove("123", session.getExpiryTime()));
+		assertNull(table.get("123"));
+		assertEquals(0, table.size());
+		assertEquals(0, table.getUsedBytes());
+	}
+
+	@Test
+	public void testLazyTokens()
+	{
+		OffHeapSessionTable table = new OffHeapSessionTable(100, 1024*1024);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession session = new SecuritySession("123", tokens, 60000);
+		table.put(session);
+		SecuritySession s = table.get("123");
+		// header fields are available without decoding the tokens
+		assertEquals(session.getExpiryTime(), s.getExpiryTime());
+		assertNotNull(s.getEncodedTokens());
+		// re-encoding does not need the tokens either
+		assertArrayEquals(SecuritySessionCodec.encode(session), SecuritySessionCodec.encode(s));
+		assertNotNull(s.getEncodedTokens());
+		assertEquals("CN=Test", s.getSharedTokens().getEffectiveUserName());
+		assertNull(s.getEncodedTokens());
+		assertSame(s.tokens(), s.tokens());
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception
+	{
+		OffHeapSessionTable table = new OffHeapSessionTable(64, 16*1024);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread reader = new Thread(() -> {
+			try{
+				while(!done.get()){
+					for(int i=0; i<16; i++){
+						SecuritySession s = table.get("s"+i);
+						if(s!=null)assertEquals("s"+i, s.getSessionID());
+					}
+				}
+			}catch(Throwable t){
+				failure.set(t);
+			}
+		});
+		reader.start();
+		// frequent replacements and compactions
+		for(int round=0; round<2000; round++){
+			String id = "s"+(round%16);
+			table.put(new SecuritySession(id, tokens, 60000+round));
+		}
+		done.set(true);
+		reader.join();
+		assertNull(failure.get());
+		assertTrue(table.getCompactions()>0);
+	}
+
+	@Test
+	public void testManyEntriesAndCompaction()
+	{
+		int n = 500;
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession probe = new SecuritySession("probe-0000", tokens, 60000);
+		OffHeapSessionTable table = new OffHeapSessionTable(n, 8*1024);
+		table.put(probe);
+		int recordSize = (int)table.getUsedBytes();
+		table = new OffHeapSessionTable(n, recordSize*n/4);
+		for(int round=0; round<4; round++){
+			// the arena only fits a quarter of the sessions, so space must be reclaimed
+			for(int i=0; i<n/4; i++){
+				table.put(new SecuritySession("s"+(round*1000+i+10000), tokens, 60000));
+			}
+			for(int i=0; i<n/4; i++){
+				String id = "s"+(round*1000+i+10000);
+				SecuritySession s = table.get(id);
+				assertNotNull(s);
+				if(i%2==0)assertTrue(table.remove(id, s.getExpiryTime()));
+			}
+			for(int i=0; i<n/4; i++){
+				String id = "s"+(round*1000+i+10000);
+				if(i%2==0)assertNull(table.get(id));
+				else assertTrue(table.remove(id, table.get(id).getExpiryTime()));
+			}
+		}
+		assertEquals(0, table.size());
+		assertTrue(table.getCompactions()>0);
+	}
+
+	@Test
+	public void testFull()
+	{
+		OffHeapSessionTable table = new OffHeapSessionTable(2, 1024*1024);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		table.put(new SecuritySession("1", tokens, 60000));
+		table.put(new SecuritySession("2", tokens, 60000));
+		assertThrows(IllegalStateException.class, () -> table.put(new SecuritySession("3", tokens, 60000)));
+		// replacing is fine
+		assertNotNull(table.put(new SecuritySession("2", tokens, 60000)));
+	}
+
+	@Test
+	public void testWithStore()
+	{
+		SecuritySessionStore store = new SecuritySessionStore(2, new OffHeapSessionTable(100, 1024*1024));
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		for(int i=0; i<5; i++){
+			store.storeSession(new SecuritySession("s"+i, tokens, 60000), tokens);
+		}
+		assertEquals(2, store.sessions.size());
+		assertEquals(2, store.getNumberOfSessions("CN=Test@127.0.0.1"));
+		assertNotNull(store.getSession("s4"));
+		assertNull(store.getSession("s0"));
+	}
+
+	@Test
+	public void testStoreFull()
+	{
+		SecuritySessionStore store = new SecuritySessionStore(0, new OffHeapSessionTable(2, 1024*1024));
+		for(int i=0; i<2; i++){
+			SecurityTokens tokens = new MockTokens("CN=Test"+i, "127.0.0.1");
+			store.storeSession(new SecuritySession("s"+i, tokens, 60000), tokens);
+		}
+		SecurityTokens tokens = new MockTokens("CN=Test2", "127.0.0.1");
+		// the caller must not hand out a session that was not stored
+		assertThrows(IllegalStateException.class,
+				() -> store.storeOrReuseSession(new SecuritySession("s2", tokens, 60000), tokens));
+		assertNull(store.getSession("s2"));
+		assertEquals(0, store.getNumberOfSessions("CN=Test2@127.0.0.1"));
+		assertEquals(2, store.sessions.size());
+	}
+}
@@ -0,0 +1,147 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.bus.managers.PhaseManagerImpl;
+import org.apache.cxf.interceptor.AbstractBasicInterceptorProvider;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+import org.apache.cxf.service.model.BindingInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.InterfaceInfo;
+import org.apache.cxf.service.model.ServiceInfo;
+import org.junit.jupiter.api.Test;
+
+public class TestPhaseTimings
+{
+	private static class SlowInterceptor extends AbstractPhaseInterceptor<Message>
+	{
+		SlowInterceptor(String phase)
+		{
+			super(phase);
+		}
+
+		@Override
+		public void handleMessage(Message message) throws Fault
+		{
+			try{
+				Thread.sleep(20);
+			}catch(InterruptedException e){
+				throw new Fault(e);
+			}
+		}
+	}
+
+	@Test
+	public void testServerTimings()
+	{
+		PhaseTimings timings = PhaseTimings.forServer();
+		AbstractBasicInterceptorProvider endpoint = new AbstractBasicInterceptorProvider(){};
+		timings.install(endpoint);
+		endpoint.getInInterceptors().add(new SlowInterceptor(Phase.INVOKE));
+		endpoint.getOutInterceptors().add(new SlowInterceptor(Phase.MARSHAL));
+		PhaseManagerImpl phases = new PhaseManagerImpl();
+		QName op = new QName("urn:test", "test");
+		ServiceInfo si = new ServiceInfo();
+		new InterfaceInfo(si, new QName("urn:test", "Test")).addOperation(op);
+		BindingOperationInfo bop = new BindingInfo(si, "test").buildOperation(op, null, null);
+
+		for(int i=0; i<3; i++){
+			Message in = new MessageImpl();
+			Exchange exchange = new ExchangeImpl();
+			exchange.setInMessage(in);
+			exchange.put(BindingOperationInfo.class, bop);
+			PhaseInterceptorChain inChain = new PhaseInterceptorChain(phases.getInPhases());
+			inChain.add(endpoint.getInInterceptors());
+			inChain.doIntercept(in);
+
+			Message out = new MessageImpl();
+			exchange.setOutMessage(out);
+			PhaseInterceptorChain outChain = new PhaseInterceptorChain(phases.getOutPhases());
+			outChain.add(endpoint.getOutInterceptors());
+			outChain.doIntercept(out);
+			// published and removed
+			assertNull(exchange.get(PhaseTimings.class.getName()));
+		}
+
+		assertEquals(Collections.singleton(op.toString()), timings.getOperations());
+		Map<String, LatencyHistogram> latencies = timings.getPhaseLatencies(op.toString());
+		assertEquals(3, latencies.get("request:invoke").getCount());
+		assertTrue(latencies.get("request:invoke").getMeanMicros()>=20000);
+		assertTrue(latencies.get("request:receive").getMeanMicros()<20000);
+		assertTrue(latencies.get("response:marshal").getMeanMicros()>=20000);
+		assertTrue(latencies.get(PhaseTimings.TOTAL).getMeanMicros()>=40000);
+		assertTrue(latencies.get(PhaseTimings.TOTAL).getPercentileMicros(0.99)>=40000);
+		assertEquals(PhaseTimings.TOTAL, latencies.keySet().stream().reduce((a, b) -> b).get());
+	}
+
+	@Test
+	public void testUnresolvedOperations()
+	{
+		PhaseTimings timings = PhaseTimings.forServer();
+		AbstractBasicInterceptorProvider endpoint = new AbstractBasicInterceptorProvider(){};
+		timings.install(endpoint);
+		PhaseManagerImpl phases = new PhaseManagerImpl();
+		// actions chosen by the client must not create new entries
+		for(int i=0; i<100; i++){
+			Message in = new MessageImpl();
+			Exchange exchange = new ExchangeImpl();
+			exchange.setInMessage(in);
+			Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			headers.put("SOAPAction", Collections.singletonList("urn:test:"+i));
+			in.put(Message.PROTOCOL_HEADERS, headers);
+			PhaseInterceptorChain inChain = new PhaseInterceptorChain(phases.getInPhases());
+			inChain.add(endpoint.getInInterceptors());
+			inChain.doIntercept(in);
+			Message out = new MessageImpl();
+			exchange.setOutMessage(out);
+			PhaseInterceptorChain outChain = new PhaseInterceptorChain(phases.getOutPhases());
+			outChain.add(endpoint.getOutInterceptors());
+			outChain.doIntercept(out);
+		}
+		assertEquals(Collections.singleton(PhaseTimings.UNKNOWN_OPERATION), timings.getOperations());
+		assertEquals(100, timings.getPhaseLatencies(PhaseTimings.UNKNOWN_OPERATION).get(PhaseTimings.TOTAL).getCount());
+	}
+
+	@Test
+	public void testClientTimings()
+	{
+		PhaseTimings timings = PhaseTimings.forClient();
+		AbstractBasicInterceptorProvider client = new AbstractBasicInterceptorProvider(){};
+		timings.install(client);
+		client.getOutInterceptors().add(new SlowInterceptor(Phase.PRE_PROTOCOL));
+		PhaseManagerImpl phases = new PhaseManagerImpl();
+
+		Message out = new MessageImpl();
+		Exchange exchange = new ExchangeImpl();
+		exchange.setOutMessage(out);
+		PhaseInterceptorChain outChain = new PhaseInterceptorChain(phases.getOutPhases());
+		outChain.add(client.getOutInterceptors());
+		outChain.doIntercept(out);
+
+		Message in = new MessageImpl();
+		exchange.setInMessage(in);
+		PhaseInterceptorChain inChain = new PhaseInterceptorChain(phases.getInPhases());
+		inChain.add(client.getInInterceptors());
+		inChain.doIntercept(in);
+
+		Map<String, LatencyHistogram> latencies = timings.getPhaseLatencies(PhaseTimings.UNKNOWN_OPERATION);
+		assertTrue(latencies.get("request:pre-protocol").getMeanMicros()>=20000);
+		assertEquals(1, latencies.get("response:receive").getCount());
+	}
+}
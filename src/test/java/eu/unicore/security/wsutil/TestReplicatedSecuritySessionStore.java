@@ -0,0 +1,258 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+
+public class TestReplicatedSecuritySessionStore
+{
+	private final byte[] secret = "test123".getBytes(StandardCharsets.UTF_8);
+
+	private ReplicatedSecuritySessionStore node1, node2, node3;
+
+	@BeforeEach
+	public void setUp() throws Exception
+	{
+		node1 = createNode("node1", 2, secret);
+		// node2 does not evict sessions by itself
+		node2 = createNode("node2", 10, secret);
+		node3 = createNode("node3", 2, secret);
+		// node1 and node2 replicate to each other, node3 only asks node1 on a miss
+		node1.addPeer(address(node2));
+		node2.addPeer(address(node1));
+		node3.addPeer(address(node1));
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception
+	{
+		node1.close();
+		node2.close();
+		node3.close();
+	}
+
+	@Test
+	public void testReplication() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		node1.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+		SecuritySession s = waitFor(node2, "s1");
+		assertNotNull(s);
+		assertEquals("CN=Test@127.0.0.1", s.getUserKey());
+
+		// removal is propagated, too
+		node1.storeSession(new SecuritySession("s2", tokens, 60000), tokens);
+		node1.storeSession(new SecuritySession("s3", tokens, 60000), tokens);
+		assertNull(node1.sessions.get("s1"));
+		assertNotNull(waitFor(node2, "s3"));
+		for(int i=0; i<50 && node2.sessions.get("s1")!=null; i++){
+			Thread.sleep(100);
+		}
+		assertNull(node2.sessions.get("s1"));
+	}
+
+	@Test
+	public void testLookupFallback() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		String id = node1.newSessionID();
+		node1.storeSession(new SecuritySession(id, tokens, 60000), tokens);
+		assertNull(node3.sessions.get(id));
+		SecuritySession s = node3.getSession(id);
+		assertNotNull(s);
+		// now it is known locally
+		assertNotNull(node3.sessions.get(id));
+		assertNull(node3.getSession("unknown"));
+
+		// IDs not issued by a peer are not looked up remotely
+		node1.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+		assertNull(node3.getSession("s1"));
+
+		// lookups require the session IDs
+		assertThrows(IllegalArgumentException.class, () -> node3.setSessionIDs(null));
+	}
+
+	@Test
+	public void testRestartWithoutJournal() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		String id = node1.newSessionID();
+		node1.storeSession(new SecuritySession(id, tokens, 60000), tokens);
+		assertNotNull(waitFor(node2, id));
+
+		// the restarted node has forgotten the IDs it issued, but still trusts its own tag
+		node1.close();
+		node1 = createNode("node1", 2, secret);
+		node1.addPeer(address(node2));
+		assertNull(node1.sessions.get(id));
+		SecuritySession s = node1.getSession(id);
+		assertNotNull(s);
+		assertEquals("CN=Test@127.0.0.1", s.getUserKey());
+		assertNotNull(node1.sessions.get(id));
+	}
+
+	@Test
+	public void testUnresponsivePeer() throws Exception
+	{
+		// accepts connections (via the backlog), but never answers
+		try(ServerSocket deadPeer = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())){
+			node3.addPeer(new InetSocketAddress(InetAddress.getLoopbackAddress(), deadPeer.getLocalPort()));
+			SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+			String id = node1.newSessionID();
+			node1.storeSession(new SecuritySession(id, tokens, 60000), tokens);
+
+			// the peers are asked in parallel, the answer of node1 is not delayed
+			long start = System.currentTimeMillis();
+			assertNotNull(node3.getSession(id));
+			assertTrue(System.currentTimeMillis()-start<SessionReplicator.DEF_TIMEOUT);
+
+			// a miss waits for the timeout once, then the unresponsive peer is skipped
+			start = System.currentTimeMillis();
+			assertNull(node3.getSession(new SecuritySessionIDs("node1", secret).newSessionID()));
+			long first = System.currentTimeMillis()-start;
+			assertTrue(first<2*SessionReplicator.DEF_TIMEOUT);
+			start = System.currentTimeMillis();
+			assertNull(node3.getSession(new SecuritySessionIDs("node1", secret).newSessionID()));
+			assertTrue(System.currentTimeMillis()-start<SessionReplicator.DEF_TIMEOUT/2);
+		}
+	}
+
+	@Test
+	public void testNoResurrection() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		String id = node1.newSessionID();
+		SecuritySession session = new SecuritySession(id, tokens, 60000);
+		byte[] delayedCreation;
+		try(ServerSocket fakePeer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())){
+			node1.addPeer(new InetSocketAddress(InetAddress.getLoopbackAddress(), fakePeer.getLocalPort()));
+			node1.storeSession(session, tokens);
+			delayedCreation = capture(fakePeer);
+		}
+		assertNotNull(waitFor(node2, id));
+
+		// node2 may not have processed the removal yet, but node1 does not re-import it
+		assertEquals(1, node1.invalidateAll(session.getUserKey()));
+		assertNull(node1.getSession(id));
+		for(int i=0; i<50 && node2.sessions.get(id)!=null; i++){
+			Thread.sleep(100);
+		}
+		assertNull(node2.sessions.get(id));
+
+		// a delayed creation event is not imported either
+		deliver(node2, delayedCreation);
+		assertNull(node2.sessions.get(id));
+		assertEquals(0, node2.getRejectedMessages());
+	}
+
+	@Test
+	public void testReplayRejected() throws Exception
+	{
+		try(ServerSocket fakePeer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())){
+			node3.addPeer(new InetSocketAddress(InetAddress.getLoopbackAddress(), fakePeer.getLocalPort()));
+			SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+			node3.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+			byte[] frame = capture(fakePeer);
+
+			// the original message is accepted
+			deliver(node2, frame);
+			assertNotNull(waitFor(node2, "s1"));
+			assertEquals(0, node2.getRejectedMessages());
+
+			// but not a replay, even if the session is no longer there
+			node2.sessions.remove("s1", node2.sessions.get("s1").getExpiryTime());
+			deliver(node2, frame);
+			for(int i=0; i<50 && node2.getRejectedMessages()==0; i++){
+				Thread.sleep(100);
+			}
+			assertEquals(1, node2.getRejectedMessages());
+			assertNull(node2.sessions.get("s1"));
+		}
+	}
+
+	@Test
+	public void testWrongSecretRejected() throws Exception
+	{
+		try(ReplicatedSecuritySessionStore intruder = createNode("intruder", 2, "wrong".getBytes(StandardCharsets.UTF_8))){
+			intruder.addPeer(address(node1));
+			SecurityTokens tokens = new MockTokens("CN=Intruder", "127.0.0.1");
+			intruder.storeSession(new SecuritySession("evil", tokens, 60000), tokens);
+			Thread.sleep(500);
+			assertNull(node1.getSession("evil"));
+			SecurityTokens tokens1 = new MockTokens("CN=Test", "127.0.0.1");
+			node1.storeSession(new SecuritySession("s1", tokens1, 60000), tokens1);
+			assertNull(intruder.getSession("s1"));
+		}
+	}
+
+	/**
+	 * @return the bytes sent by a node over the next accepted connection
+	 */
+	private byte[] capture(ServerSocket server) throws Exception
+	{
+		try(Socket s = server.accept()){
+			s.setSoTimeout(500);
+			InputStream in = s.getInputStream();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			try{
+				int n;
+				while((n = in.read(buf))>0)bos.write(buf, 0, n);
+			}catch(SocketTimeoutException e){
+				// all sent
+			}
+			return bos.toByteArray();
+		}
+	}
+
+	private void deliver(ReplicatedSecuritySessionStore node, byte[] frame) throws Exception
+	{
+		try(Socket s = new Socket(InetAddress.getLoopbackAddress(), node.getPort())){
+			OutputStream out = s.getOutputStream();
+			out.write(frame);
+			out.flush();
+			Thread.sleep(200);
+		}
+	}
+
+	private SecuritySession waitFor(SecuritySessionStore store, String id) throws InterruptedException
+	{
+		for(int i=0; i<50; i++){
+			SecuritySession s = store.sessions.get(id);
+			if(s!=null)return s;
+			Thread.sleep(100);
+		}
+		return null;
+	}
+
+	private ReplicatedSecuritySessionStore createNode(String name, int maxPerUser, byte[] secret) throws Exception
+	{
+		return new ReplicatedSecuritySessionStore(maxPerUser, new HeapSessionTable(),
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), secret,
+				new SecuritySessionIDs(name, secret));
+	}
+
+	private InetSocketAddress address(ReplicatedSecuritySessionStore node)
+	{
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), node.getPort());
+	}
+}
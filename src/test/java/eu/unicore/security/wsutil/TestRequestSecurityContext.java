@@ -0,0 +1,162 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.namespace.QName;
+
+import org.apache.cxf.binding.soap.model.SoapOperationInfo;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.apache.cxf.service.Service;
+import org.apache.cxf.service.ServiceImpl;
+import org.apache.cxf.service.invoker.MethodDispatcher;
+import org.apache.cxf.service.model.BindingInfo;
+import org.apache.cxf.service.model.BindingOperationInfo;
+import org.apache.cxf.service.model.InterfaceInfo;
+import org.apache.cxf.service.model.ServiceInfo;
+import org.apache.cxf.transport.http.AbstractHTTPDestination;
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.HTTPAuthNTokens;
+import jakarta.servlet.http.HttpServletRequest;
+
+public class TestRequestSecurityContext
+{
+	private final Map<String, Integer> calls = new HashMap<>();
+
+	private HttpServletRequest createRequest(String authorization)
+	{
+		return (HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[]{HttpServletRequest.class}, (p, m, args) -> {
+					calls.merge(m.getName(), 1, Integer::sum);
+					switch(m.getName()){
+					case "getHeader": return "Authorization".equals(args[0]) ? authorization : null;
+					case "getRemoteAddr": return "127.0.0.1";
+					default: return null;
+					}
+				});
+	}
+
+	private Message createMessage(String authorization)
+	{
+		Message message = new MessageImpl();
+		Exchange exchange = new ExchangeImpl();
+		exchange.setInMessage(message);
+		message.put(AbstractHTTPDestination.HTTP_REQUEST, createRequest(authorization));
+		return message;
+	}
+
+	@Test
+	public void testComputedOnce()
+	{
+		String basic = Base64.getEncoder().encodeToString("user:pass".getBytes(StandardCharsets.UTF_8));
+		Message message = createMessage("Basic "+basic);
+		for(int i=0; i<10; i++){
+			assertEquals("127.0.0.1", CXFUtils.getClientIP(message));
+			HTTPAuthNTokens creds = CXFUtils.getHTTPCredentials(message);
+			assertEquals("user", creds.getUserName());
+			assertEquals("pass", creds.getPasswd());
+			assertNull(CXFUtils.getBearerToken(message));
+			assertNull(CXFUtils.getSSLCerts(message));
+		}
+		assertEquals(1, calls.get("getRemoteAddr").intValue());
+		assertEquals(1, calls.get("getHeader").intValue());
+		assertEquals(1, calls.get("getAttribute").intValue());
+		assertSame(RequestSecurityContext.get(message), message.getExchange().get(RequestSecurityContext.class));
+		assertNotSame(CXFUtils.getHTTPCredentials(message), CXFUtils.getHTTPCredentials(message));
+	}
+
+	@Test
+	public void testBearerToken()
+	{
+		Message message = createMessage("Bearer some_token");
+		assertEquals("some_token", CXFUtils.getBearerToken(message));
+		assertNull(CXFUtils.getHTTPCredentials(message));
+	}
+
+	@Test
+	public void testNotAttachedToOtherMessages()
+	{
+		Message message = createMessage(null);
+		Message out = new MessageImpl();
+		message.getExchange().setOutMessage(out);
+		out.put(AbstractHTTPDestination.HTTP_REQUEST, createRequest(null));
+		assertNotSame(RequestSecurityContext.get(out), RequestSecurityContext.get(out));
+		assertNull(message.getExchange().get(RequestSecurityContext.class));
+		assertEquals("127.0.0.1", CXFUtils.getClientIP(out));
+	}
+
+	@Test
+	public void testOperationCache() throws Exception
+	{
+		QName declared = new QName("urn:test", "declared");
+		QName plain = new QName("urn:test", "plain");
+		ServiceInfo si = new ServiceInfo();
+		InterfaceInfo ii = new InterfaceInfo(si, new QName("urn:test", "Test"));
+		ii.addOperation(declared);
+		ii.addOperation(plain);
+		BindingInfo bi = new BindingInfo(si, "test");
+		BindingOperationInfo declaredOp = bi.buildOperation(declared, null, null);
+		SoapOperationInfo soi = new SoapOperationInfo();
+		soi.setAction("urn:test:declared");
+		declaredOp.addExtensor(soi);
+		BindingOperationInfo plainOp = bi.buildOperation(plain, null, null);
+
+		Method toString = Object.class.getMethod("toString");
+		MethodDispatcher md = (MethodDispatcher)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[]{MethodDispatcher.class}, (p, m, args) -> {
+					calls.merge(m.getName(), 1, Integer::sum);
+					return m.getName().equals("getMethod") ? toString : null;
+				});
+		Service service = new ServiceImpl(si);
+		service.put(MethodDispatcher.class.getName(), md);
+
+		for(int i=0; i<10; i++){
+			Message message = createMessage(null);
+			message.getExchange().put(Service.class, service);
+			message.getExchange().put(BindingOperationInfo.class, declaredOp);
+			assertEquals("urn:test:declared", CXFUtils.getAction(message));
+			assertEquals(toString, CXFUtils.getMethod(message));
+
+			// no declared action: taken from the message
+			Message other = createMessage(null);
+			other.getExchange().put(Service.class, service);
+			other.getExchange().put(BindingOperationInfo.class, plainOp);
+			assertEquals("toString", CXFUtils.getAction(other));
+			Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			headers.put("SOAPAction", Collections.singletonList("\"urn:test:sent\""));
+			other = createMessage(null);
+			other.getExchange().put(BindingOperationInfo.class, plainOp);
+			other.put(Message.PROTOCOL_HEADERS, headers);
+			assertEquals("urn:test:sent", CXFUtils.getAction(other));
+		}
+		// one lookup per operation
+		assertEquals(2, calls.get("getMethod").intValue());
+
+		// before the operation is known, the action from the message is not cached
+		Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		headers.put("SOAPAction", Collections.singletonList("urn:test:sent"));
+		Message message = createMessage(null);
+		message.put(Message.PROTOCOL_HEADERS, headers);
+		assertEquals("urn:test:sent", CXFUtils.getAction(message));
+		message.getExchange().put(BindingOperationInfo.class, declaredOp);
+		assertEquals("urn:test:declared", CXFUtils.getAction(message));
+		headers.clear();
+		assertEquals("urn:test:declared", CXFUtils.getAction(message));
+	}
+}
@@ -0,0 +1,267 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.xmlbeans.XmlObject;
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+
+public class TestSecuritySessionCodec
+{
+	private SecuritySession createSession(String id)
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession session = new SecuritySession(id, tokens, 60000);
+		session.setUserKey("CN=Test@127.0.0.1");
+		session.setLastAccessed(12345);
+		return session;
+	}
+
+	private void check(SecuritySession expected, SecuritySession actual)
+	{
+		assertEquals(expected.getSessionID(), actual.getSessionID());
+		assertEquals(expected.getUserKey(), actual.getUserKey());
+		assertEquals(expected.getExpiryTime(), actual.getExpiryTime());
+		assertEquals(expected.getLastAccessed(), actual.getLastAccessed());
+		assertEquals("CN=Test", actual.getSharedTokens().getEffectiveUserName());
+		assertEquals("127.0.0.1", actual.getSharedTokens().getClientIP());
+	}
+
+	@Test
+	public void testRoundTrip()
+	{
+		SecuritySession session = createSession("s1");
+		check(session, SecuritySessionCodec.decode(SecuritySessionCodec.encode(session)));
+
+		SecuritySession noUser = new SecuritySession("s2", null, 1000);
+		SecuritySession decoded = SecuritySessionCodec.decode(SecuritySessionCodec.encode(noUser));
+		assertNull(decoded.getUserKey());
+		assertNull(decoded.getSharedTokens());
+	}
+
+	@Test
+	public void testByteBuffer()
+	{
+		for(ByteBuffer buffer: new ByteBuffer[]{ByteBuffer.allocate(8192), ByteBuffer.allocateDirect(8192)}){
+			SecuritySession s1 = createSession("s1");
+			SecuritySession s2 = createSession("s2");
+			SecuritySessionCodec.encode(s1, buffer);
+			int length = buffer.position();
+			SecuritySessionCodec.encode(s2, buffer);
+			buffer.flip();
+			check(s1, SecuritySessionCodec.decode(buffer));
+			assertEquals(length, buffer.position());
+			check(s2, SecuritySessionCodec.decode(buffer));
+			assertEquals(0, buffer.remaining());
+
+			// same format as the byte array variant
+			byte[] data = SecuritySessionCodec.encode(s1);
+			assertEquals(length, data.length);
+			byte[] fromBuffer = new byte[length];
+			buffer.rewind();
+			buffer.get(fromBuffer);
+			assertTrue(Arrays.equals(data, fromBuffer));
+		}
+		assertThrows(BufferOverflowException.class,
+				() -> SecuritySessionCodec.encode(createSession("s1"), ByteBuffer.allocate(64)));
+	}
+
+	@Test
+	public void testInvalidData()
+	{
+		byte[] data = SecuritySessionCodec.encode(createSession("s1"));
+		assertThrows(IllegalArgumentException.class,
+				() -> SecuritySessionCodec.decode(Arrays.copyOf(data, data.length-10)));
+		data[0] = 99;
+		assertThrows(IllegalArgumentException.class, () -> SecuritySessionCodec.decode(data));
+	}
+
+	@Test
+	public void testLegacyFormat() throws Exception
+	{
+		SecuritySession session = createSession("s1");
+		byte[] legacy = serialize(session);
+		check(session, SecuritySessionCodec.decode(legacy));
+		assertTrue(SecuritySessionCodec.encode(session).length < legacy.length);
+
+		// version 1 differs only in the version (the mock tokens are serialized)
+		byte[] v1 = SecuritySessionCodec.encode(session);
+		v1[0] = 1;
+		check(session, SecuritySessionCodec.decode(v1));
+	}
+
+	/**
+	 * stands for an assertion class of the security library, wrapping an XML document
+	 */
+	public static class MockAssertion implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final XmlObject doc;
+
+		public MockAssertion(XmlObject doc)
+		{
+			this.doc = doc;
+		}
+
+		public XmlObject getXMLBeanDoc()
+		{
+			return doc;
+		}
+	}
+
+	@Test
+	public void testTokenFields() throws Exception
+	{
+		X509Certificate[] chain = loadChain("client1");
+		X500Principal principal = chain[0].getSubjectX500Principal();
+		XmlObject xml = XmlObject.Factory.parse("<a:Assertion xmlns:a='urn:test'>content</a:Assertion>");
+		List<Object> list = new ArrayList<>();
+		list.add("value");
+		list.add(new MockAssertion(xml));
+		SecurityTokens tokens = new SecurityTokens();
+		tokens.setClientIP("127.0.0.1");
+		tokens.getContext().put("chain", chain);
+		tokens.getContext().put("principal", principal);
+		tokens.getContext().put("assertions", list);
+		tokens.getContext().put("xml", xml);
+		tokens.getContext().put("number", 1.5d);
+		SecuritySession session = new SecuritySession("s1", tokens, 60000);
+		byte[] data = SecuritySessionCodec.encode(session);
+		// certificates are DER encoded, and smaller than with serialization
+		assertTrue(indexOf(data, chain[0].getEncoded())>0);
+		assertTrue(data.length < serialize(session).length);
+
+		SecurityTokens decoded = SecuritySessionCodec.decode(data).getSharedTokens();
+		assertEquals("127.0.0.1", decoded.getClientIP());
+		X509Certificate[] decodedChain = (X509Certificate[])decoded.getContext().get("chain");
+		assertEquals(chain.length, decodedChain.length);
+		for(int i=0; i<chain.length; i++){
+			assertArrayEquals(chain[i].getEncoded(), decodedChain[i].getEncoded());
+		}
+		assertEquals(principal, decoded.getContext().get("principal"));
+		List<?> decodedList = (List<?>)decoded.getContext().get("assertions");
+		assertEquals("value", decodedList.get(0));
+		assertEquals(xml.xmlText(), ((MockAssertion)decodedList.get(1)).getXMLBeanDoc().xmlText());
+		assertEquals(xml.xmlText(), ((XmlObject)decoded.getContext().get("xml")).xmlText());
+		assertEquals(1.5d, decoded.getContext().get("number"));
+	}
+
+	@Test
+	public void testAllTokenFields() throws Exception
+	{
+		SecurityTokens tokens = new SecurityTokens();
+		TestSessionTokensView.populate(tokens);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		// fails if any value falls back to Java serialization
+		SecurityTokensCodec.encode(tokens, bos, true);
+		SecurityTokens decoded = SecurityTokensCodec.decode(ByteBuffer.wrap(bos.toByteArray()));
+		for(Field f: TestSessionTokensView.getFields()){
+			checkValue(f.get(tokens), f.get(decoded), f.getName());
+		}
+		checkValue(tokens.getContext(), decoded.getContext(), "context");
+
+		tokens.getContext().put("format", new SimpleDateFormat());
+		assertThrows(IllegalArgumentException.class,
+				() -> SecurityTokensCodec.encode(tokens, new ByteArrayOutputStream(), true));
+	}
+
+	private static void checkValue(Object expected, Object actual, String name)
+	{
+		if(expected instanceof XmlObject){
+			assertEquals(((XmlObject)expected).xmlText(), ((XmlObject)actual).xmlText(), name);
+		}
+		else if(expected instanceof MockAssertion){
+			checkValue(((MockAssertion)expected).getXMLBeanDoc(), ((MockAssertion)actual).getXMLBeanDoc(), name);
+		}
+		else if(expected instanceof List){
+			List<?> list = (List<?>)expected;
+			assertEquals(list.size(), ((List<?>)actual).size(), name);
+			for(int i=0; i<list.size(); i++){
+				checkValue(list.get(i), ((List<?>)actual).get(i), name+"["+i+"]");
+			}
+		}
+		else if(expected instanceof Map){
+			Map<?,?> map = (Map<?,?>)expected;
+			assertEquals(map.keySet(), ((Map<?,?>)actual).keySet(), name);
+			for(Map.Entry<?,?> e: map.entrySet()){
+				checkValue(e.getValue(), ((Map<?,?>)actual).get(e.getKey()), name+"."+e.getKey());
+			}
+		}
+		else{
+			assertTrue(Objects.deepEquals(expected, actual), name);
+		}
+	}
+
+	@Test
+	public void testDeserializationFilter() throws Exception
+	{
+		// legacy format
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		tokens.getContext().put("format", new SimpleDateFormat());
+		byte[] legacy = serialize(new SecuritySession("s1", tokens, 60000));
+		assertThrows(IllegalArgumentException.class, () -> SecuritySessionCodec.decode(legacy));
+
+		// serialized value in the current format
+		SecurityTokens plain = new SecurityTokens();
+		plain.getContext().put("format", new SimpleDateFormat());
+		byte[] data = SecuritySessionCodec.encode(new SecuritySession("s2", plain, 60000));
+		assertThrows(IllegalArgumentException.class, () -> SecuritySessionCodec.decode(data));
+	}
+
+	private static byte[] serialize(Object o) throws Exception
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try(ObjectOutputStream os = new ObjectOutputStream(bos)){
+			os.writeObject(o);
+		}
+		return bos.toByteArray();
+	}
+
+	private static int indexOf(byte[] data, byte[] part)
+	{
+		outer:
+		for(int i=0; i<=data.length-part.length; i++){
+			for(int j=0; j<part.length; j++){
+				if(data[i+j]!=part[j])continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	static X509Certificate[] loadChain(String name) throws Exception
+	{
+		KeyStore ks = KeyStore.getInstance("JKS");
+		try(FileInputStream fis = new FileInputStream("src/test/resources/certs/"+name+".jks")){
+			ks.load(fis, "the!test".toCharArray());
+		}
+		Certificate[] chain = ks.getCertificateChain(name);
+		return Arrays.copyOf(chain, chain.length, X509Certificate[].class);
+	}
+}
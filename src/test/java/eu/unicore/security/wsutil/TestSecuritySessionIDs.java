@@ -0,0 +1,105 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+
+public class TestSecuritySessionIDs
+{
+	private final byte[] secret = "test123".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	public void testNodeHint()
+	{
+		SecuritySessionIDs ids = new SecuritySessionIDs("node-1", secret);
+		String id = ids.newSessionID();
+		assertTrue(id.startsWith("node-1."));
+		assertNotEquals(id, ids.newSessionID());
+		assertEquals("node-1", SecuritySessionIDs.getNode(id));
+		assertEquals("node-1", ids.getVerifiedNode(id));
+		// verified by another node sharing the secret
+		assertEquals("node-1", new SecuritySessionIDs("node-2", secret).getVerifiedNode(id));
+
+		String forged = "node-2"+id.substring(6);
+		assertEquals("node-2", SecuritySessionIDs.getNode(forged));
+		assertNull(ids.getVerifiedNode(forged));
+		assertNull(new SecuritySessionIDs("node-1", "other".getBytes()).getVerifiedNode(id));
+
+		assertNull(SecuritySessionIDs.getNode("4a5c1f9e-3f12-4c2b-9d1e-0123456789ab"));
+		assertNull(ids.getVerifiedNode("4a5c1f9e-3f12-4c2b-9d1e-0123456789ab"));
+		assertNull(ids.getVerifiedNode("node-1.abc"));
+		assertNull(ids.getVerifiedNode(null));
+		assertThrows(IllegalArgumentException.class, () -> new SecuritySessionIDs("a.b", secret));
+	}
+
+	@Test
+	public void testRouting()
+	{
+		// simulates a load balancer in front of three servers
+		Map<String, SecuritySessionStore> nodes = new HashMap<>();
+		for(String n: new String[]{"n1", "n2", "n3"}){
+			SecuritySessionStore store = new SecuritySessionStore();
+			store.setSessionIDs(new SecuritySessionIDs(n, secret));
+			nodes.put(n, store);
+		}
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		for(SecuritySessionStore store: nodes.values()){
+			for(int i=0; i<10; i++){
+				String id = store.newSessionID();
+				store.storeSession(new SecuritySession(id, tokens, 60000), tokens);
+				SecuritySessionStore target = nodes.get(SecuritySessionIDs.getNode(id));
+				assertNotNull(target.getSession(id));
+			}
+		}
+		assertEquals(36, new SecuritySessionStore().newSessionID().length());
+	}
+
+	@Test
+	public void testNotFoundHook()
+	{
+		List<String> notFound = new ArrayList<>();
+		SecuritySessionStore store = new SecuritySessionStore(){
+			@Override
+			protected SecuritySession sessionNotFound(String sessionID)
+			{
+				notFound.add(sessionID);
+				return null;
+			}
+		};
+		store.setSessionIDs(new SecuritySessionIDs("n1", secret));
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		String own = store.newSessionID();
+		store.storeSession(new SecuritySession(own, tokens, 60000), tokens);
+		assertNotNull(store.getSession(own));
+
+		// never issued and not tagged: rejected without invoking the hook
+		assertNull(store.getSession("unknown"));
+		String forged = "n2"+own.substring(2);
+		assertNull(store.getSession(forged));
+		assertTrue(notFound.isEmpty());
+
+		// issued by a peer
+		String peer = new SecuritySessionIDs("n2", secret).newSessionID();
+		assertNull(store.getSession(peer));
+		assertEquals(List.of(peer), notFound);
+
+		// own tag, but not in the filter, e.g. issued before a restart
+		String old = store.newSessionID();
+		assertNull(store.getSession(old));
+		assertEquals(List.of(peer, old), notFound);
+	}
+}
@@ -0,0 +1,195 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.headers.Header;
+import org.apache.cxf.helpers.CastUtils;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+public class TestSecuritySessionInHandler
+{
+	private SecuritySessionStore createStore()
+	{
+		SecuritySessionStore store = new SecuritySessionStore();
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		store.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+		return store;
+	}
+
+	private Message createMessage(Message message, String httpSessionID)
+	{
+		Exchange exchange = new ExchangeImpl();
+		exchange.setInMessage(message);
+		Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		if(httpSessionID!=null){
+			headers.put(SecuritySessionUtils.SESSION_ID_HEADER, Collections.singletonList(httpSessionID));
+		}
+		message.put(Message.PROTOCOL_HEADERS, headers);
+		return message;
+	}
+
+	@Test
+	public void testHTTPHeader()
+	{
+		SecuritySessionStore store = createStore();
+		SecuritySessionInHandler handler = new SecuritySessionInHandler(store, false);
+		Message message = createMessage(new MessageImpl(), "s1");
+		handler.handleMessage(message);
+		SecurityTokens tokens = (SecurityTokens)message.get(SecurityTokens.KEY);
+		assertNotNull(tokens);
+		assertNotSame(store.getSession("s1").getSharedTokens(), tokens);
+		assertEquals(Boolean.TRUE, tokens.getContext().get(SecuritySessionUtils.REUSED_MARKER_KEY));
+		assertEquals("s1", tokens.getContext().get(SecuritySessionUtils.SESSION_ID_KEY));
+		assertNull(store.getSession("s1").getSharedTokens().getContext().get(SecuritySessionUtils.REUSED_MARKER_KEY));
+
+		// response headers
+		Message out = new MessageImpl();
+		message.getExchange().setOutMessage(out);
+		out.setExchange(message.getExchange());
+		new SecuritySessionOutHandler().handleMessage(out);
+		Map<String, List<String>> headers = CastUtils.cast((Map<?, ?>)out.get(Message.PROTOCOL_HEADERS));
+		assertEquals("s1", headers.get(SecuritySessionUtils.SESSION_ID_HEADER).get(0));
+		assertNotNull(headers.get(SecuritySessionUtils.SESSION_LIFETIME_HEADER));
+
+		Message unknown = createMessage(new MessageImpl(), "unknown");
+		handler.handleMessage(unknown);
+		assertNull(unknown.get(SecurityTokens.KEY));
+		assertNull(unknown.getExchange().get(SecuritySession.class));
+	}
+
+	@Test
+	public void testSOAPHeader()
+	{
+		SecuritySessionStore store = createStore();
+		SoapMessage message = (SoapMessage)createMessage(new SoapMessage(new MessageImpl()), "unknown");
+		Document doc = DOMUtils.createDocument();
+		Element header = doc.createElementNS(SecuritySessionUtils.SESSION_HDR_NS, "SecuritySession");
+		Element id = doc.createElementNS(SecuritySessionUtils.SESSION_HDR_NS, "ID");
+		id.setTextContent("s1");
+		header.appendChild(id);
+		message.getHeaders().add(new Header(SecuritySessionUtils.headerQName, header));
+		assertEquals("s1", SecuritySessionInHandler.getSessionID(message));
+		new SecuritySessionInHandler(store, false).handleMessage(message);
+		assertNotNull(message.get(SecurityTokens.KEY));
+		assertSame(store.getSession("s1"), message.getExchange().get(SecuritySession.class));
+	}
+
+	@Test
+	public void testTickets() throws Exception
+	{
+		SecuritySessionStore store = createStore();
+		SecuritySessionTickets tickets = new SecuritySessionTickets(1, "key1".getBytes());
+		SecuritySession session = new SecuritySession("t1", new MockTokens("CN=Ticket", "127.0.0.1"), 60000);
+		session.setUserKey("CN=Ticket@127.0.0.1");
+		String ticket = tickets.issue(session);
+		SecuritySessionInHandler handler = new SecuritySessionInHandler(store, tickets, false);
+
+		Message message = createMessage(new MessageImpl(), ticket);
+		handler.handleMessage(message);
+		SecurityTokens tokens = (SecurityTokens)message.get(SecurityTokens.KEY);
+		assertNotNull(tokens);
+		assertEquals("CN=Ticket", tokens.getEffectiveUserName());
+		assertEquals("t1", tokens.getContext().get(SecuritySessionUtils.SESSION_ID_KEY));
+		assertNull(store.getSession("t1"));
+
+		// the ticket is sent back, not the ID
+		Message out = new MessageImpl();
+		message.getExchange().setOutMessage(out);
+		out.setExchange(message.getExchange());
+		new SecuritySessionOutHandler().handleMessage(out);
+		Map<String, List<String>> headers = CastUtils.cast((Map<?, ?>)out.get(Message.PROTOCOL_HEADERS));
+		assertEquals(ticket, headers.get(SecuritySessionUtils.SESSION_ID_HEADER).get(0));
+
+		// session IDs still work
+		Message stored = createMessage(new MessageImpl(), "s1");
+		handler.handleMessage(stored);
+		assertNotNull(stored.get(SecurityTokens.KEY));
+		assertNull(stored.getExchange().get(SecuritySessionUtils.SESSION_TICKET_KEY));
+
+		// filter
+		Map<String, Object> attributes = new HashMap<>();
+		Map<String, String> responseHeaders = new HashMap<>();
+		HttpServletRequest req = createRequest(ticket, "127.0.0.1", attributes);
+		HttpServletResponse res = createResponse(responseHeaders);
+		new SecuritySessionFilter(null, tickets, true).doFilter(req, res, (rq, rs) -> {});
+		assertNotNull(attributes.get(SecurityTokens.KEY));
+		assertEquals("t1", ((SecuritySession)attributes.get(SecuritySessionFilter.SESSION_ATTRIBUTE)).getSessionID());
+		assertEquals(ticket, responseHeaders.get(SecuritySessionUtils.SESSION_ID_HEADER));
+
+		// wrong client IP
+		attributes.clear();
+		new SecuritySessionFilter(null, tickets, true).doFilter(createRequest(ticket, "127.0.0.2", attributes), res, (rq, rs) -> {});
+		assertNull(attributes.get(SecurityTokens.KEY));
+	}
+
+	private HttpServletRequest createRequest(String sessionID, String clientIP, Map<String, Object> attributes)
+	{
+		return (HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[]{HttpServletRequest.class}, (p, m, args) -> {
+					switch(m.getName()){
+					case "getHeader": return SecuritySessionUtils.SESSION_ID_HEADER.equals(args[0]) ? sessionID : null;
+					case "getRemoteAddr": return clientIP;
+					case "setAttribute": attributes.put((String)args[0], args[1]); return null;
+					default: return null;
+					}
+				});
+	}
+
+	private HttpServletResponse createResponse(Map<String, String> headers)
+	{
+		return (HttpServletResponse)Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[]{HttpServletResponse.class}, (p, m, args) -> {
+					if(m.getName().equals("setHeader"))headers.put((String)args[0], (String)args[1]);
+					return null;
+				});
+	}
+
+	@Test
+	public void testFilter() throws Exception
+	{
+		SecuritySessionStore store = createStore();
+		Map<String, Object> attributes = new HashMap<>();
+		Map<String, String> responseHeaders = new HashMap<>();
+		HttpServletRequest req = createRequest("s1", "127.0.0.2", attributes);
+		HttpServletResponse res = createResponse(responseHeaders);
+		int[] calls = new int[1];
+		FilterChain chain = (rq, rs) -> calls[0]++;
+
+		new SecuritySessionFilter(store, false).doFilter(req, res, chain);
+		assertEquals(1, calls[0]);
+		assertNotNull(attributes.get(SecurityTokens.KEY));
+		assertSame(store.getSession("s1"), attributes.get(SecuritySessionFilter.SESSION_ATTRIBUTE));
+		assertEquals("s1", responseHeaders.get(SecuritySessionUtils.SESSION_ID_HEADER));
+
+		// wrong client IP
+		attributes.clear();
+		new SecuritySessionFilter(store, true).doFilter(req, res, chain);
+		assertEquals(2, calls[0]);
+		assertNull(attributes.get(SecurityTokens.KEY));
+	}
+}
@@ -0,0 +1,460 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+
+public class TestSecuritySessionStore
+{
+
+	@Test
+	public void testStoreAndGet()
+	{
+		SecuritySessionStore store = new SecuritySessionStore();
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession session = new SecuritySession("123", tokens, 60000);
+		store.storeSession(session, tokens);
+		assertNotNull(store.getSession("123"));
+		assertEquals("CN=Test@127.0.0.1", store.getSession("123").getUserKey());
+		assertNull(store.getSession("456"));
+	}
+
+	@Test
+	public void testSharedTokens()
+	{
+		SecurityTokens tokens = new SecurityTokens();
+		tokens.getContext().put("key", "value");
+		SecuritySession session = new SecuritySession("123", tokens, 60000);
+		SecurityTokens shared = session.getSharedTokens();
+		assertNotSame(tokens, shared);
+		assertEquals("value", shared.getContext().get("key"));
+		// changes are not visible to the session
+		shared.getContext().put("key", "changed");
+		shared.getContext().put("request", "value");
+		assertEquals("value", tokens.getContext().get("key"));
+		assertNull(session.getSharedTokens().getContext().get("request"));
+		assertNotSame(tokens, session.getTokens());
+
+		// copied for subclasses
+		SecurityTokens mock = new MockTokens("CN=Test", "127.0.0.1");
+		SecurityTokens copy = new SecuritySession("456", mock, 60000).getSharedTokens();
+		assertNotSame(mock, copy);
+		assertEquals("CN=Test", copy.getEffectiveUserName());
+	}
+
+	@Test
+	public void testMaxPerUser()
+	{
+		SecuritySessionStore store = new SecuritySessionStore(2);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		for(int i=0; i<5; i++){
+			store.storeSession(new SecuritySession("s"+i, tokens, 60000), tokens);
+		}
+		assertEquals(2, store.sessions.size());
+		assertEquals(2, store.getNumberOfSessions("CN=Test@127.0.0.1"));
+		assertNotNull(store.getSession("s3"));
+		assertNotNull(store.getSession("s4"));
+	}
+
+	@Test
+	public void testLRUEvictionPerUser()
+	{
+		SecuritySessionStore store = new SecuritySessionStore(2);
+		SecurityTokens tokens1 = new MockTokens("CN=Test1", "127.0.0.1");
+		SecurityTokens tokens2 = new MockTokens("CN=Test2", "127.0.0.1");
+		store.storeSession(new SecuritySession("other", tokens2, 60000), tokens2);
+		store.storeSession(new SecuritySession("s1", tokens1, 60000), tokens1);
+		store.storeSession(new SecuritySession("s2", tokens1, 60000), tokens1);
+		// make s1 the most recently used one
+		store.getSession("s1");
+		store.storeSession(new SecuritySession("s3", tokens1, 60000), tokens1);
+		assertNotNull(store.getSession("other"));
+		assertNotNull(store.getSession("s1"));
+		assertNull(store.getSession("s2"));
+		assertNotNull(store.getSession("s3"));
+		assertEquals(1, store.getNumberOfSessions("CN=Test2@127.0.0.1"));
+	}
+
+	@Test
+	public void testConcurrentTouches() throws Exception
+	{
+		SecuritySessionStore store = new SecuritySessionStore(2);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession s1 = new SecuritySession("s1", tokens, 60000);
+		store.storeSession(s1, tokens);
+		store.storeSession(new SecuritySession("s2", tokens, 60000), tokens);
+		long created = s1.getLastAccessed();
+		Thread.sleep(10);
+		ExecutorService es = Executors.newFixedThreadPool(8);
+		List<Future<?>> results = new ArrayList<>();
+		for(int t=0; t<8; t++){
+			results.add(es.submit(() -> {
+				for(int i=0; i<10000; i++){
+					assertNotNull(store.getSession("s1"));
+				}
+			}));
+		}
+		for(Future<?> f: results)f.get();
+		es.shutdown();
+		// recorded accesses are applied before evicting
+		store.storeSession(new SecuritySession("s3", tokens, 60000), tokens);
+		assertNotNull(store.getSession("s1"));
+		assertNull(store.getSession("s2"));
+		assertTrue(s1.getLastAccessed()>created);
+
+		// the new session is the most recently used one, even if all others were accessed
+		store.getSession("s3");
+		store.getSession("s1");
+		store.storeSession(new SecuritySession("s4", tokens, 60000), tokens);
+		assertNotNull(store.getSession("s4"));
+		assertNotNull(store.getSession("s1"));
+		assertNull(store.getSession("s3"));
+	}
+
+	@Test
+	public void testListAndInvalidate()
+	{
+		SecuritySessionStore store = new SecuritySessionStore();
+		SecurityTokens tokens1 = new MockTokens("CN=Test1", "127.0.0.1");
+		SecurityTokens tokens2 = new MockTokens("CN=Test2", "127.0.0.1");
+		String user1 = SecuritySessionStore.getUserKey(tokens1);
+		assertEquals("CN=Test1@127.0.0.1", user1);
+		for(int i=0; i<3; i++){
+			store.storeSession(new SecuritySession("s"+i, tokens1, 60000), tokens1);
+		}
+		store.storeSession(new SecuritySession("other", tokens2, 60000), tokens2);
+
+		List<SecuritySession> sessions = store.listSessions(user1);
+		assertEquals(3, sessions.size());
+		for(SecuritySession s: sessions){
+			assertEquals(user1, s.getUserKey());
+		}
+		assertEquals(3, store.invalidateAll(user1));
+		assertEquals(0, store.listSessions(user1).size());
+		assertNull(store.getSession("s0"));
+		assertEquals(0, store.getNumberOfSessions(user1));
+		assertNotNull(store.getSession("other"));
+		assertEquals(0, store.invalidateAll("unknown"));
+	}
+
+	@Test
+	public void testMetrics() throws Exception
+	{
+		SecuritySessionStore store = new SecuritySessionStore(2);
+		SecuritySessionMetrics metrics = store.getMetrics();
+		// time every lookup
+		metrics.setLookupSampling(1);
+		AtomicInteger evictions = new AtomicInteger();
+		metrics.addListener(new SecuritySessionMetricsListener(){
+			@Override
+			public void sessionEvicted()
+			{
+				evictions.incrementAndGet();
+			}
+		});
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		store.storeSession(new SecuritySession("short", tokens, 100), tokens);
+		for(int i=0; i<3; i++){
+			store.storeSession(new SecuritySession("s"+i, tokens, 60000), tokens);
+		}
+		SecurityTokens tokens2 = new MockTokens("CN=Test2", "127.0.0.1");
+		store.storeSession(new SecuritySession("other", tokens2, 60000), tokens2);
+		store.getSession("s2");
+		store.getSession("s2");
+		store.getSession("s0");
+		store.getSession("unknown");
+		assertEquals(5, metrics.getCreatedSessions());
+		assertEquals(2, metrics.getLookupHits());
+		assertEquals(2, metrics.getLookupMisses());
+		assertEquals(1, metrics.getRejectedLookups());
+		assertEquals(2, metrics.getEvictedSessions());
+		assertEquals(2, evictions.get());
+		assertEquals(3, metrics.getSessions());
+		assertEquals(2, metrics.getUsers());
+		assertTrue(metrics.getLookup99thPercentileMicros()>0);
+		assertEquals(4, Arrays.stream(metrics.getLookupHistogram()).sum());
+		assertTrue(metrics.getMeanLookupMicros()>0);
+
+		SecurityTokens tokens3 = new MockTokens("CN=Test3", "127.0.0.1");
+		SecuritySessionStore store2 = new SecuritySessionStore();
+		store2.storeSession(new SecuritySession("short", tokens3, 100), tokens3);
+		Thread.sleep(200);
+		store2.storeSession(new SecuritySession("s1", tokens3, 60000), tokens3);
+		assertEquals(1, store2.getMetrics().getExpiredSessions());
+
+		ObjectName name = metrics.registerMBean("test");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertEquals(5L, server.getAttribute(name, "CreatedSessions"));
+		server.unregisterMBean(name);
+	}
+
+	@Test
+	public void testCreationRateLimit() throws Exception
+	{
+		SecuritySessionStore store = new SecuritySessionStore(10);
+		store.setCreationRateLimit(2, 2);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		for(int i=0; i<3; i++){
+			SecuritySession s = new SecuritySession("s"+i, tokens, 60000+i);
+			assertSame(s, store.storeOrReuseSession(s, tokens));
+		}
+		SecuritySession s = store.storeOrReuseSession(new SecuritySession("s3", tokens, 60000), tokens);
+		assertEquals("s2", s.getSessionID());
+		assertNull(store.getSession("s3"));
+		assertEquals(3, store.getNumberOfSessions("CN=Test@127.0.0.1"));
+		assertEquals(1, store.getMetrics().getRateLimitedCreations());
+
+		// storeSession cannot return another session, so it fails like for a full table
+		SecuritySession refused = new SecuritySession("s5", tokens, 60000);
+		assertThrows(IllegalStateException.class, () -> store.storeSession(refused, tokens));
+		assertNull(store.getSession("s5"));
+		assertEquals(2, store.getMetrics().getRateLimitedCreations());
+
+		// other users are not affected
+		SecurityTokens tokens2 = new MockTokens("CN=Test2", "127.0.0.1");
+		SecuritySession other = new SecuritySession("other", tokens2, 60000);
+		assertSame(other, store.storeOrReuseSession(other, tokens2));
+
+		Thread.sleep(600);
+		s = new SecuritySession("s4", tokens, 60000);
+		assertSame(s, store.storeOrReuseSession(s, tokens));
+	}
+
+	@Test
+	public void testEmptyUserIndexRemoved()
+	{
+		SecuritySessionStore store = new SecuritySessionStore();
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		store.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+		SecurityTokens tokens2 = new MockTokens("CN=Test", "127.0.0.2");
+		store.storeSession(new SecuritySession("s1", tokens2, 60000), tokens2);
+		assertNull(store.sessionsPerUser.get("CN=Test@127.0.0.1"));
+		assertEquals(1, store.getNumberOfSessions("CN=Test@127.0.0.2"));
+	}
+
+	@Test
+	public void testUnknownIDsRejected() throws Exception
+	{
+		SecuritySessionStore store = new SecuritySessionStore(3);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		for(int i=0; i<50000; i++){
+			store.storeSession(new SecuritySession("s"+i, tokens, 60000), tokens);
+		}
+		// the filter was rebuilt several times, live sessions must still be found
+		for(int i=49997; i<50000; i++){
+			assertNotNull(store.getSession("s"+i));
+		}
+		// the old filter is used until the rebuild is complete
+		for(int i=0; i<100 && store.isFilterRebuilding(); i++){
+			Thread.sleep(10);
+		}
+		for(int i=0; i<1000; i++){
+			assertNull(store.getSession(UUID.randomUUID().toString()));
+		}
+		assertTrue(store.getRejectedLookups()>950);
+	}
+
+	@Test
+	public void testWeightLimit()
+	{
+		SecuritySessionStore store = new SecuritySessionStore(0){
+			@Override
+			protected long weigh(SecuritySession session)
+			{
+				return 100;
+			}
+		};
+		store.setMaxWeight(1000);
+		for(int i=0; i<5; i++){
+			SecurityTokens tokens = new MockTokens("CN=Hot"+i, "127.0.0.1");
+			store.storeSession(new SecuritySession("hot"+i, tokens, 60000), tokens);
+		}
+		for(int j=0; j<100; j++){
+			for(int i=0; i<5; i++){
+				assertNotNull(store.getSession("hot"+i));
+			}
+		}
+		// a burst of sessions that are never used again
+		for(int i=0; i<100; i++){
+			SecurityTokens tokens = new MockTokens("CN=OneOff"+i, "127.0.0.1");
+			store.storeSession(new SecuritySession("oneoff"+i, tokens, 60000), tokens);
+			assertTrue(store.getWeight()<=1000);
+		}
+		assertEquals(10, store.sessions.size());
+		for(int i=0; i<5; i++){
+			assertNotNull(store.getSession("hot"+i));
+		}
+
+		SecuritySessionStore store2 = new SecuritySessionStore();
+		store2.setMaxWeight(1024*1024);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		store2.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+		assertTrue(store2.getWeight()>0);
+	}
+
+	@Test
+	public void testConcurrentWeightLimit() throws Exception
+	{
+		SecuritySessionStore store = new SecuritySessionStore(0){
+			@Override
+			protected long weigh(SecuritySession session)
+			{
+				return 100;
+			}
+		};
+		store.setMaxWeight(1000);
+		ExecutorService es = Executors.newFixedThreadPool(8);
+		List<Future<?>> results = new ArrayList<>();
+		for(int t=0; t<8; t++){
+			int thread = t;
+			results.add(es.submit(() -> {
+				for(int i=0; i<1000; i++){
+					SecurityTokens tokens = new MockTokens("CN=User"+thread+"-"+i, "127.0.0.1");
+					store.storeSession(new SecuritySession("s"+thread+"-"+i, tokens, 60000), tokens);
+				}
+			}));
+		}
+		for(Future<?> f: results)f.get();
+		es.shutdown();
+		// all queued updates were applied
+		assertEquals(1000, store.getWeight());
+		assertEquals(10, store.sessions.size());
+	}
+
+	@Test
+	public void testWeightFromTable()
+	{
+		SecuritySessionStore store = new SecuritySessionStore(0, new OffHeapSessionTable(100, 1024*1024));
+		store.setMaxWeight(1024*1024);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession session = new SecuritySession("s1", tokens, 60000);
+		store.storeSession(session, tokens);
+		// the size of the table's encoding is used
+		assertTrue(session.getEncodedLength()>0);
+		assertEquals(session.getEncodedLength(), store.getWeight());
+	}
+
+	@Test
+	public void testHeavySessions()
+	{
+		SecuritySessionStore store = new SecuritySessionStore(0){
+			@Override
+			protected long weigh(SecuritySession session)
+			{
+				return Long.parseLong(session.getSessionID().split("-")[1]);
+			}
+		};
+		store.setMaxWeight(1000);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		for(int i=0; i<20; i++){
+			store.storeSession(new SecuritySession("small"+i+"-10", tokens, 60000), tokens);
+			assertNotNull(store.getSession("small"+i+"-10"));
+		}
+		// much heavier than the window, but still kept
+		for(int i=0; i<5; i++){
+			SecuritySession s = new SecuritySession("heavy"+i+"-600", tokens, 60000);
+			assertSame(s, store.storeOrReuseSession(s, tokens));
+			assertNotNull(store.getSession(s.getSessionID()));
+			assertTrue(store.getWeight()<=1000);
+		}
+		// heavier than the whole budget: rejected
+		SecuritySession huge = new SecuritySession("huge-2000", tokens, 60000);
+		assertThrows(IllegalStateException.class, () -> store.storeSession(huge, tokens));
+		assertNull(store.getSession("huge-2000"));
+		assertTrue(store.getWeight()<=1000);
+	}
+
+	@Test
+	public void testExpiry() throws Exception
+	{
+		SecuritySessionStore store = new SecuritySessionStore(50);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		for(int i=0; i<20; i++){
+			store.storeSession(new SecuritySession("short"+i, tokens, 500), tokens);
+		}
+		store.storeSession(new SecuritySession("long", tokens, 60000), tokens);
+		Thread.sleep(600);
+		// each store operation removes a bounded number of expired sessions
+		store.storeSession(new SecuritySession("trigger1", tokens, 60000), tokens);
+		assertEquals(6, store.getNumberOfSessions("CN=Test@127.0.0.1"));
+		store.storeSession(new SecuritySession("trigger2", tokens, 60000), tokens);
+		assertEquals(3, store.getNumberOfSessions("CN=Test@127.0.0.1"));
+		assertNull(store.getSession("short0"));
+		assertNotNull(store.getSession("long"));
+	}
+
+	@Test
+	public void testConcurrentAccess() throws Exception
+	{
+		int threads = 16;
+		int perThread = 2000;
+		SecuritySessionStore store = new SecuritySessionStore(3);
+		ExecutorService es = Executors.newFixedThreadPool(threads);
+		List<Future<?>> results = new ArrayList<>();
+		for(int t=0; t<threads; t++){
+			final SecurityTokens tokens = new MockTokens("CN=User"+t, "127.0.0.1");
+			results.add(es.submit(() -> {
+				for(int i=0; i<perThread; i++){
+					String id = UUID.randomUUID().toString();
+					store.storeSession(new SecuritySession(id, tokens, 60000), tokens);
+					store.getSession(id);
+				}
+			}));
+		}
+		for(Future<?> f: results)f.get();
+		es.shutdown();
+		es.awaitTermination(10, TimeUnit.SECONDS);
+		assertEquals(threads*3, store.sessions.size());
+		for(int t=0; t<threads; t++){
+			assertEquals(3, store.getNumberOfSessions("CN=User"+t+"@127.0.0.1"));
+		}
+	}
+
+	public static class MockTokens extends SecurityTokens
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final String user;
+		private final String ip;
+
+		public MockTokens(String user, String ip)
+		{
+			this.user = user;
+			this.ip = ip;
+		}
+
+		@Override
+		public String getEffectiveUserName()
+		{
+			return user;
+		}
+
+		@Override
+		public String getClientIP()
+		{
+			return ip;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+
+public class TestSecuritySessionTickets
+{
+	private static byte[] secret(String s)
+	{
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private SecuritySession createSession(String id, long lifetime)
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession session = new SecuritySession(id, tokens, lifetime);
+		session.setUserKey("CN=Test@127.0.0.1");
+		return session;
+	}
+
+	@Test
+	public void testIssueAndRestore()
+	{
+		SecuritySessionTickets tickets = new SecuritySessionTickets(1, secret("key1"));
+		SecuritySession session = createSession("s1", 60000);
+		String ticket = tickets.issue(session);
+
+		// another server with the same key
+		SecuritySession restored = new SecuritySessionTickets(1, secret("key1")).restore(ticket);
+		assertNotNull(restored);
+		assertEquals("s1", restored.getSessionID());
+		assertEquals("CN=Test@127.0.0.1", restored.getUserKey());
+		assertEquals(session.getExpiryTime(), restored.getExpiryTime());
+		assertEquals("CN=Test", restored.getSharedTokens().getEffectiveUserName());
+
+		assertNull(new SecuritySessionTickets(1, secret("other")).restore(ticket));
+	}
+
+	@Test
+	public void testInvalidTickets() throws Exception
+	{
+		SecuritySessionTickets tickets = new SecuritySessionTickets(1, secret("key1"));
+		String ticket = tickets.issue(createSession("s1", 60000));
+		char[] modified = ticket.toCharArray();
+		int i = modified.length/2;
+		modified[i] = modified[i]=='A' ? 'B' : 'A';
+		assertNull(tickets.restore(new String(modified)));
+		assertNull(tickets.restore("4a5c1f9e-3f12-4c2b-9d1e-0123456789ab"));
+		assertNull(tickets.restore(""));
+		assertNull(tickets.restore(null));
+
+		String shortLived = tickets.issue(createSession("s2", 100));
+		Thread.sleep(200);
+		assertNull(tickets.restore(shortLived));
+
+		assertThrows(IllegalArgumentException.class,
+				() -> tickets.issue(new SecuritySession("s3", new MockTokens("CN=Test", "127.0.0.1"), 1000)));
+	}
+
+	@Test
+	public void testSizeLimit()
+	{
+		SecuritySessionTickets tickets = new SecuritySessionTickets(1, secret("key1"));
+		String ticket = tickets.issue(createSession("s1", 60000));
+		assertTrue(ticket.length()<1024, "ticket length "+ticket.length());
+
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		tokens.getContext().put("data", "x".repeat(SecuritySessionTickets.MAX_TICKET_LENGTH));
+		SecuritySession tooLarge = new SecuritySession("s2", tokens, 60000);
+		tooLarge.setUserKey("CN=Test@127.0.0.1");
+		assertThrows(IllegalArgumentException.class, () -> tickets.issue(tooLarge));
+
+		// oversized values are not decoded
+		assertNull(tickets.restore(ticket+"A".repeat(SecuritySessionTickets.MAX_TICKET_LENGTH)));
+	}
+
+	@Test
+	public void testKeyRotation()
+	{
+		SecuritySessionTickets tickets = new SecuritySessionTickets(1, secret("key1"));
+		String oldTicket = tickets.issue(createSession("s1", 60000));
+		tickets.rotate(2, secret("key2"));
+		assertEquals(2, tickets.getCurrentKeyID());
+		String newTicket = tickets.issue(createSession("s2", 60000));
+
+		// during rollover both are accepted
+		assertNotNull(tickets.restore(oldTicket));
+		assertNotNull(tickets.restore(newTicket));
+		// a server that only knows the old key
+		assertNull(new SecuritySessionTickets(1, secret("key1")).restore(newTicket));
+
+		tickets.retireKey(1);
+		assertNull(tickets.restore(oldTicket));
+		assertNotNull(tickets.restore(newTicket));
+		assertThrows(IllegalArgumentException.class, () -> tickets.retireKey(2));
+		assertThrows(IllegalArgumentException.class, () -> tickets.rotate(256, secret("key3")));
+	}
+}
@@ -0,0 +1,107 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.SecuritySessionEvent.Type;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+
+public class TestSessionEventDispatcher
+{
+	@Test
+	public void testStoreEvents() throws Exception
+	{
+		BlockingQueue<SecuritySessionEvent> received = new LinkedBlockingQueue<>();
+		SecuritySessionStore store = new SecuritySessionStore(1);
+		store.addListener(received::add);
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		store.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+		store.storeSession(new SecuritySession("s2", tokens, 60000), tokens);
+		assertEvent(received, Type.CREATED, "s1");
+		assertEvent(received, Type.CREATED, "s2");
+		assertEvent(received, Type.EVICTED, "s1");
+
+		SecurityTokens tokens2 = new MockTokens("CN=Test2", "127.0.0.1");
+		store.storeSession(new SecuritySession("short", tokens2, 100), tokens2);
+		assertEvent(received, Type.CREATED, "short");
+		Thread.sleep(200);
+		store.storeSession(new SecuritySession("s3", tokens, 60000), tokens);
+		assertEvent(received, Type.CREATED, "s3");
+		assertEvent(received, Type.EXPIRED, "short");
+		assertEvent(received, Type.EVICTED, "s2");
+
+		store.invalidateAll("CN=Test@127.0.0.1");
+		SecuritySessionEvent e = assertEvent(received, Type.REMOVED, "s3");
+		assertEquals("CN=Test@127.0.0.1", e.getUserKey());
+		assertEquals(0, store.getEventDispatcher().getDroppedEvents());
+	}
+
+	@Test
+	public void testSlowListener() throws Exception
+	{
+		SessionEventDispatcher dispatcher = new SessionEventDispatcher(2);
+		CountDownLatch release = new CountDownLatch(1);
+		dispatcher.addListener(e -> {
+			try{
+				release.await();
+			}catch(InterruptedException ie){}
+		});
+		// must not block
+		for(int i=0; i<100; i++){
+			dispatcher.publish(Type.CREATED, "s"+i, "user", 0);
+		}
+		assertTrue(dispatcher.getDroppedEvents()>=97);
+		release.countDown();
+		for(int i=0; i<50 && dispatcher.getDroppedEvents()+dispatcher.getDeliveredEvents()<100; i++){
+			Thread.sleep(100);
+		}
+		assertEquals(0, dispatcher.getPendingEvents());
+		assertEquals(100, dispatcher.getDroppedEvents()+dispatcher.getDeliveredEvents());
+	}
+
+	@Test
+	public void testClose() throws Exception
+	{
+		BlockingQueue<SecuritySessionEvent> received = new LinkedBlockingQueue<>();
+		AtomicReference<Thread> dispatchThread = new AtomicReference<>();
+		SecuritySessionStore store = new SecuritySessionStore();
+		store.addListener(e -> {
+			dispatchThread.set(Thread.currentThread());
+			received.add(e);
+		});
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		store.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+		assertEvent(received, Type.CREATED, "s1");
+
+		store.close();
+		assertTrue(store.getEventDispatcher().isClosed());
+		dispatchThread.get().join(5000);
+		assertFalse(dispatchThread.get().isAlive());
+		// the store remains usable, but no more events are published
+		store.storeSession(new SecuritySession("s2", tokens, 60000), tokens);
+		assertEquals(0, store.getEventDispatcher().getPendingEvents());
+		assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+		assertThrows(IllegalStateException.class, () -> store.addListener(received::add));
+	}
+
+	private SecuritySessionEvent assertEvent(BlockingQueue<SecuritySessionEvent> received, Type type, String id)
+			throws InterruptedException
+	{
+		SecuritySessionEvent e = received.poll(5, TimeUnit.SECONDS);
+		assertEquals(type, e.getType());
+		assertEquals(id, e.getSessionID());
+		return e;
+	}
+}
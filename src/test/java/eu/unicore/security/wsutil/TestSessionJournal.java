@@ -0,0 +1,167 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionStore.MockTokens;
+
+public class TestSessionJournal
+{
+	private final File dir = new File("target/test-session-journal");
+
+	@BeforeEach
+	public void setUp() throws Exception
+	{
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void testRestore() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySessionStore store = new SecuritySessionStore(2);
+		try(SessionJournal journal = new SessionJournal(dir)){
+			store.setJournal(journal);
+			store.storeSession(new SecuritySession("s1", tokens, 60000), tokens);
+			store.storeSession(new SecuritySession("s2", tokens, 60000), tokens);
+			store.storeSession(new SecuritySession("short", tokens, 200), tokens);
+			store.storeSession(new SecuritySession("s3", tokens, 60000), tokens);
+		}
+		Thread.sleep(300);
+
+		SecuritySessionStore restored = new SecuritySessionStore(2);
+		try(SessionJournal journal = new SessionJournal(dir)){
+			restored.setJournal(journal);
+			// s1 and s2 were evicted, "short" expired
+			assertNull(restored.getSession("s1"));
+			assertNull(restored.getSession("s2"));
+			assertNull(restored.getSession("short"));
+			SecuritySession s3 = restored.getSession("s3");
+			assertNotNull(s3);
+			assertEquals("CN=Test@127.0.0.1", s3.getUserKey());
+			assertEquals(1, restored.getNumberOfSessions("CN=Test@127.0.0.1"));
+		}
+	}
+
+	@Test
+	public void testCompaction() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySessionStore store = new SecuritySessionStore(10);
+		try(SessionJournal journal = new SessionJournal(dir, 100000, 1024)){
+			store.setJournal(journal);
+			for(int i=0; i<100; i++){
+				store.storeSession(new SecuritySession("s"+i, tokens, 60000), tokens);
+			}
+			journal.flush();
+			assertTrue(new File(dir, "sessions.snapshot").exists());
+			assertTrue(new File(dir, "sessions.journal").length()<1024);
+		}
+		SecuritySessionStore restored = new SecuritySessionStore(10);
+		try(SessionJournal journal = new SessionJournal(dir)){
+			restored.setJournal(journal);
+			assertEquals(10, restored.getNumberOfSessions("CN=Test@127.0.0.1"));
+			assertNotNull(restored.getSession("s99"));
+			assertNull(restored.getSession("s89"));
+		}
+	}
+
+	@Test
+	public void testOwnerOnlyPermissions() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		try(SessionJournal journal = new SessionJournal(dir, 100000, 1)){
+			journal.sessionCreated(new SecuritySession("s1", tokens, 60000));
+			journal.flush();
+		}
+		Assumptions.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+		assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(dir.toPath()));
+		for(String name: new String[]{"sessions.journal", "sessions.snapshot"}){
+			Path file = new File(dir, name).toPath();
+			assertTrue(Files.exists(file));
+			assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+		}
+	}
+
+	@Test
+	public void testBoundedQueue() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		SecuritySession s1 = new SecuritySession("s1", tokens, 60000);
+		try(SessionJournal journal = new SessionJournal(dir, 100000, 1024*1024, 2)){
+			journal.sessionCreated(s1);
+			journal.sessionCreated(new SecuritySession("s2", tokens, 60000));
+			journal.sessionCreated(new SecuritySession("s3", tokens, 60000));
+			assertEquals(1, journal.getDroppedEvents());
+			// removals are never dropped
+			journal.sessionRemoved("s1", s1.getExpiryTime());
+			assertEquals(1, journal.getDroppedEvents());
+		}
+		try(SessionJournal journal = new SessionJournal(dir)){
+			List<SecuritySession> restored = journal.restore();
+			assertEquals(1, restored.size());
+			assertEquals("s2", restored.get(0).getSessionID());
+		}
+	}
+
+	@Test
+	public void testFailedCompaction() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		File blocker = new File(dir, "sessions.snapshot.tmp");
+		try(SessionJournal journal = new SessionJournal(dir, 100000, 1)){
+			assertTrue(blocker.mkdirs());
+			journal.sessionCreated(new SecuritySession("s1", tokens, 60000));
+			assertThrows(IOException.class, () -> journal.flush());
+			FileUtils.deleteQuietly(blocker);
+			// the journal is still usable
+			journal.sessionCreated(new SecuritySession("s2", tokens, 60000));
+			journal.flush();
+		}
+		try(SessionJournal journal = new SessionJournal(dir)){
+			assertEquals(2, journal.restore().size());
+		}
+	}
+
+	@Test
+	public void testInvalidRecordLength() throws Exception
+	{
+		SecurityTokens tokens = new MockTokens("CN=Test", "127.0.0.1");
+		try(SessionJournal journal = new SessionJournal(dir)){
+			journal.sessionCreated(new SecuritySession("s1", tokens, 60000));
+		}
+		// a corrupted record claiming 2 GB of data
+		try(DataOutputStream os = new DataOutputStream(new FileOutputStream(new File(dir, "sessions.journal"), true))){
+			os.writeByte(1);
+			os.writeUTF("s2");
+			os.writeLong(System.currentTimeMillis()+60000);
+			os.writeLong(System.currentTimeMillis());
+			os.writeInt(Integer.MAX_VALUE);
+			os.write(new byte[16]);
+		}
+		try(SessionJournal journal = new SessionJournal(dir)){
+			List<SecuritySession> restored = journal.restore();
+			assertEquals(1, restored.size());
+			assertEquals("s1", restored.get(0).getSessionID());
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package eu.unicore.security.wsutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.xmlbeans.XmlObject;
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.security.SecurityTokens;
+import eu.unicore.security.wsutil.TestSecuritySessionCodec.MockAssertion;
+
+public class TestSessionTokensView
+{
+	private SecurityTokens createTokens()
+	{
+		SecurityTokens tokens = new SecurityTokens();
+		tokens.setClientIP("127.0.0.1");
+		tokens.getContext().put("a", "1");
+		tokens.getContext().put("b", "2");
+		return tokens;
+	}
+
+	@Test
+	public void testCopyOnWrite()
+	{
+		SecurityTokens tokens = createTokens();
+		SecurityTokens view = SessionTokensView.of(tokens);
+		assertEquals("127.0.0.1", view.getClientIP());
+		Map<String, ?> context = view.getContext();
+		assertEquals("1", context.get("a"));
+		assertEquals(2, context.size());
+
+		view.setClientIP("10.0.0.1");
+		view.getContext().put("a", "changed");
+		view.getContext().put("c", "3");
+		view.getContext().remove("b");
+		assertEquals("10.0.0.1", view.getClientIP());
+		assertEquals("changed", context.get("a"));
+		assertFalse(context.containsKey("b"));
+		assertEquals(2, context.size());
+		Map<String, Object> expected = new HashMap<>();
+		expected.put("a", "changed");
+		expected.put("c", "3");
+		assertEquals(expected, new HashMap<>(context));
+
+		// the session's tokens are unchanged
+		assertEquals("127.0.0.1", tokens.getClientIP());
+		assertEquals("1", tokens.getContext().get("a"));
+		assertEquals("2", tokens.getContext().get("b"));
+		assertNull(tokens.getContext().get("c"));
+		assertEquals(2, tokens.getContext().size());
+
+		Iterator<String> it = view.getContext().keySet().iterator();
+		while(it.hasNext()){
+			if(it.next().equals("c"))it.remove();
+		}
+		assertFalse(context.containsKey("c"));
+		view.getContext().clear();
+		assertTrue(context.isEmpty());
+		assertEquals(2, tokens.getContext().size());
+	}
+
+	@Test
+	public void testCloneAndSerialization() throws Exception
+	{
+		SecurityTokens tokens = createTokens();
+		SecurityTokens view = SessionTokensView.of(tokens);
+		view.getContext().put("c", "3");
+		view.setClientIP("10.0.0.1");
+
+		SecurityTokens copy = view.clone();
+		assertSame(SecurityTokens.class, copy.getClass());
+		assertEquals("10.0.0.1", copy.getClientIP());
+		assertEquals("3", copy.getContext().get("c"));
+		copy.getContext().put("d", "4");
+		assertNull(view.getContext().get("d"));
+		assertNull(tokens.getContext().get("d"));
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try(ObjectOutputStream os = new ObjectOutputStream(bos)){
+			os.writeObject(view);
+		}
+		SecurityTokens read;
+		try(ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))){
+			read = (SecurityTokens)is.readObject();
+		}
+		assertSame(SecurityTokens.class, read.getClass());
+		assertEquals("10.0.0.1", read.getClientIP());
+		assertEquals("3", read.getContext().get("c"));
+		assertEquals("1", read.getContext().get("a"));
+	}
+
+	@Test
+	public void testRequestTokens()
+	{
+		SecurityTokens tokens = createTokens();
+		SecuritySession session = new SecuritySession("s1", tokens, 60000);
+		SecurityTokens request = SecuritySessionInHandler.createRequestTokens(session);
+		assertEquals(Boolean.TRUE, request.getContext().get(SecuritySessionUtils.REUSED_MARKER_KEY));
+		assertEquals("s1", request.getContext().get(SecuritySessionUtils.SESSION_ID_KEY));
+		assertNull(tokens.getContext().get(SecuritySessionUtils.REUSED_MARKER_KEY));
+		assertEquals("1", request.getContext().get("a"));
+	}
+
+	/**
+	 * sets every field of the tokens, except the context, to a non-default value of
+	 * its type, so that tests cover all fields of the security library's tokens.
+	 * Fails for field types without a test value.
+	 */
+	static void populate(SecurityTokens tokens) throws Exception
+	{
+		X509Certificate[] chain = TestSecuritySessionCodec.loadChain("client1");
+		XmlObject xml = XmlObject.Factory.parse("<a:Assertion xmlns:a='urn:test'>content</a:Assertion>");
+		for(Field f: getFields()){
+			if(f.get(tokens)==tokens.getContext())continue;
+			Class<?> type = f.getType();
+			Object value;
+			if(type==X509Certificate[].class)value = chain;
+			else if(type==X509Certificate.class)value = chain[0];
+			else if(type==X500Principal.class)value = chain[0].getSubjectX500Principal();
+			else if(type==String.class)value = "value of "+f.getName();
+			else if(type==boolean.class || type==Boolean.class)value = Boolean.TRUE;
+			else if(type==int.class || type==Integer.class)value = 42;
+			else if(type==long.class || type==Long.class)value = 42L;
+			else if(type.isEnum())value = type.getEnumConstants()[type.getEnumConstants().length-1];
+			else if(type.isAssignableFrom(ArrayList.class)){
+				List<Object> list = new ArrayList<>();
+				list.add(new MockAssertion(xml));
+				value = list;
+			}
+			else if(type.isAssignableFrom(HashMap.class)){
+				Map<String, Object> map = new HashMap<>();
+				map.put("key", "value");
+				value = map;
+			}
+			else{
+				fail("No test value for security token field "+f);
+				return;
+			}
+			f.set(tokens, value);
+		}
+		tokens.getContext().put("chain", chain);
+		tokens.getContext().put("principal", chain[0].getSubjectX500Principal());
+		tokens.getContext().put("xml", xml);
+	}
+
+	/**
+	 * @return the instance fields of {@link SecurityTokens}
+	 */
+	static List<Field> getFields()
+	{
+		List<Field> fields = new ArrayList<>();
+		for(Class<?> c = SecurityTokens.class; c!=Object.class; c = c.getSuperclass()){
+			for(Field f: c.getDeclaredFields()){
+				if(Modifier.isStatic(f.getModifiers()))continue;
+				f.setAccessible(true);
+				fields.add(f);
+			}
+		}
+		return fields;
+	}
+
+	@Test
+	public void testAllTokenFields() throws Exception
+	{
+		SecurityTokens tokens = new SecurityTokens();
+		populate(tokens);
+		SecurityTokens view = SessionTokensView.of(tokens);
+		// a view with an overlay context was created, not a copy
+		assertSame(SessionTokensView.class, view.getClass());
+		assertTrue(view.getContext() instanceof SessionTokensView.ContextOverlay);
+		SecurityTokens copy = view.clone();
+		for(Field f: getFields()){
+			Object expected = f.get(tokens);
+			if(expected==tokens.getContext())continue;
+			assertTrue(Objects.deepEquals(expected, f.get(view)), f.getName());
+			assertTrue(Objects.deepEquals(expected, f.get(copy)), f.getName());
+			if(!(expected instanceof Collection) && !(expected instanceof Map)){
+				assertSame(expected, f.get(view), f.getName());
+			}
+		}
+		assertEquals(tokens.getContext(), new HashMap<>(view.getContext()));
+		assertEquals(tokens.getContext(), copy.getContext());
+	}
+}
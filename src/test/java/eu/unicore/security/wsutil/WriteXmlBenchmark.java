@@ -0,0 +1,97 @@
+package eu.unicore.security.wsutil;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Cost of {@link CXFUtils#writeXml(org.w3c.dom.Node, OutputStream)}, which reuses
+ * pooled transformers, compared to creating the factory and transformer per call
+ * as done before, for documents of 1 KB to 10 MB. The output is discarded.
+ * <p>
+ * Run {@link #main(String[])} with the test classpath to include the allocation per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteXmlBenchmark
+{
+	/**
+	 * approximate document size in KB
+	 */
+	@Param({"1", "100", "10240"})
+	public int size;
+
+	private Document doc;
+
+	private final OutputStream discard = OutputStream.nullOutputStream();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		doc = dbf.newDocumentBuilder().newDocument();
+		Element root = doc.createElementNS("urn:test", "t:Audit");
+		doc.appendChild(root);
+		// each entry is about 100 bytes
+		for(int i=0; i<size*10; i++){
+			Element e = doc.createElementNS("urn:test", "t:Entry");
+			e.setAttribute("id", String.valueOf(i));
+			e.setTextContent("CN=User "+i+",O=UNICORE,C=EU accessed the resource at 2024-01-01");
+			root.appendChild(e);
+		}
+	}
+
+	@Benchmark
+	public void pooled() throws Exception
+	{
+		CXFUtils.writeXml(doc, discard);
+	}
+
+	@Benchmark
+	public void perCall() throws Exception
+	{
+		TransformerFactory tf = TransformerFactory.newInstance();
+		Transformer t = tf.newTransformer();
+		t.setOutputProperty(OutputKeys.INDENT, "no");
+		t.transform(new DOMSource(doc), new StreamResult(discard));
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Options opts = new OptionsBuilder()
+				.include(WriteXmlBenchmark.class.getName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(opts).run();
+	}
+}